@@ -0,0 +1,171 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode throughput. Run everything with gradle jmh, the results end up in
+ * build/reports/jmh/results.json. MB/s is reported as the megabytes counter, allocation rate comes
+ * from the gc profiler (gc.alloc.rate).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BitmapBenchmark {
+
+    private static final int MEGABYTE = 1024 * 1024;
+
+    @Param({"1024", "1048576", "67108864", "2147483648"})
+    public long fileSize;
+
+    @Param({"8", "16", "24", "32"})
+    public int bytesPerPixel;
+
+    @Param({"1000", "4000", "32000"})
+    public int width;
+
+    @Param({"warm", "cold"})
+    public String cache;
+
+    private File directory;
+    private File input;
+    private File encoded;
+    private BattEngine encoder;
+    private BattEngine decoder;
+    private PrintStream console;
+
+    /**
+     * Counts the payload bytes, JMH divides it by the time of the iteration which gives MB/s.
+     */
+    @AuxCounters
+    @State(Scope.Thread)
+    public static class Throughput {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        if ("cold".equals(cache)) {
+            //fail the trial right away rather than report warm numbers under the cold label
+            dropPageCache();
+        }
+
+        //the engine reports every file it touches, keep that out of the results
+        console = System.out;
+        System.setOut(new PrintStream(new NullOutputStream()));
+
+        directory = Files.createTempDirectory("batt-benchmark").toFile();
+        input = new File(directory, "input.bin");
+        encoded = new File(directory, "encoded");
+        writeRandomFile(input, fileSize);
+
+        encoder = new BattEngine();
+        encoder.configure(new String[]{"-s", "-a", "encode", "-i", input.getPath(), "-o", encoded.getPath(),
+                "-w", String.valueOf(width), "-b", String.valueOf(bytesPerPixel)});
+        //the decode benchmark needs something to decode
+        encoder.generateBitmap(input.getPath(), generateBitmapName());
+
+        decoder = new BattEngine();
+        decoder.configure(new String[]{"-s", "-a", "decode", "-i", encoded.getPath(),
+                "-o", new File(directory, "decoded").getPath()});
+    }
+
+    @Setup(Level.Invocation)
+    public void prepareCache() throws Exception {
+        if ("cold".equals(cache)) {
+            dropPageCache();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FileUtils.deleteQuietly(directory);
+        System.setOut(console);
+    }
+
+    private String generateBitmapName() {
+        return new File(encoded, input.getName() + ".bmp").getPath();
+    }
+
+    private static void writeRandomFile(File file, long size) throws IOException {
+        Random random = new Random(42);
+        byte[] block = new byte[MEGABYTE];
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                outputStream.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private void dropPageCache() throws Exception {
+        //only works as root on linux
+        new ProcessBuilder("sync").start().waitFor();
+        try {
+            FileWriter writer = new FileWriter("/proc/sys/vm/drop_caches");
+            try {
+                writer.write("3");
+            } finally {
+                writer.close();
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not drop the page cache, run the cold benchmarks as root on Linux "
+                    + "or skip them with -p cache=warm: " + ex.getMessage(), ex);
+        }
+    }
+
+    @Benchmark
+    public void encode(Throughput throughput) throws Exception {
+        encoder.generateBitmap(input.getPath(), generateBitmapName());
+        throughput.megabytes += (double) fileSize / MEGABYTE;
+    }
+
+    @Benchmark
+    public void decode(Throughput throughput) throws Exception {
+        decoder.performDecode();
+        throughput.megabytes += (double) fileSize / MEGABYTE;
+    }
+}
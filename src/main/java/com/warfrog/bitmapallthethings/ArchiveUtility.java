@@ -0,0 +1,56 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+
+package com.warfrog.bitmapallthethings;
+
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Opens tar, zip, cpio, ... archives as a stream of entries, gzip, bzip2 and xz compressed ones included.
+ * Both formats are detected from the first bytes, so it works just as well on stdin as on a file.
+ */
+public class ArchiveUtility {
+
+    public static ArchiveInputStream openArchive(InputStream inputStream, String name) throws IOException {
+        //the factories need mark/reset to peek at the signature
+        InputStream buffered = new BufferedInputStream(inputStream);
+        try {
+            buffered = new BufferedInputStream(new CompressorStreamFactory().createCompressorInputStream(buffered));
+        } catch (CompressorException ex) {
+            //not compressed, the archive starts right away
+        }
+        try {
+            return new ArchiveStreamFactory().createArchiveInputStream(buffered);
+        } catch (ArchiveException ex) {
+            throw new IOException(name + " is not a supported archive: " + ex.getMessage(), ex);
+        }
+    }
+}
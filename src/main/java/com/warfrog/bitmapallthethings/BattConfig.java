@@ -0,0 +1,440 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+
+package com.warfrog.bitmapallthethings;
+
+/**
+ * The settings of a BattTranscoder, the programmatic counterpart of the command line options. A config
+ * can't change once it is built, so one instance can be shared by every thread and every job; use
+ * the Builder to make one, the defaults are the command line defaults.
+ */
+public class BattConfig {
+
+    private final int width;
+    private final int height;
+    private final long maxFileSize;
+    private final long pixelBudget;
+    private final int bytesPerPixel;
+    private final int threads;
+    private final boolean pack;
+    private final String compression;
+    private final boolean dedup;
+    private final boolean incremental;
+    private final boolean catalog;
+    private final int parityData;
+    private final int parityShards;
+    private final String extensionFilter;
+    private final boolean archive;
+    private final boolean cleanUp;
+    private final boolean performRar;
+    private final String rarLocation;
+    private final String rarName;
+    private final String rarPassword;
+    private final int rarCompression;
+    private final int rarRecoveryRecord;
+    private final boolean rarStream;
+    private final long rarTimeout;
+
+    private BattConfig(Builder builder) {
+        this.width = builder.width;
+        this.height = builder.height;
+        this.maxFileSize = builder.maxFileSize;
+        this.pixelBudget = builder.pixelBudget;
+        this.bytesPerPixel = builder.bytesPerPixel;
+        this.threads = builder.threads;
+        this.pack = builder.pack;
+        this.compression = builder.compression;
+        this.dedup = builder.dedup;
+        this.incremental = builder.incremental;
+        this.catalog = builder.catalog;
+        this.parityData = builder.parityData;
+        this.parityShards = builder.parityShards;
+        this.extensionFilter = builder.extensionFilter;
+        this.archive = builder.archive;
+        this.cleanUp = builder.cleanUp;
+        this.performRar = builder.performRar;
+        this.rarLocation = builder.rarLocation;
+        this.rarName = builder.rarName;
+        this.rarPassword = builder.rarPassword;
+        this.rarCompression = builder.rarCompression;
+        this.rarRecoveryRecord = builder.rarRecoveryRecord;
+        this.rarStream = builder.rarStream;
+        this.rarTimeout = builder.rarTimeout;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    /**
+     * @return the most pixels a bitmap may have, 0 for the fixed width
+     */
+    public long getPixelBudget() {
+        return pixelBudget;
+    }
+
+    public int getBytesPerPixel() {
+        return bytesPerPixel;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public boolean isPack() {
+        return pack;
+    }
+
+    /**
+     * @return the codec, null when nothing is compressed
+     */
+    public String getCompression() {
+        return compression;
+    }
+
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public boolean isCatalog() {
+        return catalog;
+    }
+
+    public int getParityData() {
+        return parityData;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    public String getExtensionFilter() {
+        return extensionFilter;
+    }
+
+    public boolean isArchive() {
+        return archive;
+    }
+
+    public boolean isCleanUp() {
+        return cleanUp;
+    }
+
+    public boolean isPerformRar() {
+        return performRar;
+    }
+
+    public String getRarLocation() {
+        return rarLocation;
+    }
+
+    public String getRarName() {
+        return rarName;
+    }
+
+    public String getRarPassword() {
+        return rarPassword;
+    }
+
+    public int getRarCompression() {
+        return rarCompression;
+    }
+
+    public int getRarRecoveryRecord() {
+        return rarRecoveryRecord;
+    }
+
+    public boolean isRarStream() {
+        return rarStream;
+    }
+
+    public long getRarTimeout() {
+        return rarTimeout;
+    }
+
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    public static class Builder {
+
+        private int width = 4000;
+        private int height = 4000;
+        private long maxFileSize = 64000000;
+        private long pixelBudget = 0;
+        private int bytesPerPixel = 32;
+        private int threads = 1;
+        private boolean pack = false;
+        private String compression = null;
+        private boolean dedup = false;
+        private boolean incremental = false;
+        private boolean catalog = false;
+        private int parityData = 10;
+        private int parityShards = 0;
+        private String extensionFilter = null;
+        private boolean archive = false;
+        private boolean cleanUp = false;
+        private boolean performRar = false;
+        private String rarLocation = null;
+        private String rarName = null;
+        private String rarPassword = null;
+        private int rarCompression = 0;
+        private int rarRecoveryRecord = 10;
+        private boolean rarStream = false;
+        private long rarTimeout = 0;
+
+        public Builder() {
+        }
+
+        private Builder(BattConfig config) {
+            this.width = config.width;
+            this.height = config.height;
+            this.maxFileSize = config.maxFileSize;
+            this.pixelBudget = config.pixelBudget;
+            this.bytesPerPixel = config.bytesPerPixel;
+            this.threads = config.threads;
+            this.pack = config.pack;
+            this.compression = config.compression;
+            this.dedup = config.dedup;
+            this.incremental = config.incremental;
+            this.catalog = config.catalog;
+            this.parityData = config.parityData;
+            this.parityShards = config.parityShards;
+            this.extensionFilter = config.extensionFilter;
+            this.archive = config.archive;
+            this.cleanUp = config.cleanUp;
+            this.performRar = config.performRar;
+            this.rarLocation = config.rarLocation;
+            this.rarName = config.rarName;
+            this.rarPassword = config.rarPassword;
+            this.rarCompression = config.rarCompression;
+            this.rarRecoveryRecord = config.rarRecoveryRecord;
+            this.rarStream = config.rarStream;
+            this.rarTimeout = config.rarTimeout;
+        }
+
+        public Builder setWidth(int width) {
+            this.width = width;
+            return this;
+        }
+
+        public Builder setHeight(int height) {
+            this.height = height;
+            return this;
+        }
+
+        public Builder setMaxFileSize(long maxFileSize) {
+            this.maxFileSize = maxFileSize;
+            return this;
+        }
+
+        /**
+         * @param pixelBudget plan every bitmap to fit in this many pixels, 0 for the fixed width
+         */
+        public Builder setPixelBudget(long pixelBudget) {
+            this.pixelBudget = pixelBudget;
+            return this;
+        }
+
+        public Builder setBytesPerPixel(int bytesPerPixel) {
+            this.bytesPerPixel = bytesPerPixel;
+            return this;
+        }
+
+        public Builder setThreads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        public Builder setPack(boolean pack) {
+            this.pack = pack;
+            return this;
+        }
+
+        /**
+         * @param compression none, deflate, bzip2 or xz, null is the same as none
+         */
+        public Builder setCompression(String compression) {
+            this.compression = compression == null || compression.equalsIgnoreCase(CompressionUtility.NONE)
+                    ? null : compression.toLowerCase();
+            return this;
+        }
+
+        /**
+         * @param dedup store every distinct chunk once, in chunk stores shared with earlier runs into the same
+         *              directory; two calls must not deduplicate into the same directory at the same time
+         */
+        public Builder setDedup(boolean dedup) {
+            this.dedup = dedup;
+            return this;
+        }
+
+        /**
+         * @param incremental only encode the files that are new or changed since the last incremental encode
+         *                    into the same directory, as recorded in its manifest
+         */
+        public Builder setIncremental(boolean incremental) {
+            this.incremental = incremental;
+            return this;
+        }
+
+        /**
+         * @param catalog also write a catalog of the encoded files, which selective decodes and
+         *                {@link BattTranscoder#open(java.nio.file.Path, String)} need; every file is read once
+         *                more to hash it
+         */
+        public Builder setCatalog(boolean catalog) {
+            this.catalog = catalog;
+            return this;
+        }
+
+        public Builder setParity(int parityShards, int parityData) {
+            this.parityShards = parityShards;
+            this.parityData = parityData;
+            return this;
+        }
+
+        /**
+         * @param extensionFilter only files with this extension (bmp or *.bmp) are encoded, null, empty, * or *.*
+         *                        for every file
+         */
+        public Builder setExtensionFilter(String extensionFilter) {
+            String filter = extensionFilter == null ? "" : extensionFilter.trim();
+            if (filter.startsWith("*.")) {
+                filter = filter.substring(2);
+            }
+            this.extensionFilter = filter.isEmpty() || filter.equals("*") ? null : filter;
+            return this;
+        }
+
+        public Builder setArchive(boolean archive) {
+            this.archive = archive;
+            return this;
+        }
+
+        public Builder setCleanUp(boolean cleanUp) {
+            this.cleanUp = cleanUp;
+            return this;
+        }
+
+        public Builder setRar(boolean performRar) {
+            this.performRar = performRar;
+            return this;
+        }
+
+        public Builder setRarLocation(String rarLocation) {
+            this.rarLocation = rarLocation;
+            return this;
+        }
+
+        public Builder setRarName(String rarName) {
+            this.rarName = rarName;
+            return this;
+        }
+
+        public Builder setRarPassword(String rarPassword) {
+            this.rarPassword = rarPassword;
+            return this;
+        }
+
+        public Builder setRarCompression(int rarCompression) {
+            this.rarCompression = rarCompression;
+            return this;
+        }
+
+        public Builder setRarRecoveryRecord(int rarRecoveryRecord) {
+            this.rarRecoveryRecord = rarRecoveryRecord;
+            return this;
+        }
+
+        public Builder setRarStream(boolean rarStream) {
+            this.rarStream = rarStream;
+            return this;
+        }
+
+        public Builder setRarTimeout(long rarTimeout) {
+            this.rarTimeout = rarTimeout;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException with the same complaints the command line has
+         */
+        public BattConfig build() {
+            if (width < 1 || width > 32000 || height < 1 || height > 32000) {
+                throw new IllegalArgumentException("Valid width and height values for the BMP format are 1 to 32000.");
+            }
+            if (bytesPerPixel != 8 && bytesPerPixel != 16 && bytesPerPixel != 24 && bytesPerPixel != 32) {
+                throw new IllegalArgumentException("Bytes per pixel must be 8, 16, 24, or 32.");
+            }
+            if (maxFileSize < 1 || maxFileSize > BitmapHeader.MAX_PAYLOAD_SIZE) {
+                throw new IllegalArgumentException("The max file size must be 1 to " + BitmapHeader.MAX_PAYLOAD_SIZE + " bytes.");
+            }
+            if (pixelBudget < 0 || pixelBudget > (long) GeometryPlanner.MAX_DIMENSION * GeometryPlanner.MAX_DIMENSION) {
+                throw new IllegalArgumentException("The pixel budget must be 0 to "
+                        + (long) GeometryPlanner.MAX_DIMENSION * GeometryPlanner.MAX_DIMENSION + ".");
+            }
+            if (threads < 1) {
+                throw new IllegalArgumentException("Threads must be 1 or more.");
+            }
+            if (compression != null && !CompressionUtility.isSupportedCodec(compression)) {
+                throw new IllegalArgumentException("Compression must be none, deflate, bzip2 or xz.");
+            }
+            if (compression != null && !CompressionUtility.isCodecAvailable(compression)) {
+                throw new IllegalArgumentException("The " + compression + " codec is not available, make sure xz is on the class path.");
+            }
+            if (parityShards < 0 || parityData < 1 || parityData + parityShards > ReedSolomon.MAX_SHARDS) {
+                throw new IllegalArgumentException("Parity must be at least 0 and parity data at least 1, adding up to "
+                        + ReedSolomon.MAX_SHARDS + " or less.");
+            }
+            if (rarCompression < 0 || rarCompression > 5 || rarRecoveryRecord < 0 || rarRecoveryRecord > 100 || rarTimeout < 0) {
+                throw new IllegalArgumentException("Rar compression must be 0 - 5, rar recovery 0 - 100 and the rar timeout 0 or more.");
+            }
+            if (archive && performRar) {
+                throw new IllegalArgumentException("The archive option can not be combined with rar.");
+            }
+            if (dedup && (pack || compression != null || performRar)) {
+                throw new IllegalArgumentException("The dedup option can not be combined with pack, compression or rar.");
+            }
+            if (incremental && (pack || archive || performRar)) {
+                throw new IllegalArgumentException("The incremental option can not be combined with pack, archive or rar.");
+            }
+            if (catalog && (archive || performRar)) {
+                throw new IllegalArgumentException("The catalog option can not be combined with archive or rar.");
+            }
+            return new BattConfig(this);
+        }
+    }
+}
@@ -23,38 +23,107 @@
 package com.warfrog.bitmapallthethings;
 
 import org.apache.commons.cli.*;
+import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
-import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
-import org.apache.commons.io.EndianUtils;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOCase;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.PrefixFileFilter;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CloseShieldInputStream;
 
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.StandardCopyOption;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Vector;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class BattEngine {
 
     private static final String ENCODE = "encode";
     private static final String DECODE = "decode";
+    private static final String SERVE = "serve";
+    private static final long SHUTDOWN_TIMEOUT = 5000;
+    private static final String STDIN = "-";
+    private static final String STDIN_NAME = "stdin";
+    private static final String STDOUT = "-";
+    private static final long RAR_POLL_INTERVAL = 250;
+    //files checked against the manifest per task, one task per file would cost more than the stats
+    private static final int SCAN_BATCH_SIZE = 1024;
+    private static final Pattern RAR_VOLUME = Pattern.compile("(.+?)(?:\\.part(\\d+))?\\.rar", Pattern.CASE_INSENSITIVE);
+    private static final Pattern BITMAP_PART = Pattern.compile("(.+)\\.part\\d{3,}\\.bmp", Pattern.CASE_INSENSITIVE);
 
     //bitmap settings
     private File inputTarget = null;
+    private InputStream inputStream = null;
+    private String inputName = null;
+    private long inputSize = -1;
+    private boolean archive = false;
     private String outputDirectory = ".";
+    private WritableByteChannel outputChannel = null;
     private String action = null;
     private String extensionFilter = null;
     private int width = 4000;
     private int height = 4000;
     private long maxFileSize = 64000000;
+    private long pixelBudget = 0;
     private int bytesPerPixel = 32;
+    private int threads = 1;
+    private boolean pack = false;
+    private String compression = null;
+    private boolean dedup = false;
+    private ChunkIndex chunkIndex = null;
+    private BitmapWriter chunkStore = null;
+    private String chunkStoreName = null;
+    private int storedChunks = 0;
+    private long storedBytes = 0;
+    private boolean incremental = false;
+    private Manifest manifest = null;
+    private final Map<File, Manifest.Record> pendingRecords = new ConcurrentHashMap<File, Manifest.Record>();
+    //the files that share their name with another one are encoded under their relative path
+    private final Map<File, String> fileNames = new ConcurrentHashMap<File, String>();
+    private boolean writeCatalog = false;
+    private Catalog catalog = null;
+    private String glob = null;
+    private int port = 8080;
+    private long cacheMemory = 256L * 1024 * 1024;
+    private ExecutorService compressionExecutor = null;
+    private final boolean ownsCompressionExecutor;
+    private int parityData = 10;
+    private int parityShards = 0;
+    private final List<File> generatedBitmaps = Collections.synchronizedList(new ArrayList<File>());
+    private final List<File> parityBitmaps = Collections.synchronizedList(new ArrayList<File>());
+    private final AtomicInteger errors = new AtomicInteger();
+
+    //buffers shared by every file and thread, direct ones for channels and heap ones for streams
+    private final BufferPool directBuffers;
+    private final BufferPool heapBuffers;
+
+    //instrumentation settings
+    private final Metrics metrics = new Metrics();
+    private File metricsFile = null;
 
     //rar settings
     private boolean performRar = false;
@@ -63,6 +132,8 @@ public class BattEngine {
     private String rarName = null;
     private int rarCompression = 0;
     private int rarRecoveryRecord = 10;
+    private boolean rarStream = false;
+    private long rarTimeout = 0;
 
     //integration settings
     private boolean suppressHelp = false;
@@ -76,6 +147,37 @@ public class BattEngine {
         this.inputTarget = inputTarget;
     }
 
+    private InputStream getInputStream() {
+        return inputStream;
+    }
+
+    private String getInputName() {
+        return inputName;
+    }
+
+    private long getInputSize() {
+        return inputSize;
+    }
+
+    /**
+     * Encodes a stream instead of the input target, the stream is read to the end but not closed.
+     *
+     * @param inputSize the size of the stream, -1 if it is not known
+     */
+    void setInputStream(InputStream inputStream, String inputName, long inputSize) {
+        this.inputStream = inputStream;
+        this.inputName = inputName;
+        this.inputSize = inputSize;
+    }
+
+    private boolean isArchive() {
+        return archive;
+    }
+
+    private void setArchive(boolean archive) {
+        this.archive = archive;
+    }
+
     private String getAction() {
         return action;
     }
@@ -90,7 +192,7 @@ public class BattEngine {
 
     private void setExtensionFilter(String extensionFilter) {
         //remove any *.
-        if (extensionFilter.startsWith("*.")) {
+        if (extensionFilter != null && extensionFilter.startsWith("*.")) {
             extensionFilter = extensionFilter.substring(2);
         }
         this.extensionFilter = extensionFilter;
@@ -120,6 +222,26 @@ public class BattEngine {
         this.maxFileSize = maxFileSize;
     }
 
+    private long getPixelBudget() {
+        return pixelBudget;
+    }
+
+    private void setPixelBudget(long pixelBudget) {
+        this.pixelBudget = pixelBudget;
+    }
+
+    private GeometryPlanner getGeometryPlanner() {
+        return new GeometryPlanner(getWidth(), getHeight(), getBytesPerPixel(), getPixelBudget());
+    }
+
+    /**
+     * @return the most payload bytes a single bitmap takes, with a pixel budget no more than fits into it
+     */
+    private long getPayloadLimit() {
+        GeometryPlanner planner = getGeometryPlanner();
+        return planner.isBudgeted() ? Math.min(getMaxFileSize(), planner.getCapacity()) : getMaxFileSize();
+    }
+
     private int getBytesPerPixel() {
         return bytesPerPixel;
     }
@@ -128,6 +250,163 @@ public class BattEngine {
         this.bytesPerPixel = bytesPerPixel;
     }
 
+    private int getThreads() {
+        return threads;
+    }
+
+    private void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    private boolean isPack() {
+        return pack;
+    }
+
+    private void setPack(boolean pack) {
+        this.pack = pack;
+    }
+
+    private String getCompression() {
+        return compression;
+    }
+
+    private boolean isDedup() {
+        return dedup;
+    }
+
+    private void setDedup(boolean dedup) {
+        this.dedup = dedup;
+    }
+
+    private boolean isIncremental() {
+        return incremental;
+    }
+
+    private void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    private boolean isWriteCatalog() {
+        return writeCatalog;
+    }
+
+    private void setWriteCatalog(boolean writeCatalog) {
+        this.writeCatalog = writeCatalog;
+    }
+
+    private String getGlob() {
+        return glob;
+    }
+
+    //package visible for the library
+    void setGlob(String glob) {
+        this.glob = glob;
+    }
+
+    private int getPort() {
+        return port;
+    }
+
+    private void setPort(int port) {
+        this.port = port;
+    }
+
+    private long getCacheMemory() {
+        return cacheMemory;
+    }
+
+    private void setCacheMemory(long cacheMemory) {
+        this.cacheMemory = cacheMemory;
+    }
+
+    private void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    private synchronized ExecutorService getCompressionExecutor() {
+        //shared by every file so the number of compressing threads stays bounded by --threads
+        if (compressionExecutor == null) {
+            compressionExecutor = Executors.newFixedThreadPool(getThreads());
+        }
+        return compressionExecutor;
+    }
+
+    private synchronized void shutdownCompressionExecutor() {
+        //an executor that was handed in belongs to whoever handed it in
+        if (compressionExecutor != null && ownsCompressionExecutor) {
+            compressionExecutor.shutdownNow();
+            compressionExecutor = null;
+        }
+    }
+
+    private int getParityData() {
+        return parityData;
+    }
+
+    private void setParityData(int parityData) {
+        this.parityData = parityData;
+    }
+
+    private int getParityShards() {
+        return parityShards;
+    }
+
+    private void setParityShards(int parityShards) {
+        this.parityShards = parityShards;
+    }
+
+    private void registerParity(List<File> bitmaps) {
+        parityBitmaps.addAll(bitmaps);
+    }
+
+    /**
+     * @return every bitmap the encode wrote, parity bitmaps included
+     */
+    List<File> getGeneratedBitmaps() {
+        List<File> bitmaps = new ArrayList<File>(generatedBitmaps);
+        bitmaps.addAll(parityBitmaps);
+        return bitmaps;
+    }
+
+    private void reportError(String message) {
+        System.err.println("ERROR: " + message);
+        errors.incrementAndGet();
+    }
+
+    /**
+     * @return how many errors were reported, a run carries on past the files it could not handle
+     */
+    int getErrors() {
+        return errors.get();
+    }
+
+    private void registerBitmap(File bitmap) {
+        generatedBitmaps.add(bitmap);
+    }
+
+    private Metrics getMetrics() {
+        return metrics;
+    }
+
+    private File getMetricsFile() {
+        return metricsFile;
+    }
+
+    private void setMetricsFile(File metricsFile) {
+        this.metricsFile = metricsFile;
+    }
+
+    private WritableByteChannel getOutputChannel() {
+        return outputChannel;
+    }
+
+    /**
+     * Decodes into a channel instead of the output directory, which takes a single payload.
+     */
+    void setOutputChannel(WritableByteChannel outputChannel) {
+        this.outputChannel = outputChannel;
+    }
+
     private String getOutputDirectory() {
         return outputDirectory;
     }
@@ -188,6 +467,22 @@ public class BattEngine {
         this.rarRecoveryRecord = rarRecoveryRecord;
     }
 
+    private boolean isRarStream() {
+        return rarStream;
+    }
+
+    private void setRarStream(boolean rarStream) {
+        this.rarStream = rarStream;
+    }
+
+    private long getRarTimeout() {
+        return rarTimeout;
+    }
+
+    private void setRarTimeout(long rarTimeout) {
+        this.rarTimeout = rarTimeout;
+    }
+
     private boolean isSuppressHelp() {
         return suppressHelp;
     }
@@ -204,6 +499,22 @@ public class BattEngine {
         this.cleanUp = cleanUp;
     }
 
+    public BattEngine() {
+        this(new BufferPool("direct", true), new BufferPool("heap", false), null);
+    }
+
+    /**
+     * @param compressionExecutor the pool to compress and decompress on, null to start one per run
+     */
+    BattEngine(BufferPool directBuffers, BufferPool heapBuffers, ExecutorService compressionExecutor) {
+        this.directBuffers = directBuffers;
+        this.heapBuffers = heapBuffers;
+        this.compressionExecutor = compressionExecutor;
+        this.ownsCompressionExecutor = compressionExecutor == null;
+        getMetrics().addPool(directBuffers);
+        getMetrics().addPool(heapBuffers);
+    }
+
     private void parseHelpOption(CommandLine line, Options options) {
         if (line.hasOption("help")) {
             HelpFormatter formatter = new HelpFormatter();
@@ -215,22 +526,41 @@ public class BattEngine {
     private Options setupCommandLineOptions() {
         Options options = new Options();
         options.addOption("?", "help", false, "Prints this help message");
-        options.addOption("a", "action", true, "Sets the transcoder action. Supported values are encode or decode (required)");
+        options.addOption("a", "action", true, "Sets the transcoder action. Supported values are encode, decode or serve (required)");
         options.addOption("w", "width", true, "Set the image width (defaults to 4000)");
         options.addOption("h", "height", true, "Set the image height (defaults to 4000)");
-        options.addOption("m", "max_file_size", true, "Set the max file size in bytes (defaults to 64000000");
+        options.addOption("m", "max_file_size", true, "Set the max file size in bytes (defaults to 64000000, at most "
+                + BitmapHeader.MAX_PAYLOAD_SIZE + "); larger files are split across several bitmaps.");
+        options.addOption("px", "pixels", true, "Plan the width and height of every bitmap to fit in this many pixels "
+                + "(e.g. 16000000) with as little filler as possible, instead of the fixed width; also caps the max file size.");
         options.addOption("b", "bytes_per_pixel", true, "Set the number of bits per pixel. Supported values are 8,16,24,32. (Default is 32)");
+        options.addOption("p", "pack", false, "Pack small files together into shared bitmaps instead of one bitmap per file.");
+        options.addOption("z", "compression", true, "Compress files before encoding. Supported values are none, deflate, bzip2 or xz (default none); already compressed files are stored as is.");
+        options.addOption("dd", "dedup", false, "Split files into content defined chunks and only store the chunks that no earlier run into the same output directory stored (encode only).");
+        options.addOption("in", "incremental", false, "Only encode the files that are new or changed since the last incremental run into the same output directory, as tracked in its batt.manifest (encode only).");
+        options.addOption("pm", "parity", true, "Set the number of Reed-Solomon parity bitmaps written for each group of data bitmaps (default 0).");
+        options.addOption("pk", "parity_data", true, "Set the number of data bitmaps in each parity group (default 10).");
         options.addOption("e", "extension_filter", true, "Set the extension filter");
-        options.addOption("i", "input", true, "Specifies the input target, can be either a file or a folder (required)");
-        options.addOption("o", "output", true, "Specifies the output directory (defaults to .)");
+        options.addOption("i", "input", true, "Specifies the input target, can be either a file or a folder, - reads the data to encode from stdin (required)");
+        options.addOption("ar", "archive", false, "Encode the entries of a tar or zip input (plain or gzip, bzip2, xz compressed) without extracting it first, use -i - to read the archive from stdin.");
+        options.addOption("ct", "catalog", false, "Also write a catalog of the encoded files with their paths and SHA-256, "
+                + "which -g, serve and reading single files need; every file is read once more to hash it (encode only).");
+        options.addOption("g", "glob", true, "Only restore the files whose path matches this glob (e.g. docs/**.pdf) into their directory tree, reading just the bitmaps that hold them as listed in the catalog of the encode (decode only).");
+        options.addOption("pt", "port", true, "Set the local port serve listens on (default 8080, 0 picks a free one).");
+        options.addOption("cm", "cache_memory", true, "Set the megabytes of file blocks serve keeps in memory (default 256, 0 turns the cache off).");
+        options.addOption("o", "output", true, "Specifies the output directory (defaults to .), - writes the decoded data to stdout");
+        options.addOption("t", "threads", true, "Set the number of files to encode or decode in parallel (defaults to 1)");
         options.addOption("s", "suppress_help", false, "Suppresses the help output when there is a command line parsing error.");
         options.addOption("c", "clean_up", false, "Delete temporary files.");
+        options.addOption("ms", "metrics", true, "Write the per stage metrics of the run to this file, as CSV if it ends with .csv and JSON otherwise.");
         options.addOption("r", "rar", false, "Will attempt to execute rar if it is found on the system path (valid for both encode and decode).");
         options.addOption("rl", "rar_location", true, "Directory were the rar executable can be found.");
         options.addOption("rn", "rar_name", true, "Set the name of the rar archive.");
         options.addOption("rx", "rar_compression", true, "Set the amount of compression for rar (values are 0 - 5; default 0).");
         options.addOption("rr", "rar_recovery", true, "Set the percentage of recovery record data for rar (values are 0 - 100; default 10).");
         options.addOption("rp", "rar_password", true, "Set a password and encrypt the rar files.");
+        options.addOption("rs", "rar_stream", false, "Extract the rar volumes while they are still being decoded (decode only).");
+        options.addOption("rt", "rar_timeout", true, "Stop rar if it runs longer than this many seconds (default 0, no limit).");
         return options;
     }
 
@@ -240,13 +570,13 @@ public class BattEngine {
         if (line.hasOption("action")) {
             setAction(line.getOptionValue("action"));
             //sanity check
-            if (!getAction().equalsIgnoreCase("encode") && !action.equalsIgnoreCase("decode")) {
+            if (!getAction().equalsIgnoreCase("encode") && !action.equalsIgnoreCase("decode") && !action.equalsIgnoreCase("serve")) {
                 // oops, something went wrong
-                System.err.println("You must provide an action value of either 'encode' or 'decode'.");
+                System.err.println("You must provide an action value of either 'encode', 'decode' or 'serve'.");
                 parsingError = true;
             }
         } else {
-            System.err.println("You must provide an action value of either 'encode' or 'decode'.");
+            System.err.println("You must provide an action value of either 'encode', 'decode' or 'serve'.");
             parsingError = true;
         }
         return parsingError;
@@ -301,6 +631,13 @@ public class BattEngine {
             String input = line.getOptionValue("max_file_size");
             try {
                 setMaxFileSize(Long.parseLong(input));
+
+                //a bitmap can't hold more than its 32 bit size fields can describe
+                if (getMaxFileSize() < 1 || getMaxFileSize() > BitmapHeader.MAX_PAYLOAD_SIZE) {
+                    System.err.println("Invalid max_file_size, valid values are 1 to " + BitmapHeader.MAX_PAYLOAD_SIZE + ".");
+                    parsingError = true;
+                }
+
             } catch (NumberFormatException ex) {
                 System.err.println("You must provide a proper long value for max_file_size.");
                 parsingError = true;
@@ -329,6 +666,118 @@ public class BattEngine {
         return parsingError;
     }
 
+    private boolean parsePixelsOption(CommandLine line) {
+        boolean parsingError = false;
+        //validate the pixels value
+        if (line.hasOption("pixels")) {
+            String input = line.getOptionValue("pixels");
+            try {
+                setPixelBudget(Long.parseLong(input));
+
+                long maxPixels = (long) GeometryPlanner.MAX_DIMENSION * GeometryPlanner.MAX_DIMENSION;
+                if (getPixelBudget() < 1 || getPixelBudget() > maxPixels) {
+                    System.err.println("Invalid pixels, valid values are 1 to " + maxPixels + ".");
+                    parsingError = true;
+                }
+
+            } catch (NumberFormatException ex) {
+                System.err.println("You must provide a proper long value for pixels.");
+                parsingError = true;
+            }
+        }
+        return parsingError;
+    }
+
+    private boolean parseThreadsOption(CommandLine line) {
+        boolean parsingError = false;
+        //validate the threads value
+        if (line.hasOption("threads")) {
+            String input = line.getOptionValue("threads");
+            try {
+                setThreads(Integer.parseInt(input));
+
+                if (getThreads() < 1) {
+                    System.err.println("You must provide a value of 1 or more for threads.");
+                    parsingError = true;
+                }
+
+            } catch (NumberFormatException ex) {
+                System.err.println("You must provide a proper integer value for threads.");
+                parsingError = true;
+            }
+        }
+        return parsingError;
+    }
+
+    private boolean parsePackOption(CommandLine line) {
+        boolean parsingError = false;
+        if (line.hasOption("pack")) {
+            setPack(true);
+        }
+        return parsingError;
+    }
+
+    private boolean parseCompressionOption(CommandLine line) {
+        boolean parsingError = false;
+        if (line.hasOption("compression")) {
+            String input = line.getOptionValue("compression").toLowerCase();
+            if (!CompressionUtility.isSupportedCodec(input)) {
+                System.err.println("You must provide a value of none, deflate, bzip2 or xz for compression.");
+                parsingError = true;
+            } else if (!CompressionUtility.isCodecAvailable(input)) {
+                System.err.println("The " + input + " codec is not available, make sure xz is on the class path.");
+                parsingError = true;
+            } else if (!input.equals(CompressionUtility.NONE)) {
+                setCompression(input);
+            }
+        }
+        return parsingError;
+    }
+
+    private boolean parseDedupOption(CommandLine line) {
+        boolean parsingError = false;
+        if (line.hasOption("dedup")) {
+            setDedup(true);
+            if (!ENCODE.equalsIgnoreCase(getAction())) {
+                System.err.println("The dedup option is only valid for encode.");
+                parsingError = true;
+            } else if (isPack() || getCompression() != null || line.hasOption("rar")) {
+                System.err.println("The dedup option can not be combined with pack, compression or rar.");
+                parsingError = true;
+            }
+        }
+        return parsingError;
+    }
+
+    private boolean parseParityOption(CommandLine line) {
+        boolean parsingError = false;
+        if (line.hasOption("parity")) {
+            String input = line.getOptionValue("parity");
+            try {
+                setParityShards(Integer.parseInt(input));
+            } catch (NumberFormatException ex) {
+                System.err.println("You must provide an integer value for parity.");
+                parsingError = true;
+            }
+        }
+        if (line.hasOption("parity_data")) {
+            String input = line.getOptionValue("parity_data");
+            try {
+                setParityData(Integer.parseInt(input));
+            } catch (NumberFormatException ex) {
+                System.err.println("You must provide an integer value for parity_data.");
+                parsingError = true;
+            }
+        }
+
+        if (getParityShards() < 0 || getParityData() < 1 || getParityData() + getParityShards() > ReedSolomon.MAX_SHARDS) {
+            System.err.println("You must provide values of at least 0 for parity and 1 for parity_data, adding up to "
+                    + ReedSolomon.MAX_SHARDS + " or less.");
+            parsingError = true;
+        }
+        return parsingError;
+    }
+
     private boolean parseExtensionFilterOption(CommandLine line) {
         boolean parsingError = false;
         //validate the extension value
@@ -343,7 +792,12 @@ public class BattEngine {
         //validate the input value
         if (line.hasOption("input")) {
             setInputTarget(new File(line.getOptionValue("input")));
-            if (!inputTarget.exists()) {
+            if (isStdinInput()) {
+                if (!ENCODE.equalsIgnoreCase(getAction()) || line.hasOption("rar")) {
+                    System.err.println("Reading from stdin is only valid for encode without rar.");
+                    parsingError = true;
+                }
+            } else if (!inputTarget.exists()) {
                 System.err.println("Could not open the input specified -- file not found.");
                 parsingError = true;
             }
@@ -355,10 +809,122 @@ public class BattEngine {
         return parsingError;
     }
 
+    private boolean parseArchiveOption(CommandLine line) {
+        boolean parsingError = false;
+        if (line.hasOption("archive")) {
+            setArchive(true);
+            if (!ENCODE.equalsIgnoreCase(getAction())) {
+                System.err.println("The archive option is only valid for encode.");
+                parsingError = true;
+            } else if (line.hasOption("rar")) {
+                System.err.println("The archive option can not be combined with rar.");
+                parsingError = true;
+            }
+        }
+        return parsingError;
+    }
+
+    private boolean parseIncrementalOption(CommandLine line) {
+        boolean parsingError = false;
+        if (line.hasOption("incremental")) {
+            setIncremental(true);
+            if (!ENCODE.equalsIgnoreCase(getAction()) || isStdinInput()) {
+                System.err.println("The incremental option is only valid for encoding files.");
+                parsingError = true;
+            } else if (isPack() || isArchive() || line.hasOption("rar")) {
+                System.err.println("The incremental option can not be combined with pack, archive or rar.");
+                parsingError = true;
+            }
+        }
+        return parsingError;
+    }
+
+    private boolean parseCatalogOption(CommandLine line) {
+        boolean parsingError = false;
+        if (line.hasOption("catalog")) {
+            setWriteCatalog(true);
+            if (!ENCODE.equalsIgnoreCase(getAction()) || isStdinInput()) {
+                System.err.println("The catalog option is only valid for encoding files.");
+                parsingError = true;
+            } else if (isArchive() || line.hasOption("rar")) {
+                System.err.println("The catalog option can not be combined with archive or rar.");
+                parsingError = true;
+            }
+        }
+        return parsingError;
+    }
+
+    private boolean parseGlobOption(CommandLine line) {
+        boolean parsingError = false;
+        if (line.hasOption("glob")) {
+            setGlob(line.getOptionValue("glob"));
+            if (!DECODE.equalsIgnoreCase(getAction()) || getInputTarget() == null || !isInputTargetADirectory() || isStdoutOutput()) {
+                System.err.println("The glob option is only valid for decoding a directory of bitmaps into a directory.");
+                parsingError = true;
+            } else if (isCleanUp() || isPerformRar()) {
+                System.err.println("The glob option can not be combined with clean up or rar.");
+                parsingError = true;
+            } else {
+                try {
+                    FileSystems.getDefault().getPathMatcher("glob:" + getGlob());
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("The glob " + getGlob() + " is not valid: " + ex.getMessage());
+                    parsingError = true;
+                }
+            }
+        }
+        return parsingError;
+    }
+
+    private boolean parseServeOptions(CommandLine line) {
+        boolean parsingError = false;
+        if (SERVE.equalsIgnoreCase(getAction())) {
+            if (getInputTarget() == null || !isInputTargetADirectory() || isStdoutOutput()) {
+                System.err.println("Serve needs a directory of bitmaps as its input.");
+                parsingError = true;
+            } else if (isPerformRar() || getGlob() != null) {
+                System.err.println("Serve can not be combined with rar or glob.");
+                parsingError = true;
+            }
+        } else if (line.hasOption("port") || line.hasOption("cache_memory")) {
+            System.err.println("The port and cache memory options are only valid for serve.");
+            parsingError = true;
+        }
+        if (line.hasOption("port")) {
+            try {
+                setPort(Integer.parseInt(line.getOptionValue("port")));
+                if (getPort() < 0 || getPort() > 65535) {
+                    System.err.println("Invalid port, valid values are 0 to 65535.");
+                    parsingError = true;
+                }
+            } catch (NumberFormatException ex) {
+                System.err.println("Invalid port, the value must be a number.");
+                parsingError = true;
+            }
+        }
+        if (line.hasOption("cache_memory")) {
+            try {
+                setCacheMemory(Long.parseLong(line.getOptionValue("cache_memory")) * 1024 * 1024);
+                if (getCacheMemory() < 0) {
+                    System.err.println("Invalid cache memory, the value can not be negative.");
+                    parsingError = true;
+                }
+            } catch (NumberFormatException ex) {
+                System.err.println("Invalid cache memory, the value must be a number of megabytes.");
+                parsingError = true;
+            }
+        }
+        return parsingError;
+    }
+
     private boolean parseOutputDirectoryOption(CommandLine line) {
         boolean parsingError = false;
         if (line.hasOption("output")) {
             setOutputDirectory(line.getOptionValue("output"));
+            if (isStdoutOutput() && (!DECODE.equalsIgnoreCase(getAction()) || line.hasOption("rar"))) {
+                System.err.println("Writing to stdout is only valid for decode without rar.");
+                parsingError = true;
+            }
         }
         return parsingError;
     }
@@ -379,6 +945,20 @@ public class BattEngine {
         return parsingError;
     }
 
+    private boolean parseMetricsOption(CommandLine line) {
+        boolean parsingError = false;
+        if (line.hasOption("metrics")) {
+            File file = new File(line.getOptionValue("metrics"));
+            if (file.isDirectory()) {
+                System.err.println("The metrics file " + file + " is a directory.");
+                parsingError = true;
+            } else {
+                setMetricsFile(file);
+            }
+        }
+        return parsingError;
+    }
+
     private boolean parseRarPasswordOption(CommandLine line) {
         boolean parsingError = false;
         if (line.hasOption("rar_password")) {
@@ -446,24 +1026,51 @@ public class BattEngine {
         return parsingError;
     }
 
-    private boolean parseRarOption(CommandLine line) {
+    private boolean parseRarTimeoutOption(CommandLine line) {
         boolean parsingError = false;
-        if (line.hasOption("rar")) {
-            if (RarUtility.isRarAvailable()) {
-                setPerformRar(true);
-            } else {
-                System.err.println("Rar was not found in the current system path, " +
-                        "download rar from http://www.win-rar.com/download.html to enable these features.");
+        if (line.hasOption("rar_timeout")) {
+            String input = line.getOptionValue("rar_timeout");
+            try {
+                setRarTimeout(Long.parseLong(input));
+            } catch (NumberFormatException ex) {
+                System.err.println("You must provide an integer value for rar_timeout.");
+                parsingError = true;
+            }
+
+            if (getRarTimeout() < 0) {
+                System.err.println("You must provide a value of 0 or more for rar_timeout.");
                 parsingError = true;
             }
         }
         return parsingError;
     }
 
-    private void handleParsingErrors(boolean parsingError, Options options) throws Exception {
-        if (parsingError) {
-            System.out.print('\n');
-
+    private boolean parseRarStreamOption(CommandLine line) {
+        boolean parsingError = false;
+        if (line.hasOption("rar_stream")) {
+            setRarStream(true);
+        }
+        return parsingError;
+    }
+
+    private boolean parseRarOption(CommandLine line) {
+        boolean parsingError = false;
+        if (line.hasOption("rar")) {
+            if (RarUtility.isRarAvailable()) {
+                setPerformRar(true);
+            } else {
+                System.err.println("Rar was not found in the current system path, " +
+                        "download rar from http://www.win-rar.com/download.html to enable these features.");
+                parsingError = true;
+            }
+        }
+        return parsingError;
+    }
+
+    private void handleParsingErrors(boolean parsingError, Options options) throws Exception {
+        if (parsingError) {
+            System.out.print('\n');
+
             if (!isSuppressHelp()) {
                 HelpFormatter formatter = new HelpFormatter();
                 formatter.printHelp("bitmapallthethings", options);
@@ -494,13 +1101,25 @@ public class BattEngine {
         parsingError |= parseWidthOption(line);
         parsingError |= parseHeightOption(line);
         parsingError |= parseMaxFileSizeOption(line);
+        parsingError |= parsePixelsOption(line);
         parsingError |= parseBytesPerPixelOption(line);
+        parsingError |= parseThreadsOption(line);
+        parsingError |= parsePackOption(line);
+        parsingError |= parseCompressionOption(line);
+        parsingError |= parseDedupOption(line);
+        parsingError |= parseParityOption(line);
         parsingError |= parseExtensionFilterOption(line);
+        parsingError |= parseArchiveOption(line);
         parsingError |= parseInputTargetOption(line);
+        parsingError |= parseIncrementalOption(line);
+        parsingError |= parseCatalogOption(line);
         parsingError |= parseOutputDirectoryOption(line);
         parsingError |= parseSuppressHelpMessageOption(line);
         parsingError |= parseCleanUpOption(line);
+        parsingError |= parseMetricsOption(line);
         parsingError |= parseRarOption(line);
+        parsingError |= parseGlobOption(line);
+        parsingError |= parseServeOptions(line);
 
         //only parse these if rar is enabled
         if (isPerformRar()) {
@@ -509,6 +1128,8 @@ public class BattEngine {
             parsingError |= parseRarRecoveryOption(line);
             parsingError |= parseRarLocationOption(line);
             parsingError |= parseRarPasswordOption(line);
+            parsingError |= parseRarStreamOption(line);
+            parsingError |= parseRarTimeoutOption(line);
         }
 
         handleParsingErrors(parsingError, options);
@@ -521,108 +1142,805 @@ public class BattEngine {
         System.out.println("Width: " + getWidth());
         System.out.println("Height: " + getHeight());
         System.out.println("Max file size: " + getMaxFileSize());
+        System.out.println("Pixels: " + getPixelBudget());
         System.out.println("Bytes per pixel " + getBytesPerPixel());
+        System.out.println("Threads: " + getThreads());
+        System.out.println("Pack: " + isPack());
+        System.out.println("Compression: " + getCompression());
+        System.out.println("Dedup: " + isDedup());
+        System.out.println("Parity: " + getParityShards() + " per " + getParityData() + " bitmaps");
         System.out.println("Extension filter: " + getExtensionFilter());
         System.out.println("Input target: " + getInputTarget());
+        System.out.println("Archive: " + isArchive());
+        System.out.println("Incremental: " + isIncremental());
+        System.out.println("Catalog: " + isWriteCatalog());
         System.out.println("Output directory: " + getOutputDirectory());
+        System.out.println("Glob: " + getGlob());
+        System.out.println("Port: " + getPort());
+        System.out.println("Cache memory: " + getCacheMemory() / (1024 * 1024) + " MB");
         System.out.println("Suppress help: " + isSuppressHelp());
         System.out.println("Clean up: " + isCleanUp());
+        System.out.println("Metrics file: " + getMetricsFile());
         System.out.println("Perform rar : " + isPerformRar());
         System.out.println("Rar name : " + getRarName());
         System.out.println("Rar compression : " + getRarCompression());
         System.out.println("Rar recovery records : " + getRarRecoveryRecord());
         System.out.println("Rar locations : " + getRarLocation());
         System.out.println("Rar password : " + getRarPassword());
+        System.out.println("Rar stream : " + isRarStream());
+        System.out.println("Rar timeout : " + getRarTimeout());
     }
 
-    private InputStream generateBitmapHeader(int width, int height, int fileSize, int fillerBytes) {
-        ByteBuffer buffer = ByteBuffer.allocate(54);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        buffer.put((byte) 0x42);        //B
-        buffer.put((byte) 0x4D);        //M
-        buffer.putInt(fileSize + 54);        //total file size
-        buffer.putInt(fileSize);        //unofficial -- used to save the file size
-        buffer.putInt(54);               //pixel info offset
-        buffer.putInt(40);              //size of the bitmap info header
-        buffer.putInt(width);           //width
-        buffer.putInt(height);          //height
-        buffer.putShort((short) 1);     //number of color planes
-        buffer.putShort((short) getBytesPerPixel());    //bytes per pixel
-        buffer.putInt(0);               //no compression
-        buffer.putInt(fileSize);       //size of the raw pixel array
-        buffer.putInt(2835);            //horizontal resolution
-        buffer.putInt(2835);            //vertical resolution
-        buffer.putInt(0);               //number of colors
-        buffer.putInt(0);               //important colors
-        return new ByteArrayInputStream(buffer.array());
+    private long decodeBitmap(String filename) throws IOException {
+        File inputFile = new File(filename);
+        return decodeBitmap(inputFile, new File(generateDecodeOutputName(inputFile)));
     }
 
-    private InputStream generateFileInputStream(String filename) throws FileNotFoundException {
-        return new FileInputStream(filename); //this should be read from the internal values
+    private long decodeBitmap(File inputFile, File outputFile) throws IOException {
+        System.out.println("Decoding " + inputFile);
+        long start = System.nanoTime();
+
+        int fileSize;
+        FileInputStream inputStream = new FileInputStream(inputFile);
+        try {
+            FileChannel inputChannel = inputStream.getChannel();
+            BitmapHeader header = readHeader(inputChannel, inputFile.getPath());
+            //read the length we encoded
+            fileSize = header.getPayloadSize();
+
+            //copy exactly the encoded bytes, the padding is never written
+            FileOutputStream outputStream = new FileOutputStream(outputFile);
+            try {
+                long copyStart = System.nanoTime();
+                ChannelUtility.transferFully(inputChannel, header.getPixelOffset(), fileSize, outputStream.getChannel());
+                getMetrics().record(Metrics.COPY, copyStart, 0, fileSize);
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            inputStream.close();
+        }
+        getMetrics().record(Metrics.DECODE, start, 1, fileSize);
+
+        //clean up
+        if (isCleanUp()) {
+            //delete the bitmap
+            deleteFile(inputFile);
+        }
+        return fileSize;
+    }
+
+    private boolean validateParts(List<File> parts, Map<File, BitmapHeader> headers, File outputFile) {
+        //make sure every part is here and they all belong to the same file
+        BitmapHeader first = headers.get(parts.get(0));
+        boolean[] present = new boolean[first.getCount()];
+        for (File part : parts) {
+            BitmapHeader header = headers.get(part);
+            if (header.getType() != first.getType() || header.getCount() != first.getCount()
+                    || header.getTotalSize() != first.getTotalSize() || header.getIndex() < 0
+                    || header.getIndex() >= present.length || present[header.getIndex()]
+                    || header.getOffset() < 0 || header.getOffset() + header.getPayloadSize() > header.getTotalSize()) {
+                reportError("Skipping " + outputFile + ", " + part + " does not belong with "
+                        + parts.get(0) + ".");
+                return false;
+            }
+            present[header.getIndex()] = true;
+        }
+        List<Integer> missing = new ArrayList<Integer>();
+        for (int i = 0; i < present.length; i++) {
+            if (!present[i]) {
+                missing.add(i + 1);
+            }
+        }
+        if (!missing.isEmpty()) {
+            reportError("Skipping " + outputFile + ", parts " + missing + " of " + present.length + " are missing.");
+            return false;
+        }
+        return true;
     }
 
-    private InputStream generateFillerStream(int bytes) {
-        return new ByteArrayInputStream(new byte[bytes]);
+    private boolean decodeCompressedFile(List<File> parts, Map<File, BitmapHeader> headers) throws Exception {
+        BitmapHeader first = headers.get(parts.get(0));
+        File outputFile = new File(generateOutputName(FilenameUtils.getName(first.getName())));
+        if (!validateParts(parts, headers, outputFile)) {
+            return false;
+        }
+
+        System.out.println("Decompressing " + outputFile + " from " + parts.size() + " bitmaps");
+        long start = System.nanoTime();
+        long rawSize;
+        //the blocks are written in order, so only the few that are in flight are held in memory whatever the size
+        FileOutputStream output = new FileOutputStream(outputFile);
+        try {
+            rawSize = writeCompressedPayload(parts, headers, output.getChannel());
+        } catch (IOException ex) {
+            reportError(outputFile + " is incomplete: " + ex.getMessage());
+            return false;
+        } finally {
+            output.close();
+        }
+        getMetrics().record(Metrics.DECODE, start, 1, rawSize);
+
+        //clean up
+        if (isCleanUp()) {
+            for (File part : parts) {
+                deleteFile(part);
+            }
+        }
+        return true;
     }
 
-    private void decodeBitmap(String filename) throws IOException {
-        System.out.println("Decoding " + filename);
+    private boolean decodeChunkedFile(List<File> chunks, final Map<File, BitmapHeader> headers) throws Exception {
+        BitmapHeader first = headers.get(chunks.get(0));
+        File outputFile = new File(generateOutputName(FilenameUtils.getName(first.getName())));
+        if (!validateParts(chunks, headers, outputFile)) {
+            return false;
+        }
 
-        File inputFile = new File(filename);
-        File outputFile = new File(outputDirectory + File.separator + FilenameUtils.removeExtension(inputFile.getName()));
-
-        FileInputStream fis = new FileInputStream(filename);
-        //skip 6 bytes
-        fis.skip(6);
-        //read the length we encoded
-        int fileSize = EndianUtils.readSwappedInteger(fis);
-        //skip the rest of the header
-        fis.skip(44);
-        Files.copy(fis, outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-        //truncate the file
-        FileChannel outChan = new FileOutputStream(outputFile, true).getChannel();
-        outChan.truncate(fileSize);
-        outChan.close();
+        System.out.println("Reassembling " + outputFile + " from " + chunks.size() + " bitmaps");
+        long start = System.nanoTime();
+        RandomAccessFile output = new RandomAccessFile(outputFile, "rw");
+        try {
+            output.setLength(first.getTotalSize());
+            final FileChannel outputChannel = output.getChannel();
+
+            //every part lands at its own offset, so they can be written in any order
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (final File chunk : chunks) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        System.out.println("Decoding " + chunk);
+                        BitmapHeader header = headers.get(chunk);
+                        FileInputStream inputStream = new FileInputStream(chunk);
+                        try {
+                            long copyStart = System.nanoTime();
+                            ChannelUtility.transferFully(inputStream.getChannel(), header.getPixelOffset(),
+                                    header.getPayloadSize(), outputChannel, header.getOffset());
+                            getMetrics().record(Metrics.COPY, copyStart, 0, header.getPayloadSize());
+                        } catch (Exception ex) {
+                            throw new Exception("Failed to decode " + chunk.getAbsolutePath() + ": " + ex.getMessage(), ex);
+                        } finally {
+                            inputStream.close();
+                        }
+                        return null;
+                    }
+                });
+            }
+            if (TaskUtility.executeTasks(tasks, getThreads()) > 0) {
+                reportError(outputFile + " is incomplete (see above).");
+                return false;
+            }
+        } finally {
+            output.close();
+        }
+        getMetrics().record(Metrics.DECODE, start, 1, first.getTotalSize());
 
         //clean up
         if (isCleanUp()) {
-            //delete the bitmap
-            System.out.println("Deleting: " + inputFile);
-            FileUtils.deleteQuietly(inputFile);
+            for (File chunk : chunks) {
+                deleteFile(chunk);
+            }
         }
+        return true;
     }
 
-    private void generateBitmap(String inputName, String outputName) throws Exception {
-        System.out.println("Generating " + outputName);
+    private BitmapHeader readHeader(FileChannel channel, String filename) throws IOException {
+        ByteBuffer scratch = directBuffers.acquire();
+        try {
+            return BitmapHeader.read(channel, filename, scratch);
+        } catch (RuntimeException ex) {
+            //whatever else the parser trips over, the bitmap is corrupt and parity may still rebuild it
+            throw new IOException(filename + " has a corrupt B.A.T.T. header.", ex);
+        } finally {
+            directBuffers.release(scratch);
+        }
+    }
+
+    private BitmapHeader readHeader(File file) throws IOException {
+        ByteBuffer scratch = directBuffers.acquire();
+        try {
+            return BitmapHeader.read(file, scratch);
+        } catch (RuntimeException ex) {
+            //as above, parity may still rebuild it
+            throw new IOException(file.getPath() + " has a corrupt B.A.T.T. header.", ex);
+        } finally {
+            directBuffers.release(scratch);
+        }
+    }
+
+    private void writeHeader(WritableByteChannel channel, BitmapHeader header) throws IOException {
+        ByteBuffer buffer = directBuffers.acquire(header.calculateHeaderSize());
+        try {
+            header.write(buffer);
+            buffer.flip();
+            ChannelUtility.writeFully(channel, buffer);
+        } finally {
+            directBuffers.release(buffer);
+        }
+    }
 
-        File input = new File(inputName);
-        int size = (int) new FileInputStream(inputName).getChannel().size();
+    private int prepareBitmapHeader(BitmapHeader header, int size) {
+        return header.layout(getGeometryPlanner().plan(size), size);
+    }
 
-        if (size > getMaxFileSize()) {
-            System.err.println("ERROR: Skipping " + inputName + " the file size is larger than the maximum size allowed.");
-            return;
+    private void extractPackedEntry(File bitmap, BitmapHeader header, BitmapHeader.Entry entry, File outputFile) throws IOException {
+        System.out.println("Extracting " + entry.getName() + " from " + bitmap);
+        long start = System.nanoTime();
+        FileInputStream inputStream = new FileInputStream(bitmap);
+        try {
+            FileOutputStream outputStream = new FileOutputStream(outputFile);
+            try {
+                //only this entry's bytes are read, the rest of the bitmap is never touched
+                long copyStart = System.nanoTime();
+                ChannelUtility.transferFully(inputStream.getChannel(), header.getPixelOffset() + entry.getOffset(),
+                        entry.getSize(), outputStream.getChannel());
+                getMetrics().record(Metrics.COPY, copyStart, 0, entry.getSize());
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            inputStream.close();
+        }
+        getMetrics().record(Metrics.DECODE, start, 1, entry.getSize());
+    }
+
+    private void decodePackedBitmaps(List<File> bitmaps, Map<File, BitmapHeader> headers) throws Exception {
+        //entries that decode to the same output name are extracted one after another, never raced
+        Map<String, List<Callable<Void>>> groups = new LinkedHashMap<String, List<Callable<Void>>>();
+        for (final File bitmap : bitmaps) {
+            final BitmapHeader header = headers.get(bitmap);
+            for (final BitmapHeader.Entry entry : header.getEntries()) {
+                final File outputFile = new File(generateOutputName(FilenameUtils.getName(entry.getName())));
+                if (!groups.containsKey(outputFile.getPath())) {
+                    groups.put(outputFile.getPath(), new ArrayList<Callable<Void>>());
+                } else {
+                    System.err.println("WARNING: " + entry.getName() + " in " + bitmap
+                            + " decodes to an existing output name, only the last one will be kept.");
+                }
+                groups.get(outputFile.getPath()).add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            extractPackedEntry(bitmap, header, entry, outputFile);
+                        } catch (Exception ex) {
+                            throw new Exception("Failed to extract " + entry.getName() + " from " + bitmap.getAbsolutePath()
+                                    + ": " + ex.getMessage(), ex);
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final List<Callable<Void>> group : groups.values()) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (Callable<Void> extraction : group) {
+                        extraction.call();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        int failures = TaskUtility.executeTasks(tasks, getThreads());
+        if (failures > 0) {
+            reportError(failures + " files could not be extracted from packed bitmaps (see above).");
+        } else if (isCleanUp()) {
+            for (File bitmap : bitmaps) {
+                deleteFile(bitmap);
+            }
+        }
+    }
+
+    private void restoreRecipe(BitmapHeader recipe, Map<String, PayloadReader> readers, File outputFile) throws IOException {
+        System.out.println("Restoring " + outputFile + " from " + recipe.getEntries().size() + " chunks");
+        long start = System.nanoTime();
+        long size = 0;
+        ByteBuffer buffer = directBuffers.acquire();
+        FileOutputStream outputStream = new FileOutputStream(outputFile);
+        try {
+            FileChannel outputChannel = outputStream.getChannel();
+            for (BitmapHeader.Entry entry : recipe.getEntries()) {
+                PayloadReader reader = readers.get(entry.getName());
+                if (reader == null) {
+                    throw new IOException("the chunk store " + entry.getName() + " is missing.");
+                }
+                //the chunks are read in pool sized pieces, straight from the store into the output
+                for (long position = 0; position < entry.getSize(); position += buffer.capacity()) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), entry.getSize() - position));
+                    reader.read(buffer, entry.getOffset() + position);
+                    buffer.flip();
+                    ChannelUtility.writeFully(outputChannel, buffer);
+                }
+                size += entry.getSize();
+            }
+        } finally {
+            outputStream.close();
+            directBuffers.release(buffer);
+        }
+        if (size != recipe.getTotalSize()) {
+            throw new IOException("the chunks add up to " + size + " bytes instead of " + recipe.getTotalSize() + ".");
+        }
+        getMetrics().record(Metrics.DECODE, start, 1, size);
+    }
+
+    private void decodeRecipes(List<File> recipes, Map<String, List<File>> stores, final Map<File, BitmapHeader> headers) throws Exception {
+        final Map<String, PayloadReader> readers = new HashMap<String, PayloadReader>();
+        try {
+            for (Map.Entry<String, List<File>> store : stores.entrySet()) {
+                if (validateParts(store.getValue(), headers, new File(store.getKey()))) {
+                    readers.put(store.getKey(), new PayloadReader(store.getValue(), headers));
+                }
+            }
+
+            //recipes that restore to the same output name would race, the last one wins as it does everywhere else
+            Map<String, File> outputs = new LinkedHashMap<String, File>();
+            for (File recipe : recipes) {
+                String outputName = generateOutputName(FilenameUtils.getName(headers.get(recipe).getName()));
+                if (outputs.put(outputName, recipe) != null) {
+                    System.err.println("WARNING: " + recipe + " decodes to an existing output name, only the last one will be kept.");
+                }
+            }
+
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (final Map.Entry<String, File> output : outputs.entrySet()) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            restoreRecipe(headers.get(output.getValue()), readers, new File(output.getKey()));
+                        } catch (Exception ex) {
+                            throw new Exception("Failed to restore " + output.getKey() + " from " + output.getValue().getAbsolutePath()
+                                    + ": " + ex.getMessage(), ex);
+                        }
+                        return null;
+                    }
+                });
+            }
+
+            int failures = TaskUtility.executeTasks(tasks, getThreads());
+            if (failures > 0) {
+                reportError(failures + " deduplicated files could not be restored (see above).");
+            } else if (isCleanUp()) {
+                //the chunk stores stay, later runs into the same directory still point into them
+                for (File recipe : recipes) {
+                    deleteFile(recipe);
+                }
+            }
+        } finally {
+            for (PayloadReader reader : readers.values()) {
+                reader.close();
+            }
+        }
+    }
+
+    private void writeBitmap(FileChannel inputChannel, long position, int size, BitmapHeader header, String outputName) throws IOException {
+        long start = System.nanoTime();
+        int fillerBytes = prepareBitmapHeader(header, size);
+
+        FileOutputStream outputStream = new FileOutputStream(outputName);
+        try {
+            FileChannel outputChannel = outputStream.getChannel();
+            writeHeader(outputChannel, header);
+            getMetrics().record(Metrics.HEADER, start, 0, header.getPixelOffset());
+
+            long copyStart = System.nanoTime();
+            ChannelUtility.transferFully(inputChannel, position, size, outputChannel);
+            ChannelUtility.writeZeros(outputChannel, fillerBytes);
+            getMetrics().record(Metrics.COPY, copyStart, 0, size);
+        } finally {
+            outputStream.close();
+        }
+        registerBitmap(new File(outputName));
+    }
+
+    private void writePackedBitmap(List<File> files, int index, int count, String outputName) throws IOException {
+        System.out.println("Generating " + outputName + " from " + files.size() + " files");
+        long start = System.nanoTime();
+
+        BitmapHeader header = new BitmapHeader();
+        header.setType(BitmapHeader.TYPE_PACKED);
+        header.setIndex(index);
+        header.setCount(count);
+        long size = 0;
+        for (File file : files) {
+            header.addEntry(getFileName(file), file.length());
+            size += file.length();
+        }
+        int fillerBytes = prepareBitmapHeader(header, (int) size);
+
+        FileOutputStream outputStream = new FileOutputStream(outputName);
+        try {
+            FileChannel outputChannel = outputStream.getChannel();
+            writeHeader(outputChannel, header);
+            getMetrics().record(Metrics.HEADER, start, 0, header.getPixelOffset());
+
+            long copyStart = System.nanoTime();
+            for (int i = 0; i < files.size(); i++) {
+                FileInputStream inputStream = new FileInputStream(files.get(i));
+                try {
+                    ChannelUtility.transferFully(inputStream.getChannel(), 0, header.getEntries().get(i).getSize(), outputChannel);
+                } finally {
+                    inputStream.close();
+                }
+            }
+            ChannelUtility.writeZeros(outputChannel, fillerBytes);
+            getMetrics().record(Metrics.COPY, copyStart, files.size(), size);
+        } finally {
+            outputStream.close();
+        }
+        registerBitmap(new File(outputName));
+    }
+
+    private void writeBitmap(InputStream inputStream, int size, BitmapHeader header, String outputName, String inputName) throws IOException {
+        long start = System.nanoTime();
+        int fillerBytes = prepareBitmapHeader(header, size);
+
+        FileOutputStream outputStream = new FileOutputStream(outputName);
+        try {
+            FileChannel outputChannel = outputStream.getChannel();
+            writeHeader(outputChannel, header);
+            getMetrics().record(Metrics.HEADER, start, 0, header.getPixelOffset());
+
+            long copyStart = System.nanoTime();
+            copyFully(inputStream, size, outputStream, inputName);
+            ChannelUtility.writeZeros(outputChannel, fillerBytes);
+            getMetrics().record(Metrics.COPY, copyStart, 0, size);
+        } finally {
+            outputStream.close();
+        }
+        registerBitmap(new File(outputName));
+    }
+
+    private BitmapHeader createChunkHeader(String outputName, long size, int index, int count) {
+        BitmapHeader header = new BitmapHeader();
+        header.setType(BitmapHeader.TYPE_CHUNK);
+        header.setName(generatePayloadName(outputName));
+        header.setTotalSize(size);
+        header.setOffset(index * getPayloadLimit());
+        header.setIndex(index);
+        header.setCount(count);
+        return header;
+    }
+
+    private int countChunks(String inputName, long size) throws IOException {
+        long count = (size + getPayloadLimit() - 1) / getPayloadLimit();
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException(inputName + " would need " + count + " bitmaps, raise the max file size.");
+        }
+        System.out.println("Splitting " + inputName + " across " + count + " bitmaps");
+        return (int) count;
+    }
+
+    private void generateChunkedBitmaps(String inputName, String outputName, FileChannel inputChannel, long size) throws Exception {
+        //stripe the file across as many bitmaps as it takes, each one records where its bytes belong
+        int count = countChunks(inputName, size);
+        for (int index = 0; index < count; index++) {
+            long offset = index * getPayloadLimit();
+            String chunkName = BitmapWriter.generatePartName(outputName, index, count);
+            System.out.println("Generating " + chunkName);
+            writeBitmap(inputChannel, offset, (int) Math.min(getPayloadLimit(), size - offset),
+                    createChunkHeader(outputName, size, index, count), chunkName);
+        }
+    }
+
+    private void generateChunkedBitmaps(String inputName, String outputName, InputStream inputStream, long size) throws Exception {
+        //same layout as a chunked file, the parts are just written one after another
+        int count = countChunks(inputName, size);
+        for (int index = 0; index < count; index++) {
+            long offset = index * getPayloadLimit();
+            String chunkName = BitmapWriter.generatePartName(outputName, index, count);
+            System.out.println("Generating " + chunkName);
+            writeBitmap(inputStream, (int) Math.min(getPayloadLimit(), size - offset),
+                    createChunkHeader(outputName, size, index, count), chunkName, inputName);
+        }
+    }
+
+    /**
+     * Hands out the blocks of a payload to compress, strictly in order.
+     */
+    private interface BlockSource {
+        /**
+         * @return the compression task of the next block, null once the payload is exhausted
+         */
+        Callable<ByteBuffer> nextBlock() throws IOException;
+
+        /**
+         * @return the number of raw bytes handed out so far
+         */
+        long getPosition();
+    }
+
+    /**
+     * @param size the raw size, -1 if it is only known once the source is exhausted
+     * @return the raw size
+     */
+    private long generateCompressedBitmaps(String inputName, String outputName, long size, BlockSource source) throws Exception {
+        System.out.println("Compressing " + inputName + " with " + getCompression());
+        BitmapWriter writer = new BitmapWriter(outputName, generatePayloadName(outputName), BitmapHeader.TYPE_COMPRESSED,
+                getPayloadLimit(), getGeometryPlanner());
+        LinkedList<Future<ByteBuffer>> pending = new LinkedList<Future<ByteBuffer>>();
+        try {
+            writer.write(CompressionUtility.createStreamHeader(getCompression(), size));
+            //blocks are compressed on the shared pool but written strictly in order, only a few are kept in flight
+            Callable<ByteBuffer> block;
+            while ((block = source.nextBlock()) != null) {
+                pending.add(getCompressionExecutor().submit(block));
+                if (pending.size() >= getThreads() * 2) {
+                    writer.write(pending.removeFirst().get());
+                }
+            }
+            while (!pending.isEmpty()) {
+                writer.write(pending.removeFirst().get());
+            }
+            if (size < 0) {
+                writer.patchPayload(CompressionUtility.createStreamHeader(getCompression(), source.getPosition()));
+            } else if (source.getPosition() != size) {
+                throw new EOFException(inputName + " is truncated.");
+            }
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause().getMessage(), ex.getCause());
+        } finally {
+            for (Future<ByteBuffer> future : pending) {
+                future.cancel(true);
+            }
+            writer.close();
+        }
+        for (File bitmap : writer.getFiles()) {
+            registerBitmap(bitmap);
+        }
+        return source.getPosition();
+    }
+
+    private BlockSource createFileBlockSource(final FileChannel inputChannel, final long size) {
+        final String codec = getCompression();
+        return new BlockSource() {
+            private long position = 0;
+
+            @Override
+            public Callable<ByteBuffer> nextBlock() {
+                if (position >= size) {
+                    return null;
+                }
+                final long blockPosition = position;
+                final int blockLength = (int) Math.min(CompressionUtility.BLOCK_SIZE, size - position);
+                position += blockLength;
+                //the workers read their own blocks
+                return new Callable<ByteBuffer>() {
+                    @Override
+                    public ByteBuffer call() throws Exception {
+                        long blockStart = System.nanoTime();
+                        ByteBuffer block = CompressionUtility.compressBlock(codec, inputChannel, blockPosition, blockLength);
+                        getMetrics().record(Metrics.COMPRESS, blockStart, 0, blockLength);
+                        return block;
+                    }
+                };
+            }
+
+            @Override
+            public long getPosition() {
+                return position;
+            }
+        };
+    }
+
+    private BlockSource createStreamBlockSource(final InputStream inputStream, final byte[] firstBlock, final int firstLength) {
+        final String codec = getCompression();
+        return new BlockSource() {
+            private long position = 0;
+
+            @Override
+            public Callable<ByteBuffer> nextBlock() throws IOException {
+                //a stream can only be read in order, so the blocks are read here and compressed by the workers
+                final byte[] raw = position == 0 ? firstBlock : new byte[CompressionUtility.BLOCK_SIZE];
+                final int blockLength = position == 0 ? firstLength : IOUtils.read(inputStream, raw);
+                if (blockLength == 0) {
+                    return null;
+                }
+                position += blockLength;
+                return new Callable<ByteBuffer>() {
+                    @Override
+                    public ByteBuffer call() throws Exception {
+                        long blockStart = System.nanoTime();
+                        ByteBuffer block = CompressionUtility.compressBlock(codec, raw, blockLength);
+                        getMetrics().record(Metrics.COMPRESS, blockStart, 0, blockLength);
+                        return block;
+                    }
+                };
+            }
+
+            @Override
+            public long getPosition() {
+                return position;
+            }
+        };
+    }
+
+    //package visible for the benchmarks
+    void generateBitmap(String inputName, String outputName) throws Exception {
+        long start = System.nanoTime();
+        FileInputStream inputStream = new FileInputStream(inputName);
+        try {
+            FileChannel inputChannel = inputStream.getChannel();
+            long size = inputChannel.size();
+
+            if (isDedup()) {
+                generateDedupBitmap(inputStream, inputName, outputName);
+            } else if (getCompression() != null && CompressionUtility.isCompressible(inputChannel, size)) {
+                generateCompressedBitmaps(inputName, outputName, size, createFileBlockSource(inputChannel, size));
+            } else if (size > getPayloadLimit()) {
+                generateChunkedBitmaps(inputName, outputName, inputChannel, size);
+            } else {
+                System.out.println("Generating " + outputName);
+                writeBitmap(inputChannel, 0, (int) size, new BitmapHeader(), outputName);
+            }
+            getMetrics().record(Metrics.ENCODE, start, 1, size);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private long generateStreamedBitmaps(String outputName, InputStream inputStream) throws IOException {
+        //the writer starts a new part whenever the current one is full, at most one buffer is held in memory
+        BitmapWriter writer = new BitmapWriter(outputName, generatePayloadName(outputName), BitmapHeader.TYPE_CHUNK,
+                getPayloadLimit(), getGeometryPlanner());
+        long copyStart = System.nanoTime();
+        ByteBuffer buffer = heapBuffers.acquire();
+        try {
+            int count;
+            while ((count = inputStream.read(buffer.array(), buffer.arrayOffset(), buffer.capacity())) != -1) {
+                buffer.clear();
+                buffer.limit(count);
+                writer.write(buffer);
+            }
+        } finally {
+            heapBuffers.release(buffer);
+            writer.close();
+        }
+        getMetrics().record(Metrics.COPY, copyStart, 0, writer.getTotalSize());
+        for (File bitmap : writer.getFiles()) {
+            registerBitmap(bitmap);
+        }
+        return writer.getTotalSize();
+    }
+
+    /**
+     * Encodes a payload that can only be read once, front to back. The input stream is left right
+     * after the payload.
+     *
+     * @param size the size of the payload, -1 to read until the end of the stream
+     */
+    private void generateBitmap(InputStream inputStream, String inputName, long size, String outputName) throws Exception {
+        long start = System.nanoTime();
+        //without random access only the first block can be sampled for compression
+        byte[] firstBlock = null;
+        int firstLength = 0;
+        if (getCompression() != null && size != 0) {
+            firstBlock = new byte[(int) (size < 0 ? CompressionUtility.BLOCK_SIZE : Math.min(CompressionUtility.BLOCK_SIZE, size))];
+            firstLength = IOUtils.read(inputStream, firstBlock);
         }
 
-        int height = (size / (getBytesPerPixel() / 8)) / getWidth();
-        int fillerBytes = (size / (getBytesPerPixel() / 8)) % getWidth();
+        if (isDedup()) {
+            //the chunker reads to the end, keep it out of whatever follows the payload
+            long dedupSize = generateDedupBitmap(size < 0 ? inputStream : new BoundedInputStream(inputStream, size), inputName, outputName);
+            if (size >= 0 && dedupSize != size) {
+                throw new EOFException(inputName + " ended after " + dedupSize + " of " + size + " bytes.");
+            }
+            size = dedupSize;
+        } else if (firstBlock != null && CompressionUtility.isCompressible(firstBlock, firstLength)) {
+            size = generateCompressedBitmaps(inputName, outputName, size, createStreamBlockSource(inputStream, firstBlock, firstLength));
+        } else {
+            if (firstBlock != null) {
+                //put the sampled block back in front of the rest
+                inputStream = new SequenceInputStream(new ByteArrayInputStream(firstBlock, 0, firstLength), inputStream);
+            }
+            if (size < 0) {
+                size = generateStreamedBitmaps(outputName, inputStream);
+            } else if (size > getPayloadLimit()) {
+                generateChunkedBitmaps(inputName, outputName, inputStream, size);
+            } else {
+                System.out.println("Generating " + outputName);
+                writeBitmap(inputStream, (int) size, new BitmapHeader(), outputName, inputName);
+            }
+        }
+        getMetrics().record(Metrics.ENCODE, start, 1, size);
+    }
 
-        //encode (repeat this for each file in a directory)
-        InputStream header = generateBitmapHeader(getWidth(), height, size, fillerBytes);
-        InputStream file = generateFileInputStream(inputName);
-        InputStream filler = generateFillerStream(fillerBytes);
+    private synchronized ChunkIndex getChunkIndex() throws IOException {
+        if (chunkIndex == null) {
+            File indexFile = new File(getOutputDirectory(), ChunkIndex.FILENAME);
+            chunkIndex = ChunkIndex.load(indexFile);
+            int forgotten = chunkIndex.removeMissingStores(new File(getOutputDirectory()));
+            if (forgotten > 0) {
+                System.err.println("WARNING: " + forgotten + " chunks of " + indexFile + " are in chunk stores that are gone, they will be stored again.");
+            }
+        }
+        return chunkIndex;
+    }
+
+    /**
+     * Looks the chunk up and appends it to this run's chunk store if no run has stored it yet.
+     *
+     * @return where the chunk is stored
+     */
+    private synchronized ChunkIndex.Location storeChunk(byte[] hash, ByteBuffer chunk) throws IOException {
+        ChunkIndex index = getChunkIndex();
+        ChunkIndex.Location location = index.find(hash);
+        if (location == null) {
+            if (chunkStore == null) {
+                String storeName = "chunks-" + Long.toString(System.currentTimeMillis(), 36);
+                while (ChunkIndex.isStorePresent(new File(getOutputDirectory()), storeName)) {
+                    storeName += "x";
+                }
+                chunkStore = new BitmapWriter(generateOutputName(storeName + ".bmp"), storeName, BitmapHeader.TYPE_STORE,
+                        getPayloadLimit(), getGeometryPlanner());
+                chunkStoreName = storeName;
+            }
+            location = new ChunkIndex.Location(chunkStoreName, chunkStore.getTotalSize(), chunk.remaining());
+            chunkStore.write(chunk);
+            index.add(hash, location);
+            storedChunks++;
+            storedBytes += location.getLength();
+        }
+        return location;
+    }
+
+    /**
+     * Splits the payload into chunks, stores the new ones and writes the recipe bitmap that lists them all.
+     *
+     * @return the size of the payload
+     */
+    private long generateDedupBitmap(InputStream inputStream, String inputName, String outputName) throws Exception {
+        long start = System.nanoTime();
+        BitmapHeader header = new BitmapHeader();
+        header.setType(BitmapHeader.TYPE_RECIPE);
+        header.setName(generatePayloadName(outputName));
+
+        MessageDigest digest = ChunkIndex.createDigest();
+        ContentChunker chunker = new ContentChunker(inputStream);
+        long size = 0;
+        ByteBuffer chunk;
+        while ((chunk = chunker.next()) != null) {
+            digest.update(chunk.duplicate());
+            ChunkIndex.Location location = storeChunk(digest.digest(), chunk);
+            header.getEntries().add(new BitmapHeader.Entry(location.getStore(), location.getOffset(), location.getLength()));
+            size += location.getLength();
+        }
+        header.setTotalSize(size);
+        getMetrics().record(Metrics.DEDUP, start, 0, size);
 
-        Vector<InputStream> inputStreams = new Vector<InputStream>();
-        inputStreams.add(header);
-        inputStreams.add(file);
-        inputStreams.add(filler);
+        System.out.println("Generating " + outputName);
+        writeBitmap(new ByteArrayInputStream(new byte[0]), 0, header, outputName, inputName);
+        return size;
+    }
 
-        SequenceInputStream inputStream = new SequenceInputStream(inputStreams.elements());
-        Files.copy(inputStream, new File(outputName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    /**
+     * Completes this run's chunk store and only then records its chunks in the index, a run that
+     * fails before this point leaves the index as it was.
+     */
+    private synchronized void finishDedup() throws IOException {
+        if (chunkIndex == null) {
+            return;
+        }
+        if (chunkStore != null) {
+            chunkStore.close();
+            for (File bitmap : chunkStore.getFiles()) {
+                registerBitmap(bitmap);
+            }
+        }
+        chunkIndex.save();
+        System.out.println("Stored " + storedChunks + " new chunks (" + storedBytes + " bytes), the chunk index holds "
+                + chunkIndex.size() + " chunks");
     }
 
     private void createOutputDirectory() {
         File output = new File(outputDirectory);
-        if (!output.exists()) {
+        if (!isStdoutOutput() && !output.exists()) {
             output.mkdirs();
         }
     }
@@ -648,7 +1966,7 @@ public class BattEngine {
         command.add("-ep1");
         command.add("-m" + getRarCompression());
         command.add("-rr" + getRarRecoveryRecord());
-        command.add("-v" + getMaxFileSize() + "b");
+        command.add("-v" + getPayloadLimit() + "b");
         if(getRarPassword() != null && !getRarPassword().trim().isEmpty()) {
             command.add("-hp" + getRarPassword());
         }
@@ -670,8 +1988,98 @@ public class BattEngine {
         return command;
     }
 
+    private List<File> findRarVolumes() {
+        //rar names the volumes <name>.partN.rar, or just <name>.rar when everything fits into one
+        String baseName = new File(determineRarFilename()).getName();
+        if (baseName.toLowerCase().endsWith(".rar")) {
+            baseName = baseName.substring(0, baseName.length() - ".rar".length());
+        }
+        Pattern pattern = Pattern.compile(Pattern.quote(baseName) + "(?:\\.part(\\d+))?\\.rar", Pattern.CASE_INSENSITIVE);
+
+        List<File> volumes = new ArrayList<File>();
+        final Map<File, Integer> parts = new HashMap<File, Integer>();
+        File[] files = new File(getOutputDirectory()).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = pattern.matcher(file.getName());
+                if (file.isFile() && matcher.matches()) {
+                    volumes.add(file);
+                    parts.put(file, matcher.group(1) != null ? Integer.parseInt(matcher.group(1)) : 0);
+                }
+            }
+        }
+        Collections.sort(volumes, new Comparator<File>() {
+            @Override
+            public int compare(File left, File right) {
+                return parts.get(left).compareTo(parts.get(right));
+            }
+        });
+        return volumes;
+    }
+
     private void executeRar() throws Exception {
-        CommandUtility.executeCommand(generateRarCommand());
+        //left over volumes of an earlier run would look finished, rar would overwrite them anyway
+        for (File volume : findRarVolumes()) {
+            System.out.println("Deleting stale volume " + volume.getAbsolutePath());
+            FileUtils.deleteQuietly(volume);
+        }
+
+        long start = System.nanoTime();
+        ManagedProcess process = CommandUtility.startCommand(generateRarCommand(), getRarTimeout() * 1000);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, getThreads()));
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        Set<File> submitted = new HashSet<File>();
+        long size = 0;
+        try {
+            //encode every volume as soon as rar has moved on to the next one instead of waiting for the
+            //whole archive, with clean up on only a few volumes are ever on disk at the same time
+            boolean running = true;
+            while (running) {
+                //check before listing, once rar has exited every volume on disk is complete
+                running = process.isRunning();
+                if (!running && process.isTimedOut()) {
+                    //rar was stopped halfway through a volume, there's nothing more to encode
+                    break;
+                }
+                List<File> volumes = findRarVolumes();
+                int finished = running ? volumes.size() - 1 : volumes.size();
+                for (int i = 0; i < finished; i++) {
+                    final File volume = volumes.get(i);
+                    if (submitted.add(volume)) {
+                        size += volume.length();
+                        futures.add(executor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws Exception {
+                                try {
+                                    encodeFile(volume);
+                                } catch (Exception ex) {
+                                    throw new Exception("Failed to encode " + volume.getAbsolutePath() + ": " + ex.getMessage(), ex);
+                                }
+                                return null;
+                            }
+                        }));
+                    }
+                }
+                if (running) {
+                    Thread.sleep(RAR_POLL_INTERVAL);
+                }
+            }
+
+            int exitCode = process.waitFor();
+            int failures = TaskUtility.waitForTasks(futures);
+            getMetrics().record(Metrics.RAR, start, submitted.size(), size);
+            if (failures > 0) {
+                reportError(failures + " of " + futures.size() + " rar volumes could not be encoded (see above).");
+            }
+            //1 only means rar had warnings
+            if (exitCode > 1) {
+                throw new Exception("rar failed with exit code " + exitCode + ", the encoded archive is incomplete.");
+            }
+        } finally {
+            executor.shutdownNow();
+            //only does something when we bailed out early
+            process.destroy();
+        }
     }
 
     private File locateFirstRar() {
@@ -693,11 +2101,31 @@ public class BattEngine {
         return returnValue;
     }
 
+    private List<String> generateStreamingUnrarCommand(String filename) {
+        List<String> command = new ArrayList<String>();
+        command.add("rar");
+        command.add("x");
+        //no -y, with it rar gives up on a volume that isn't decoded yet instead of asking for it
+        command.add("-o+");
+        if(getRarPassword() != null && !getRarPassword().trim().isEmpty()) {
+            command.add("-hp" + getRarPassword());
+        }
+        command.add(filename);
+        command.add(getOutputDirectory());
+        return command;
+    }
+
     private void executeUnrar() throws Exception {
         //locate the proper rar
         File firstRar = locateFirstRar();
         if (firstRar != null) {
-            CommandUtility.executeCommand(generateUnrarCommand(firstRar.getAbsolutePath()));
+            long start = System.nanoTime();
+            int exitCode = CommandUtility.executeCommand(generateUnrarCommand(firstRar.getAbsolutePath()), getRarTimeout() * 1000);
+            //1 only means rar had warnings
+            if (exitCode > 1) {
+                throw new Exception("rar failed with exit code " + exitCode + " while extracting " + firstRar + ".");
+            }
+            getMetrics().record(Metrics.UNRAR, start, 1, firstRar.length());
         } else {
             System.out.println("Could not locate a rar to extract.");
         }
@@ -707,106 +2135,1697 @@ public class BattEngine {
         return getOutputDirectory() + File.separator + fileName;
     }
 
-    private void performDecode() throws Exception {
-        if (isInputTargetADirectory()) {
-            String extension = "bmp";
-            String[] extensions = new String[]{extension};
-            List<File> files = (List<File>) FileUtils.listFiles(getInputTarget(), extensions, true);
-            for (File file : files) {
-                decodeBitmap(file.getAbsolutePath());
-            }
-        } else {
-            //process a single file
-            decodeBitmap(getInputTarget().getAbsolutePath());
-        }
+    /**
+     * @return the name the payload of the bitmap decodes to, the same name a plain bitmap decodes to
+     */
+    private String generatePayloadName(String outputName) {
+        return FilenameUtils.removeExtension(FilenameUtils.getName(outputName));
     }
 
-    private void performEncoding() throws Exception {
+    private String generateDecodeOutputName(File file) {
+        return generateOutputName(FilenameUtils.removeExtension(file.getName()));
+    }
 
-        if (isInputTargetADirectory()) {
-            String extension = "*";
-            if (getExtensionFilter() != null) {
-                extension = getExtensionFilter();
+    private void performParallelDecode(List<File> files) throws Exception {
+        //bitmaps that decode to the same output name are never raced, they are decoded one after
+        //another in listing order (the last one wins, just like the serial path)
+        Map<String, List<File>> groups = new LinkedHashMap<String, List<File>>();
+        for (File file : files) {
+            String outputName = generateDecodeOutputName(file);
+            if (!groups.containsKey(outputName)) {
+                groups.put(outputName, new ArrayList<File>());
+            } else {
+                System.err.println("WARNING: " + file.getAbsolutePath() + " decodes to the same output as "
+                        + groups.get(outputName).get(0).getAbsolutePath() + ", only the last one will be kept.");
             }
-            String[] extensions = new String[]{extension};
-            List<File> files = (List<File>) FileUtils.listFiles(getInputTarget(), extensions, true);
-            for (File file : files) {
-                generateBitmap(file.getAbsolutePath(), generateOutputName(file.getName() + ".bmp"));
-                if(isCleanUp() && isPerformRar()) {
-                    System.out.println("Deleting " + file.getAbsolutePath());
-                    FileUtils.deleteQuietly(file);
+            groups.get(outputName).add(file);
+        }
+
+        final AtomicLong decodedFiles = new AtomicLong();
+        final AtomicLong decodedBytes = new AtomicLong();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final List<File> group : groups.values()) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (File file : group) {
+                        try {
+                            decodedBytes.addAndGet(decodeBitmap(file.getAbsolutePath()));
+                            decodedFiles.incrementAndGet();
+                        } catch (Exception ex) {
+                            throw new Exception("Failed to decode " + file.getAbsolutePath() + ": " + ex.getMessage(), ex);
+                        }
+                    }
+                    return null;
                 }
-            }
-        } else {
-            //process a single file
-            generateBitmap(getInputTarget().getAbsolutePath(), generateOutputName(getInputTarget().getName()));
+            });
         }
-    }
 
-    private boolean isInputTargetADirectory() {
-        return getInputTarget().isDirectory();
-    }
+        long start = System.nanoTime();
+        int failures = TaskUtility.executeTasks(tasks, getThreads());
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1000000000.0;
 
-    private boolean isEncode() {
-        boolean returnValue = false;
-        if (getAction().equalsIgnoreCase("encode")) {
-            returnValue = true;
+        System.out.println("Decoded " + decodedFiles.get() + " of " + files.size() + " bitmaps ("
+                + decodedBytes.get() + " bytes) in " + String.format("%.2f", seconds) + " seconds, "
+                + String.format("%.2f", decodedBytes.get() / seconds / (1024 * 1024)) + " MB/s.");
+        if (failures > 0) {
+            reportError(failures + " of " + tasks.size() + " decode tasks failed (see above).");
         }
-        return returnValue;
     }
 
-    private void removeRars() {
-        removeFiles("rar");
+    /**
+     * Decompresses the payload block by block and writes it out in order, only a few blocks are in
+     * memory at any time.
+     *
+     * @return the raw size
+     */
+    private long writeCompressedPayload(List<File> parts, Map<File, BitmapHeader> headers, WritableByteChannel output) throws Exception {
+        final PayloadReader reader = new PayloadReader(parts, headers);
+        LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+        long rawSize;
+        try {
+            ByteBuffer streamHeader = ByteBuffer.allocate(CompressionUtility.STREAM_HEADER_SIZE);
+            reader.read(streamHeader, 0);
+            final String codec = CompressionUtility.readCodec(streamHeader, parts.get(0).getPath());
+            rawSize = CompressionUtility.readRawSize(streamHeader);
+            if (rawSize < 0) {
+                throw new IOException(parts.get(0) + " has a corrupt compressed stream header.");
+            }
+
+            ByteBuffer frame = ByteBuffer.allocate(CompressionUtility.FRAME_HEADER_SIZE);
+            frame.order(ByteOrder.LITTLE_ENDIAN);
+            long position = CompressionUtility.STREAM_HEADER_SIZE;
+            long rawOffset = 0;
+            while (rawOffset < rawSize) {
+                frame.clear();
+                reader.read(frame, position);
+                final int rawLength = frame.getInt(0);
+                final int storedLength = frame.getInt(4);
+                final long storedPosition = position + CompressionUtility.FRAME_HEADER_SIZE;
+                if (rawLength <= 0 || storedLength <= 0 || storedLength > rawLength || rawLength > rawSize - rawOffset) {
+                    throw new IOException(parts.get(0) + " has a corrupt compressed block at " + position + ".");
+                }
+                pending.add(getCompressionExecutor().submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        long blockStart = System.nanoTime();
+                        byte[] stored = new byte[storedLength];
+                        reader.read(ByteBuffer.wrap(stored), storedPosition);
+                        byte[] raw = CompressionUtility.decompressBlock(codec, stored, rawLength);
+                        getMetrics().record(Metrics.DECOMPRESS, blockStart, 0, rawLength);
+                        return raw;
+                    }
+                }));
+                if (pending.size() >= getThreads() * 2) {
+                    ChannelUtility.writeFully(output, ByteBuffer.wrap(pending.removeFirst().get()));
+                }
+                position = storedPosition + storedLength;
+                rawOffset += rawLength;
+            }
+            while (!pending.isEmpty()) {
+                ChannelUtility.writeFully(output, ByteBuffer.wrap(pending.removeFirst().get()));
+            }
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause().getMessage(), ex.getCause());
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+            reader.close();
+        }
+        return rawSize;
     }
 
-    private void removeFiles(String extension) {
-        String[] extensions = new String[]{extension};
-        List<File> files = (List<File>) FileUtils.listFiles(new File(getOutputDirectory()), extensions, true);
+    private void performStreamDecode() throws Exception {
+        List<File> bitmaps;
+        if (isInputTargetADirectory()) {
+            long start = System.nanoTime();
+            bitmaps = (List<File>) FileUtils.listFiles(getInputTarget(), new String[]{"bmp"}, true);
+            getMetrics().record(Metrics.LIST, start, bitmaps.size(), 0);
+        } else {
+            bitmaps = Collections.singletonList(getInputTarget());
+        }
+
+        //a stream takes a single payload, a plain bitmap or every part of a chunked or compressed one
+        List<File> parts = new ArrayList<File>();
+        final Map<File, BitmapHeader> headers = new HashMap<File, BitmapHeader>();
+        for (File bitmap : bitmaps) {
+            BitmapHeader header = readHeader(bitmap);
+            if (header.getType() == BitmapHeader.TYPE_PARITY) {
+                System.out.println("Skipping parity bitmap " + bitmap);
+                continue;
+            }
+            if (header.getType() == BitmapHeader.TYPE_CATALOG) {
+                System.out.println("Skipping catalog bitmap " + bitmap);
+                continue;
+            }
+            if (header.getType() == BitmapHeader.TYPE_PACKED) {
+                throw new IOException(bitmap + " holds several files, they can not be written to a single stream.");
+            }
+            if (header.getType() == BitmapHeader.TYPE_STORE || header.getType() == BitmapHeader.TYPE_RECIPE) {
+                throw new IOException(bitmap + " holds deduplicated data, decode it into a directory instead.");
+            }
+            if (!parts.isEmpty() && (header.isPlain() || headers.get(parts.get(0)).isPlain()
+                    || !header.getName().equals(headers.get(parts.get(0)).getName()))) {
+                throw new IOException(bitmap + " and " + parts.get(0) + " belong to different files, only one can be written to a stream.");
+            }
+            parts.add(bitmap);
+            headers.put(bitmap, header);
+        }
+        if (parts.isEmpty()) {
+            throw new IOException("There are no bitmaps to decode in " + getInputTarget() + ".");
+        }
+        BitmapHeader first = headers.get(parts.get(0));
+        if (!first.isPlain() && !validateParts(parts, headers, new File(first.getName()))) {
+            throw new IOException("Could not write " + first.getName() + " to the output stream (see above).");
+        }
+        Collections.sort(parts, new Comparator<File>() {
+            @Override
+            public int compare(File left, File right) {
+                return headers.get(left).getIndex() - headers.get(right).getIndex();
+            }
+        });
+
+        System.out.println("Writing " + (first.isPlain() ? parts.get(0).getName() : first.getName()) + " from "
+                + parts.size() + " bitmaps");
+        long start = System.nanoTime();
+        long size = 0;
+        WritableByteChannel output = getOutputChannel();
+        if (first.getType() == BitmapHeader.TYPE_COMPRESSED) {
+            size = writeCompressedPayload(parts, headers, output);
+        } else {
+            for (File part : parts) {
+                BitmapHeader header = headers.get(part);
+                FileInputStream inputStream = new FileInputStream(part);
+                try {
+                    long copyStart = System.nanoTime();
+                    ChannelUtility.transferFully(inputStream.getChannel(), header.getPixelOffset(), header.getPayloadSize(), output);
+                    getMetrics().record(Metrics.COPY, copyStart, 0, header.getPayloadSize());
+                } finally {
+                    inputStream.close();
+                }
+                size += header.getPayloadSize();
+            }
+        }
+        getMetrics().record(Metrics.DECODE, start, 1, size);
+
+        //clean up
+        if (isCleanUp()) {
+            for (File part : parts) {
+                deleteFile(part);
+            }
+        }
+    }
+
+    private List<File> performContainerDecode(List<File> files) throws Exception {
+        //pull out the parts of large files, the packed bitmaps and the deduplicated files, everything else is decoded one bitmap at a time
+        List<File> bitmaps = new ArrayList<File>();
+        List<File> packedBitmaps = new ArrayList<File>();
+        Map<File, BitmapHeader> headers = new HashMap<File, BitmapHeader>();
+        Map<String, List<File>> chunkedFiles = new LinkedHashMap<String, List<File>>();
+        List<File> recipes = new ArrayList<File>();
+        Map<String, List<File>> stores = new HashMap<String, List<File>>();
         for (File file : files) {
-            System.out.println("Deleting " + file.getAbsolutePath());
-            FileUtils.deleteQuietly(file);
+            BitmapHeader header = null;
+            try {
+                header = readHeader(file);
+            } catch (IOException ex) {
+                //let the regular decode report it
+            }
+
+            if (header != null && (header.getType() == BitmapHeader.TYPE_CHUNK || header.getType() == BitmapHeader.TYPE_COMPRESSED)) {
+                String outputName = FilenameUtils.getName(header.getName());
+                if (!chunkedFiles.containsKey(outputName)) {
+                    chunkedFiles.put(outputName, new ArrayList<File>());
+                }
+                chunkedFiles.get(outputName).add(file);
+                headers.put(file, header);
+            } else if (header != null && header.getType() == BitmapHeader.TYPE_PACKED) {
+                packedBitmaps.add(file);
+                headers.put(file, header);
+            } else if (header != null && header.getType() == BitmapHeader.TYPE_RECIPE) {
+                recipes.add(file);
+                headers.put(file, header);
+            } else if (header != null && header.getType() == BitmapHeader.TYPE_CATALOG) {
+                //nothing to restore from the table of contents itself
+                continue;
+            } else if (header != null && header.getType() == BitmapHeader.TYPE_STORE) {
+                if (!stores.containsKey(header.getName())) {
+                    stores.put(header.getName(), new ArrayList<File>());
+                }
+                stores.get(header.getName()).add(file);
+                headers.put(file, header);
+            } else {
+                bitmaps.add(file);
+            }
+        }
+
+        for (List<File> chunks : chunkedFiles.values()) {
+            if (headers.get(chunks.get(0)).getType() == BitmapHeader.TYPE_COMPRESSED) {
+                decodeCompressedFile(chunks, headers);
+            } else {
+                decodeChunkedFile(chunks, headers);
+            }
+        }
+        if (!packedBitmaps.isEmpty()) {
+            decodePackedBitmaps(packedBitmaps, headers);
+        }
+        if (!recipes.isEmpty()) {
+            decodeRecipes(recipes, stores, headers);
         }
+        return bitmaps;
+    }
+
+    /**
+     * @param repairDirectory where the rebuilt data bitmaps go, the caller deletes it once they are decoded
+     */
+    private List<File> performParityRepair(List<File> files, List<File> parityFiles, File repairDirectory) throws Exception {
+        //find the parity groups, everything else is a candidate data bitmap
+        Map<File, BitmapHeader> headers = new HashMap<File, BitmapHeader>();
+        Map<String, List<File>> groups = new LinkedHashMap<String, List<File>>();
+        Map<String, File> dataCandidates = new HashMap<String, File>();
+        List<File> dataFiles = new ArrayList<File>();
+        for (File file : files) {
+            BitmapHeader header = null;
+            try {
+                header = readHeader(file);
+            } catch (IOException ex) {
+                //could be a corrupt data bitmap, the parity check or the decode will deal with it
+            }
+
+            if (header != null && header.getType() == BitmapHeader.TYPE_PARITY && !header.getEntries().isEmpty()) {
+                //the checksum tells apart the groups of runs that wrote a bitmap of the same name
+                String key = header.getOffset() + ":" + header.getEntries().get(0).getName() + ":"
+                        + header.getEntries().get(0).getChecksum();
+                if (!groups.containsKey(key)) {
+                    groups.put(key, new ArrayList<File>());
+                }
+                groups.get(key).add(file);
+                headers.put(file, header);
+                parityFiles.add(file);
+            } else {
+                dataCandidates.put(file.getName(), file);
+                dataFiles.add(file);
+            }
+        }
+
+        Map<File, Set<String>> replaced = ParityUtility.findReplaced(groups.values(), headers, dataCandidates);
+        if (!groups.isEmpty()) {
+            repairDirectory.mkdirs();
+        }
+        for (List<File> group : groups.values()) {
+            try {
+                long start = System.nanoTime();
+                Set<String> groupReplaced = replaced.containsKey(group.get(0)) ? replaced.get(group.get(0)) : Collections.<String>emptySet();
+                Map<String, File> rebuilt = ParityUtility.repairGroup(group, headers, dataCandidates, groupReplaced,
+                        repairDirectory.getPath(), getThreads());
+                long size = 0;
+                for (Map.Entry<String, File> entry : rebuilt.entrySet()) {
+                    dataFiles.remove(dataCandidates.get(entry.getKey()));
+                    dataFiles.add(entry.getValue());
+                    size += entry.getValue().length();
+                }
+                getMetrics().record(Metrics.REPAIR, start, rebuilt.size(), size);
+            } catch (Exception ex) {
+                reportError("Could not repair the bitmaps protected by " + group.get(0) + ": " + ex.getMessage());
+            }
+        }
+        return dataFiles;
     }
 
-    private void unzipArchive() throws Exception {
-        System.out.println("Unzipping " + getInputTarget());
+    private List<File> separateRarVolumes(List<File> files, Map<File, File> volumeBitmaps) {
+        List<File> others = new ArrayList<File>();
+        for (File file : files) {
+            File volume = new File(generateDecodeOutputName(file));
+            if (RAR_VOLUME.matcher(volume.getName()).matches()) {
+                volumeBitmaps.put(volume, file);
+            } else {
+                others.add(file);
+            }
+        }
+        return others;
+    }
+
+    private void performStreamingRarDecode(final Map<File, File> volumeBitmaps) throws Exception {
+        //sort the volumes into their archives by part number, volumes that are already on disk (large
+        //or compressed ones were decoded with the other containers) are part of it too
+        List<File> candidates = new ArrayList<File>(volumeBitmaps.keySet());
+        File[] existing = new File(getOutputDirectory()).listFiles();
+        if (existing != null) {
+            for (File file : existing) {
+                if (file.isFile()) {
+                    candidates.add(file);
+                }
+            }
+        }
+        Map<String, TreeMap<Integer, File>> archives = new TreeMap<String, TreeMap<Integer, File>>();
+        for (File volume : candidates) {
+            Matcher matcher = RAR_VOLUME.matcher(volume.getName());
+            if (matcher.matches()) {
+                String archive = matcher.group(1);
+                int part = matcher.group(2) != null ? Integer.parseInt(matcher.group(2)) : 0;
+                if (!archives.containsKey(archive)) {
+                    archives.put(archive, new TreeMap<Integer, File>());
+                }
+                if (!archives.get(archive).containsKey(part)) {
+                    archives.get(archive).put(part, volume);
+                }
+            }
+        }
+
+        int failures = 0;
+        for (Map.Entry<String, TreeMap<Integer, File>> archive : archives.entrySet()) {
+            final List<File> volumes = new ArrayList<File>(archive.getValue().values());
+            for (File volume : volumes) {
+                //an old copy would be read by rar before the new one is decoded
+                if (volumeBitmaps.containsKey(volume) && volume.exists()) {
+                    FileUtils.deleteQuietly(volume);
+                }
+            }
+
+            System.out.println("Extracting " + archive.getKey() + " from " + volumes.size() + " volumes while they are decoded");
+            long start = System.nanoTime();
+            StreamingRarExtractor extractor = new StreamingRarExtractor(volumes, new StreamingRarExtractor.VolumeSource() {
+                @Override
+                public void decode(int index) throws Exception {
+                    File volume = volumes.get(index);
+                    File bitmap = volumeBitmaps.get(volume);
+                    if (bitmap != null) {
+                        //rar must never see half a volume, so it only gets its name once it's complete
+                        File partial = new File(volume.getPath() + ".partial");
+                        decodeBitmap(bitmap, partial);
+                        Files.move(partial.toPath(), volume.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
 
-        final InputStream is = new FileInputStream(getInputTarget());
-        final ArchiveInputStream in = new ArchiveStreamFactory().createArchiveInputStream("zip", is);
+                @Override
+                public void release(int index) {
+                    deleteFile(volumes.get(index));
+                }
+            }, getThreads(), isCleanUp() ? Math.max(2, getThreads() * 2) : 0, isCleanUp());
 
-        ZipArchiveEntry entry = null;
-        while ((entry = (ZipArchiveEntry) in.getNextEntry()) != null) {
-            System.out.println("Extracting " + entry.getName());
-            final OutputStream out = new FileOutputStream(new File(getOutputDirectory(), entry.getName()));
-            IOUtils.copy(in, out);
-            out.close();
+            int exitCode = extractor.extract(generateStreamingUnrarCommand(volumes.get(0).getAbsolutePath()), getRarTimeout() * 1000);
+            if (exitCode == 0) {
+                getMetrics().record(Metrics.UNRAR, start, volumes.size(), 0);
+            } else {
+                reportError("Could not extract " + archive.getKey() + ", rar exited with code " + exitCode + ".");
+                failures++;
+            }
+        }
+        if (failures > 0) {
+            throw new Exception(failures + " of " + archives.size() + " rar archives could not be extracted (see above).");
         }
-        in.close();
     }
 
-    private void performRar() throws Exception {
-        if (isPerformRar() && RarUtility.isRarAvailable()) {
-            executeRar();
-            //change the input to the newly created rars
-            //add the extension filter
-            setInputTarget(new File(getOutputDirectory()));
-            setExtensionFilter("rar");
+    /**
+     * A bitmap inside one of the zips that are being decoded.
+     */
+    private static class ZipBitmap {
+        private final File file;
+        private final ZipFile zip;
+        private final ZipArchiveEntry entry;
+
+        ZipBitmap(File file, ZipFile zip, ZipArchiveEntry entry) {
+            this.file = file;
+            this.zip = zip;
+            this.entry = entry;
+        }
+
+        ZipFile getZip() {
+            return zip;
+        }
+
+        ZipArchiveEntry getEntry() {
+            return entry;
+        }
+
+        @Override
+        public String toString() {
+            return file + "!" + entry.getName();
         }
     }
 
-    private void performUnzip() throws Exception {
-        if (getInputTarget().getName().endsWith(".zip")) {
-            unzipArchive();
+    private boolean isZipInput() {
+        return getInputTarget().isFile() && getInputTarget().getName().toLowerCase().endsWith(".zip");
+    }
+
+    private void copyFully(InputStream inputStream, long length, OutputStream outputStream, Object source) throws IOException {
+        ByteBuffer buffer = heapBuffers.acquire();
+        try {
+            if (IOUtils.copyLarge(inputStream, outputStream, 0, length, buffer.array()) != length) {
+                throw new EOFException(source + " is truncated.");
+            }
+        } finally {
+            heapBuffers.release(buffer);
+        }
+    }
+
+    private void registerZipChunk(Map<String, boolean[]> chunkProgress, File outputFile, BitmapHeader header, ZipBitmap bitmap) throws IOException {
+        synchronized (chunkProgress) {
+            boolean[] parts = chunkProgress.get(outputFile.getPath());
+            if (parts == null) {
+                //first part of the file, nothing else can be writing to it yet
+                parts = new boolean[header.getCount()];
+                chunkProgress.put(outputFile.getPath(), parts);
+                RandomAccessFile output = new RandomAccessFile(outputFile, "rw");
+                try {
+                    output.setLength(header.getTotalSize());
+                } finally {
+                    output.close();
+                }
+            }
+            if (parts.length != header.getCount() || header.getIndex() < 0 || header.getIndex() >= parts.length
+                    || parts[header.getIndex()]) {
+                throw new IOException(bitmap + " does not belong with the other parts of " + outputFile + ".");
+            }
+        }
+    }
+
+    /**
+     * Decodes one bitmap straight from its zip entry. Compressed payloads and chunk stores need random
+     * access across all of their parts and parity bitmaps have nothing to repair here, those are left to
+     * the caller.
+     *
+     * @return the type of the bitmap
+     */
+    private int decodeZipBitmap(ZipBitmap bitmap, Map<String, boolean[]> chunkProgress) throws Exception {
+        long start = System.nanoTime();
+        InputStream inputStream = bitmap.getZip().getInputStream(bitmap.getEntry());
+        try {
+            BitmapHeader header;
+            ByteBuffer scratch = heapBuffers.acquire();
+            try {
+                header = BitmapHeader.read(inputStream, bitmap.toString(), bitmap.getEntry().getSize(), scratch);
+            } finally {
+                heapBuffers.release(scratch);
+            }
+            if (header.isPlain()) {
+                System.out.println("Decoding " + bitmap);
+                File outputFile = new File(generateDecodeOutputName(new File(bitmap.getEntry().getName())));
+                OutputStream outputStream = new FileOutputStream(outputFile);
+                try {
+                    copyFully(inputStream, header.getPayloadSize(), outputStream, bitmap);
+                } finally {
+                    outputStream.close();
+                }
+                getMetrics().record(Metrics.DECODE, start, 1, header.getPayloadSize());
+            } else if (header.getType() == BitmapHeader.TYPE_CHUNK) {
+                System.out.println("Decoding " + bitmap);
+                File outputFile = new File(generateOutputName(FilenameUtils.getName(header.getName())));
+                registerZipChunk(chunkProgress, outputFile, header, bitmap);
+                //every part lands at its own offset, the other parts can be written at the same time
+                RandomAccessFile output = new RandomAccessFile(outputFile, "rw");
+                try {
+                    FileChannel outputChannel = output.getChannel();
+                    outputChannel.position(header.getOffset());
+                    copyFully(inputStream, header.getPayloadSize(), Channels.newOutputStream(outputChannel), bitmap);
+                } finally {
+                    output.close();
+                }
+                synchronized (chunkProgress) {
+                    chunkProgress.get(outputFile.getPath())[header.getIndex()] = true;
+                }
+                getMetrics().record(Metrics.DECODE, start, 0, header.getPayloadSize());
+            } else if (header.getType() == BitmapHeader.TYPE_PACKED) {
+                //the entries follow each other in the pixel array, so one pass over the stream is enough
+                long position = 0;
+                for (BitmapHeader.Entry entry : header.getEntries()) {
+                    if (entry.getOffset() < position) {
+                        throw new IOException(bitmap + " has a corrupt table of contents.");
+                    }
+                    System.out.println("Extracting " + entry.getName() + " from " + bitmap);
+                    IOUtils.skipFully(inputStream, entry.getOffset() - position);
+                    OutputStream outputStream = new FileOutputStream(generateOutputName(FilenameUtils.getName(entry.getName())));
+                    try {
+                        copyFully(inputStream, entry.getSize(), outputStream, bitmap);
+                    } finally {
+                        outputStream.close();
+                    }
+                    position = entry.getOffset() + entry.getSize();
+                    getMetrics().record(Metrics.DECODE, start, 1, entry.getSize());
+                }
+            }
+            return header.getType();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private void extractZipBitmap(ZipBitmap bitmap, File outputFile) throws IOException {
+        System.out.println("Extracting " + bitmap);
+        InputStream inputStream = bitmap.getZip().getInputStream(bitmap.getEntry());
+        try {
+            OutputStream outputStream = new FileOutputStream(outputFile);
+            try {
+                IOUtils.copyLarge(inputStream, outputStream);
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private void performZipDecode(List<File> zipFiles) throws Exception {
+        //the bitmaps are decoded straight out of the zips instead of being extracted first, several zips
+        //(and several entries of each) at a time
+        long start = System.nanoTime();
+        final Map<String, boolean[]> chunkProgress = new LinkedHashMap<String, boolean[]>();
+        final List<File> containers = Collections.synchronizedList(new ArrayList<File>());
+        final AtomicLong parityBitmaps = new AtomicLong();
+        final File scratchDirectory = new File(getOutputDirectory(), ".batt-zip-" + System.nanoTime());
+        List<ZipFile> zips = new ArrayList<ZipFile>();
+        long zipSize = 0;
+        int failures;
+        try {
+            //entries that decode to the same output name are never raced, see performParallelDecode
+            Map<String, List<ZipBitmap>> groups = new LinkedHashMap<String, List<ZipBitmap>>();
+            for (File zipFile : zipFiles) {
+                System.out.println("Reading " + zipFile);
+                ZipFile zip = new ZipFile(zipFile);
+                zips.add(zip);
+                zipSize += zipFile.length();
+                Enumeration<ZipArchiveEntry> entries = zip.getEntriesInPhysicalOrder();
+                while (entries.hasMoreElements()) {
+                    ZipArchiveEntry entry = entries.nextElement();
+                    if (!entry.isDirectory() && entry.getName().toLowerCase().endsWith(".bmp")) {
+                        String outputName = generateDecodeOutputName(new File(entry.getName()));
+                        if (!groups.containsKey(outputName)) {
+                            groups.put(outputName, new ArrayList<ZipBitmap>());
+                        }
+                        groups.get(outputName).add(new ZipBitmap(zipFile, zip, entry));
+                    }
+                }
+            }
+
+            final AtomicLong scratchIndex = new AtomicLong();
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (final List<ZipBitmap> group : groups.values()) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (ZipBitmap bitmap : group) {
+                            try {
+                                int type = decodeZipBitmap(bitmap, chunkProgress);
+                                if (type == BitmapHeader.TYPE_COMPRESSED || type == BitmapHeader.TYPE_STORE
+                                        || type == BitmapHeader.TYPE_RECIPE) {
+                                    scratchDirectory.mkdirs();
+                                    File scratch = new File(scratchDirectory, scratchIndex.incrementAndGet() + ".bmp");
+                                    extractZipBitmap(bitmap, scratch);
+                                    containers.add(scratch);
+                                } else if (type == BitmapHeader.TYPE_PARITY) {
+                                    parityBitmaps.incrementAndGet();
+                                }
+                            } catch (Exception ex) {
+                                throw new Exception("Failed to decode " + bitmap + ": " + ex.getMessage(), ex);
+                            }
+                        }
+                        return null;
+                    }
+                });
+            }
+            failures = TaskUtility.executeTasks(tasks, getThreads());
+            if (failures > 0) {
+                reportError(failures + " of " + tasks.size() + " bitmaps in the zips could not be decoded (see above).");
+            }
+        } finally {
+            for (ZipFile zip : zips) {
+                zip.close();
+            }
+        }
+
+        for (Map.Entry<String, boolean[]> progress : chunkProgress.entrySet()) {
+            List<Integer> missing = new ArrayList<Integer>();
+            for (int i = 0; i < progress.getValue().length; i++) {
+                if (!progress.getValue()[i]) {
+                    missing.add(i + 1);
+                }
+            }
+            if (!missing.isEmpty()) {
+                reportError(progress.getKey() + " is incomplete, parts " + missing + " of "
+                        + progress.getValue().length + " are missing.");
+                failures++;
+            }
+        }
+        if (parityBitmaps.get() > 0) {
+            System.out.println("Skipped " + parityBitmaps.get() + " parity bitmaps, the zips can't be repaired in place.");
+        }
+        //only the compressed and deduplicated bitmaps ever touch the disk, they need random access across their parts
+        try {
+            if (!containers.isEmpty()) {
+                performContainerDecode(containers);
+            }
+        } finally {
+            FileUtils.deleteQuietly(scratchDirectory);
+        }
+        getMetrics().record(Metrics.UNZIP, start, zipFiles.size(), zipSize);
+
+        if (isCleanUp() && failures == 0) {
+            for (File zipFile : zipFiles) {
+                deleteFile(zipFile);
+            }
+        }
+    }
+
+    private boolean isStreamingRarDecode() {
+        return isRarStream() && isPerformRar() && isInputTargetADirectory() && RarUtility.isRarAvailable();
+    }
+
+    private void decodeBitmaps(List<File> files) throws Exception {
+        if (getThreads() > 1 && !files.isEmpty()) {
+            performParallelDecode(files);
+        } else {
+            for (File file : files) {
+                decodeBitmap(file.getAbsolutePath());
+            }
+        }
+    }
+
+    //package visible for the benchmarks
+    void performDecode() throws Exception {
+        if (isInputTargetADirectory()) {
+            String extension = "bmp";
+            String[] extensions = new String[]{extension};
+            List<File> parityFiles = new ArrayList<File>();
+            long start = System.nanoTime();
+            List<File> bitmaps = (List<File>) FileUtils.listFiles(getInputTarget(), extensions, true);
+            List<File> zips = (List<File>) FileUtils.listFiles(getInputTarget(), new String[]{"zip"}, true);
+            getMetrics().record(Metrics.LIST, start, bitmaps.size() + zips.size(), 0);
+            if (!zips.isEmpty()) {
+                performZipDecode(zips);
+            }
+            //rebuilt bitmaps are only needed until they are decoded, they must not end up next to the output
+            File repairDirectory = new File(getOutputDirectory(), ".batt-repair-" + System.nanoTime());
+            try {
+                List<File> files = performParityRepair(bitmaps, parityFiles, repairDirectory);
+                files = performContainerDecode(files);
+                //the rar volumes are held back and decoded while rar is extracting them
+                Map<File, File> volumeBitmaps = new HashMap<File, File>();
+                if (isStreamingRarDecode()) {
+                    files = separateRarVolumes(files, volumeBitmaps);
+                }
+                decodeBitmaps(files);
+                if (isStreamingRarDecode()) {
+                    performStreamingRarDecode(volumeBitmaps);
+                }
+            } finally {
+                FileUtils.deleteQuietly(repairDirectory);
+            }
+
             if (isCleanUp()) {
-                System.out.println("Deleting " + getInputTarget());
-                //delete the zip
-                FileUtils.deleteQuietly(getInputTarget());
+                for (File parityFile : parityFiles) {
+                    deleteFile(parityFile);
+                }
+            }
+        } else {
+            //process a single file
+            for (File file : performContainerDecode(Collections.singletonList(getInputTarget()))) {
+                decodeBitmap(file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Reads every catalog in the input directory, the newer ones win.
+     *
+     * @return null if there are none
+     */
+    private Catalog readCatalogs(Map<String, List<File>> bitmapSets) {
+        long start = System.nanoTime();
+        List<List<File>> catalogSets = new ArrayList<List<File>>();
+        long size = 0;
+        for (Map.Entry<String, List<File>> set : bitmapSets.entrySet()) {
+            if (set.getKey().toLowerCase().endsWith(Catalog.SUFFIX + ".bmp")) {
+                catalogSets.add(set.getValue());
+            }
+        }
+        Collections.sort(catalogSets, new Comparator<List<File>>() {
+            @Override
+            public int compare(List<File> left, List<File> right) {
+                return Long.valueOf(right.get(0).lastModified()).compareTo(left.get(0).lastModified());
+            }
+        });
+
+        Catalog returnValue = null;
+        for (List<File> parts : catalogSets) {
+            try {
+                Catalog catalog = readCatalog(parts);
+                System.out.println("Read the catalog of " + catalog.size() + " files from " + parts.get(0));
+                if (returnValue == null) {
+                    returnValue = catalog;
+                } else {
+                    returnValue.merge(catalog);
+                }
+                for (File part : parts) {
+                    size += part.length();
+                }
+            } catch (IOException ex) {
+                reportError("Could not read the catalog " + parts.get(0) + ": " + ex.getMessage());
+            }
+        }
+        getMetrics().record(Metrics.CATALOG, start, catalogSets.size(), size);
+        return returnValue;
+    }
+
+    /**
+     * Moves the restored files from the scratch directory into their place in the tree, once they
+     * match the catalog.
+     */
+    private void placeRestoredFiles(List<Catalog.Entry> entries, final File scratchDirectory) throws Exception {
+        long start = System.nanoTime();
+        final File outputDirectory = new File(getOutputDirectory()).getCanonicalFile();
+        final AtomicLong size = new AtomicLong();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final Catalog.Entry entry : entries) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    File restored = new File(scratchDirectory, entry.getName());
+                    File target = new File(outputDirectory, entry.getPath());
+                    if (!target.getCanonicalPath().startsWith(outputDirectory.getPath() + File.separator)) {
+                        throw new IOException(entry.getPath() + " points outside of " + outputDirectory + ", it was not restored.");
+                    }
+                    if (!restored.isFile()) {
+                        throw new IOException(entry.getPath() + " could not be decoded from " + entry.getBitmap() + " (see above).");
+                    }
+                    if (restored.length() != entry.getSize() || !Arrays.equals(hashFile(restored), entry.getHash())) {
+                        throw new IOException(entry.getPath() + " does not match the catalog, " + entry.getBitmap()
+                                + " holds another file of the same name or is damaged (a full decode repairs it from parity).");
+                    }
+                    Files.createDirectories(target.getParentFile().toPath());
+                    Files.move(restored.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    System.out.println("Restored " + target);
+                    size.addAndGet(entry.getSize());
+                    return null;
+                }
+            });
+        }
+        int failures = TaskUtility.executeTasks(tasks, getThreads());
+        getMetrics().record(Metrics.RESTORE, start, entries.size() - failures, size.get());
+        if (failures > 0) {
+            reportError(failures + " of " + entries.size() + " files could not be restored (see above).");
+        }
+    }
+
+    /**
+     * Restores the files the glob picks out of the catalog into their directory tree. Only their bitmaps
+     * (and the chunk stores of the deduplicated ones) are decoded, into a scratch directory first, every
+     * other bitmap is left alone. Parity is not involved, a damaged bitmap needs a full decode.
+     */
+    private void performSelectiveDecode() throws Exception {
+        long start = System.nanoTime();
+        //the names say which bitmap is which, nothing is opened until the catalog has been read
+        Collection<File> bitmaps = FileUtils.listFiles(getInputTarget(), new String[]{"bmp"}, true);
+        getMetrics().record(Metrics.LIST, start, bitmaps.size(), 0);
+        Map<String, List<File>> bitmapSets = groupBitmapSets(bitmaps);
+        Catalog catalog = readCatalogs(bitmapSets);
+        if (catalog == null) {
+            reportError("There is no catalog in " + getInputTarget() + " (encode with -ct to write one), decode it without a glob.");
+            return;
+        }
+        List<Catalog.Entry> selected = catalog.select(getGlob());
+        System.out.println(selected.size() + " of the " + catalog.size() + " cataloged files match " + getGlob());
+        if (selected.isEmpty()) {
+            reportError("Nothing in the catalog matches " + getGlob() + ".");
+            return;
+        }
+
+        Set<File> needed = new LinkedHashSet<File>();
+        List<Catalog.Entry> restorable = new ArrayList<Catalog.Entry>();
+        for (Catalog.Entry entry : selected) {
+            List<File> files = findBitmapSet(bitmapSets, entry.getBitmap());
+            if (files.isEmpty()) {
+                reportError("Skipping " + entry.getPath() + ", its bitmap " + entry.getBitmap() + " is missing.");
+                continue;
+            }
+            needed.addAll(files);
+            restorable.add(entry);
+            try {
+                BitmapHeader header = readHeader(files.get(0));
+                if (header.getType() == BitmapHeader.TYPE_RECIPE) {
+                    for (BitmapHeader.Entry chunk : header.getEntries()) {
+                        needed.addAll(findBitmapSet(bitmapSets, chunk.getName() + ".bmp"));
+                    }
+                }
+            } catch (IOException ex) {
+                //the decode reports it
+            }
+        }
+        System.out.println("Restoring " + restorable.size() + " files from " + needed.size() + " of the " + bitmaps.size() + " bitmaps");
+
+        String outputDirectory = getOutputDirectory();
+        File scratchDirectory = new File(outputDirectory, ".batt-restore-" + System.nanoTime());
+        Files.createDirectories(scratchDirectory.toPath());
+        try {
+            setOutputDirectory(scratchDirectory.getPath());
+            try {
+                decodeBitmaps(performContainerDecode(new ArrayList<File>(needed)));
+            } finally {
+                setOutputDirectory(outputDirectory);
             }
-            //switch the input target to the output directory
-            setInputTarget(new File(getOutputDirectory()));
+            placeRestoredFiles(restorable, scratchDirectory);
+        } finally {
+            FileUtils.deleteQuietly(scratchDirectory);
         }
     }
 
+    /**
+     * Maps the file with this path in the catalog of the input directory for random access, for the
+     * library. Nothing is decoded, only the bitmaps that hold the file are opened.
+     */
+    MappedPayload openPayload(String path) throws IOException {
+        Map<String, List<File>> bitmapSets = groupBitmapSets(FileUtils.listFiles(getInputTarget(), new String[]{"bmp"}, true));
+        Catalog catalog = readCatalogs(bitmapSets);
+        Catalog.Entry entry = catalog != null ? catalog.find(path) : null;
+        if (entry == null) {
+            throw new FileNotFoundException(path + " is not in the catalog of " + getInputTarget() + ".");
+        }
+        return openPayload(bitmapSets, entry);
+    }
+
+    private List<File> findEntryBitmaps(Map<String, List<File>> bitmapSets, Catalog.Entry entry) throws IOException {
+        List<File> files = findBitmapSet(bitmapSets, entry.getBitmap());
+        if (files.isEmpty()) {
+            throw new FileNotFoundException("The bitmap " + entry.getBitmap() + " of " + entry.getPath() + " is missing.");
+        }
+        return files;
+    }
+
+    private MappedPayload openPayload(Map<String, List<File>> bitmapSets, Catalog.Entry entry) throws IOException {
+        String path = entry.getPath();
+        List<File> files = findEntryBitmaps(bitmapSets, entry);
+        BitmapHeader header = readHeader(files.get(0));
+        MappedPayload payload;
+        if (header.getType() == BitmapHeader.TYPE_PACKED) {
+            //the last entry of the name is the one a decode keeps
+            BitmapHeader.Entry packedEntry = null;
+            for (BitmapHeader.Entry candidate : header.getEntries()) {
+                if (candidate.getName().equals(entry.getName())) {
+                    packedEntry = candidate;
+                }
+            }
+            if (packedEntry == null) {
+                throw new FileNotFoundException(entry.getBitmap() + " does not hold " + path + ".");
+            }
+            payload = MappedPayload.open(files.get(0), header, packedEntry);
+        } else if (header.getType() == BitmapHeader.TYPE_RECIPE) {
+            Map<String, List<File>> stores = new HashMap<String, List<File>>();
+            Map<File, BitmapHeader> headers = new HashMap<File, BitmapHeader>();
+            for (BitmapHeader.Entry chunk : header.getEntries()) {
+                if (!stores.containsKey(chunk.getName())) {
+                    List<File> parts = findBitmapSet(bitmapSets, chunk.getName() + ".bmp");
+                    if (parts.isEmpty()) {
+                        throw new FileNotFoundException("The chunk store " + chunk.getName() + " of " + path + " is missing.");
+                    }
+                    for (File part : parts) {
+                        headers.put(part, readHeader(part));
+                    }
+                    if (!validateParts(parts, headers, new File(chunk.getName()))) {
+                        throw new IOException("The chunk store " + chunk.getName() + " is incomplete (see above).");
+                    }
+                    stores.put(chunk.getName(), parts);
+                }
+            }
+            payload = MappedPayload.open(header, stores, headers);
+        } else {
+            payload = MappedPayload.open(files);
+        }
+        if (payload.size() != entry.getSize()) {
+            payload.close();
+            throw new IOException(entry.getBitmap() + " holds " + payload.size() + " bytes instead of the " + entry.getSize()
+                    + " bytes of " + path + ", it was replaced by another file of the same name.");
+        }
+        return payload;
+    }
+
+    /**
+     * Opens a cataloged file for serve, compressed files are read by their compression blocks and
+     * everything else is mapped.
+     */
+    private BattServer.Source openServeSource(Map<String, List<File>> bitmapSets, Catalog.Entry entry) throws IOException {
+        List<File> files = findEntryBitmaps(bitmapSets, entry);
+        Map<File, BitmapHeader> headers = new HashMap<File, BitmapHeader>();
+        headers.put(files.get(0), readHeader(files.get(0)));
+        if (headers.get(files.get(0)).getType() != BitmapHeader.TYPE_COMPRESSED) {
+            return new BattServer.MappedSource(openPayload(bitmapSets, entry));
+        }
+
+        for (File part : files) {
+            if (!headers.containsKey(part)) {
+                headers.put(part, readHeader(part));
+            }
+        }
+        if (!validateParts(files, headers, new File(entry.getPath()))) {
+            throw new IOException("The bitmaps of " + entry.getPath() + " are incomplete (see above).");
+        }
+        PayloadReader reader = new PayloadReader(files, headers);
+        try {
+            BattServer.Source source = new BattServer.CompressedSource(reader, entry.getPath());
+            if (source.size() != entry.getSize()) {
+                throw new IOException(entry.getBitmap() + " holds " + source.size() + " bytes instead of the " + entry.getSize()
+                        + " bytes of " + entry.getPath() + ", it was replaced by another file of the same name.");
+            }
+            return source;
+        } catch (IOException ex) {
+            reader.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Serves the files of the catalogs in the input directory over HTTP until the process is stopped.
+     * Only the catalogs are read up front, a file's bitmaps are opened the first time it is asked for.
+     */
+    private void performServe() throws Exception {
+        long start = System.nanoTime();
+        Collection<File> bitmaps = FileUtils.listFiles(getInputTarget(), new String[]{"bmp"}, true);
+        getMetrics().record(Metrics.LIST, start, bitmaps.size(), 0);
+        final Map<String, List<File>> bitmapSets = groupBitmapSets(bitmaps);
+        Catalog catalog = readCatalogs(bitmapSets);
+        if (catalog == null) {
+            reportError("There is no catalog in " + getInputTarget() + ", encode with -ct to write one and serve its files.");
+            return;
+        }
+
+        final BattServer server = new BattServer(catalog, new BattServer.Opener() {
+            @Override
+            public BattServer.Source open(Catalog.Entry entry) throws IOException {
+                return openServeSource(bitmapSets, entry);
+            }
+        }, getCacheMemory(), getMetrics());
+        int boundPort = server.start(getPort(), getThreads());
+        final Thread serving = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                server.stop();
+                //give the run a moment to print its summary before the JVM goes away
+                try {
+                    serving.join(SHUTDOWN_TIMEOUT);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }));
+        System.out.println("Serving " + catalog.size() + " files from " + getInputTarget() + " on http://localhost:" + boundPort + "/");
+        try {
+            server.awaitStop();
+        } finally {
+            BlockCache cache = server.getCache();
+            System.out.println("Block cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses, "
+                    + cache.getEvictions() + " evictions");
+        }
+    }
+
+    private synchronized Manifest getManifest() throws IOException {
+        if (manifest == null) {
+            manifest = Manifest.load(new File(getOutputDirectory(), Manifest.FILENAME));
+        }
+        return manifest;
+    }
+
+    /**
+     * @return the directory the relative paths of the manifest and the catalog start from, null for a single file
+     */
+    private Path getInputDirectoryPath() {
+        return isInputTargetADirectory() ? getInputTarget().getAbsoluteFile().toPath() : null;
+    }
+
+    private String getRelativePath(Path inputDirectory, File file) {
+        if (inputDirectory == null) {
+            return file.getName();
+        }
+        return FilenameUtils.separatorsToUnix(inputDirectory.relativize(file.getAbsoluteFile().toPath()).toString());
+    }
+
+    private byte[] hashFile(File file) throws IOException {
+        ByteBuffer buffer = directBuffers.acquire();
+        try {
+            FileInputStream inputStream = new FileInputStream(file);
+            try {
+                return ChannelUtility.digest(inputStream.getChannel(), ChunkIndex.createDigest(), buffer);
+            } finally {
+                inputStream.close();
+            }
+        } finally {
+            directBuffers.release(buffer);
+        }
+    }
+
+    /**
+     * Compares the files with the manifest of the earlier runs. Size and modification time settle it for
+     * most files, only the ones that look changed are hashed, so a file that was merely touched is not
+     * encoded again. Both passes run on the worker threads.
+     *
+     * @return the files that are new or changed, in listing order
+     */
+    private List<File> selectChangedFiles(List<File> listedFiles) throws Exception {
+        //the listing is a linked list, everything below goes by index
+        final List<File> files = new ArrayList<File>(listedFiles);
+        final Manifest manifest = getManifest();
+        long start = System.nanoTime();
+        final String[] paths = new String[files.size()];
+        final long[] sizes = new long[files.size()];
+        final long[] modified = new long[files.size()];
+        final boolean[] candidate = new boolean[files.size()];
+        final byte[][] hashes = new byte[files.size()][];
+        final Path inputDirectory = getInputDirectoryPath();
+        final AtomicInteger tracked = new AtomicInteger();
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < files.size(); i += SCAN_BATCH_SIZE) {
+            final int first = i;
+            final int last = Math.min(files.size(), i + SCAN_BATCH_SIZE);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int j = first; j < last; j++) {
+                        //one stat for both
+                        BasicFileAttributes attributes = Files.readAttributes(files.get(j).toPath(), BasicFileAttributes.class);
+                        paths[j] = getRelativePath(inputDirectory, files.get(j));
+                        sizes[j] = attributes.size();
+                        modified[j] = attributes.lastModifiedTime().toMillis();
+                        Manifest.Record record = manifest.get(paths[j]);
+                        if (record != null && !record.isDeleted()) {
+                            tracked.incrementAndGet();
+                        }
+                        candidate[j] = record == null || record.isDeleted() || record.getSize() != sizes[j]
+                                || record.getModified() != modified[j] || !isEncodedAs(record, files.get(j));
+                    }
+                    return null;
+                }
+            });
+        }
+        if (TaskUtility.executeTasks(tasks, getThreads()) > 0) {
+            throw new IOException("Could not check every file against " + Manifest.FILENAME + " (see above).");
+        }
+
+        List<Integer> candidates = new ArrayList<Integer>();
+        for (int i = 0; i < files.size(); i++) {
+            if (candidate[i]) {
+                candidates.add(i);
+            }
+        }
+        //largest first, like the encode itself
+        Collections.sort(candidates, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer left, Integer right) {
+                return Long.valueOf(sizes[right]).compareTo(sizes[left]);
+            }
+        });
+        tasks = new ArrayList<Callable<Void>>();
+        long hashedBytes = 0;
+        for (final int index : candidates) {
+            hashedBytes += sizes[index];
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        hashes[index] = hashFile(files.get(index));
+                    } catch (IOException ex) {
+                        throw new IOException("Failed to hash " + files.get(index).getAbsolutePath() + ": " + ex.getMessage(), ex);
+                    }
+                    return null;
+                }
+            });
+        }
+        int failures = TaskUtility.executeTasks(tasks, getThreads());
+        if (failures > 0) {
+            reportError(failures + " files could not be hashed and were left out (see above).");
+        }
+
+        Set<String> changedNames = new HashSet<String>();
+        int added = 0;
+        int updated = 0;
+        for (int index : candidates) {
+            Manifest.Record record = manifest.get(paths[index]);
+            if (hashes[index] == null) {
+                continue;
+            }
+            if (record != null && !record.isDeleted() && record.getSize() == sizes[index]
+                    && Arrays.equals(record.getHash(), hashes[index]) && isEncodedAs(record, files.get(index))) {
+                //only the time changed
+                manifest.put(new Manifest.Record(paths[index], sizes[index], modified[index], hashes[index], record.getBitmap()));
+            } else {
+                changedNames.add(getFileName(files.get(index)));
+                if (record == null || record.isDeleted()) {
+                    added++;
+                } else {
+                    updated++;
+                }
+            }
+        }
+
+        //every file has a bitmap of its own, only files assignFileNames warned about share one; those are
+        //encoded again together with a changed one so the same file is kept as in a full run
+        List<File> selected = new ArrayList<File>();
+        for (int i = 0; !changedNames.isEmpty() && i < files.size(); i++) {
+            //a file that could not be hashed stays out, it is tried again next time
+            byte[] hash = candidate[i] ? hashes[i] : manifest.get(paths[i]).getHash();
+            if (hash != null && changedNames.contains(getFileName(files.get(i)))) {
+                pendingRecords.put(files.get(i), new Manifest.Record(paths[i], sizes[i], modified[i], hash,
+                        getFileName(files.get(i)) + ".bmp"));
+                selected.add(files.get(i));
+            }
+        }
+
+        int deleted = markDeletedFiles(manifest, paths, tracked.get());
+        getMetrics().record(Metrics.SCAN, start, files.size(), hashedBytes);
+        System.out.println("Incremental: " + added + " new, " + updated + " changed, " + (files.size() - added - updated - failures)
+                + " unchanged and " + deleted + " deleted files since the last run");
+        return selected;
+    }
+
+    /**
+     * @return false if the file was last encoded under another name, because another file with the same
+     * name has come or gone since
+     */
+    private boolean isEncodedAs(Manifest.Record record, File file) {
+        return record.getBitmap().equals(getFileName(file) + ".bmp");
+    }
+
+    /**
+     * @param tracked how many of the paths have a record that is not marked deleted yet
+     */
+    private int markDeletedFiles(Manifest manifest, String[] paths, int tracked) {
+        List<Manifest.Record> records = manifest.getRecords();
+        int active = 0;
+        for (Manifest.Record record : records) {
+            active += record.isDeleted() ? 0 : 1;
+        }
+        if (active == tracked) {
+            //every record was found again, the usual case for a nightly run
+            return 0;
+        }
+
+        Set<String> present = new HashSet<String>(Arrays.asList(paths));
+        //files the extension filter leaves out were not looked for, they are not gone
+        int deleted = 0;
+        long now = System.currentTimeMillis();
+        for (Manifest.Record record : records) {
+            if (!record.isDeleted() && !present.contains(record.getPath())
+                    && (getExtensionFilter() == null || FilenameUtils.isExtension(record.getPath(), getExtensionFilter()))) {
+                System.out.println("Deleted since the last run: " + record.getPath());
+                manifest.put(new Manifest.Record(record.getPath(), record.getSize(), record.getModified(), record.getHash(),
+                        record.getBitmap(), now));
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private void recordEncoded(File file) throws IOException {
+        Manifest.Record record = pendingRecords.remove(file);
+        if (record != null) {
+            getManifest().put(record);
+        }
+    }
+
+    private void finishIncremental() throws IOException {
+        if (manifest != null) {
+            manifest.save();
+            System.out.println(new File(getOutputDirectory(), Manifest.FILENAME) + " tracks " + manifest.size() + " files");
+        }
+    }
+
+    /**
+     * @return the catalog entry of a file that is about to be encoded into the bitmap
+     */
+    private Catalog.Entry describeFile(File file, String bitmapName) throws IOException {
+        //an incremental run has hashed it already
+        Manifest.Record record = pendingRecords.get(file);
+        if (record != null) {
+            return new Catalog.Entry(record.getPath(), getFileName(file), record.getSize(), record.getHash(), bitmapName);
+        }
+        return new Catalog.Entry(getRelativePath(getInputDirectoryPath(), file), getFileName(file), file.length(),
+                hashFile(file), bitmapName);
+    }
+
+    private List<File> findBitmapSet(Map<String, List<File>> bitmapSets, String bitmapName) {
+        List<File> files = bitmapSets.get(bitmapName);
+        return files != null ? files : Collections.<File>emptyList();
+    }
+
+    /**
+     * Groups bitmaps by the name they were written under, name.bmp for a single bitmap as well as for the
+     * parts name.partNNN.bmp of a split one. Only the names are looked at, if both are around the newer
+     * one is taken.
+     */
+    private Map<String, List<File>> groupBitmapSets(Collection<File> bitmaps) {
+        Map<String, List<File>> sets = new HashMap<String, List<File>>();
+        Map<String, List<File>> parts = new HashMap<String, List<File>>();
+        for (File bitmap : bitmaps) {
+            Matcher matcher = BITMAP_PART.matcher(bitmap.getName());
+            if (matcher.matches()) {
+                String bitmapName = matcher.group(1) + ".bmp";
+                if (!parts.containsKey(bitmapName)) {
+                    parts.put(bitmapName, new ArrayList<File>());
+                }
+                parts.get(bitmapName).add(bitmap);
+            } else {
+                sets.put(bitmap.getName(), Collections.singletonList(bitmap));
+            }
+        }
+        for (Map.Entry<String, List<File>> set : parts.entrySet()) {
+            List<File> single = sets.get(set.getKey());
+            long newest = 0;
+            for (File part : set.getValue()) {
+                newest = Math.max(newest, part.lastModified());
+            }
+            if (single == null || single.get(0).lastModified() < newest) {
+                sets.put(set.getKey(), set.getValue());
+            }
+        }
+        return sets;
+    }
+
+    private Catalog readCatalog(List<File> parts) throws IOException {
+        Map<File, BitmapHeader> headers = new HashMap<File, BitmapHeader>();
+        for (File part : parts) {
+            BitmapHeader header = readHeader(part);
+            if (header.getType() != BitmapHeader.TYPE_CATALOG) {
+                throw new IOException(part + " is not a catalog.");
+            }
+            headers.put(part, header);
+        }
+        if (!validateParts(parts, headers, parts.get(0))) {
+            throw new IOException(parts.get(0) + " is incomplete (see above).");
+        }
+        PayloadReader reader = new PayloadReader(parts, headers);
+        try {
+            if (reader.size() > Integer.MAX_VALUE) {
+                throw new IOException(parts.get(0) + " is too big to be read in memory.");
+            }
+            ByteBuffer payload = ByteBuffer.allocate((int) reader.size());
+            reader.read(payload, 0);
+            payload.flip();
+            return Catalog.read(payload, parts.get(0).getPath());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the bitmaps of the catalog an earlier run into the output directory wrote for the same input
+     */
+    private List<File> findPreviousCatalog() {
+        String catalogName = getInputTargetName() + Catalog.SUFFIX;
+        return findBitmapSet(groupBitmapSets(FileUtils.listFiles(new File(getOutputDirectory()),
+                new PrefixFileFilter(catalogName, IOCase.SYSTEM), null)), catalogName + ".bmp");
+    }
+
+    /**
+     * Hashing every file for the catalog costs a second read of it, so there is only a catalog when it is
+     * asked for. An incremental run hashes its files anyway and keeps a catalog it wrote before up to date.
+     *
+     * @return the catalog to fill, null if the run doesn't write one
+     */
+    private Catalog createCatalog() {
+        return isWriteCatalog() || (isIncremental() && !findPreviousCatalog().isEmpty()) ? new Catalog() : null;
+    }
+
+    /**
+     * Writes the catalog of the run next to its bitmaps, before the parity so it is protected as well. An
+     * incremental run lists everything the earlier runs still have, not just what it encoded itself.
+     */
+    private void finishCatalog() throws Exception {
+        if (catalog == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        String catalogName = getInputTargetName() + Catalog.SUFFIX;
+        String bitmapName = catalogName + ".bmp";
+        List<File> previous = findPreviousCatalog();
+        if (isIncremental()) {
+            if (!previous.isEmpty()) {
+                try {
+                    catalog.merge(readCatalog(previous));
+                } catch (IOException ex) {
+                    System.err.println("WARNING: Could not read the previous " + bitmapName + ", the new one only lists the files of this run: "
+                            + ex.getMessage());
+                }
+            }
+            for (Manifest.Record record : getManifest().getRecords()) {
+                if (record.isDeleted()) {
+                    catalog.remove(record.getPath());
+                }
+            }
+        }
+        if (!catalog.isModified()) {
+            return;
+        }
+
+        System.out.println("Cataloging " + catalog.size() + " files");
+        BitmapWriter writer = new BitmapWriter(generateOutputName(bitmapName), catalogName, BitmapHeader.TYPE_CATALOG,
+                getPayloadLimit(), getGeometryPlanner());
+        try {
+            writer.write(catalog.toByteBuffer());
+        } finally {
+            writer.close();
+        }
+        for (File bitmap : writer.getFiles()) {
+            registerBitmap(bitmap);
+        }
+        //a catalog that used to need more parts than it does now
+        for (File bitmap : previous) {
+            if (!writer.getFiles().contains(bitmap)) {
+                FileUtils.deleteQuietly(bitmap);
+            }
+        }
+        getMetrics().record(Metrics.CATALOG, start, catalog.size(), writer.getTotalSize());
+    }
+
+    /**
+     * Names the files after their path relative to the input directory where several of them share a
+     * name, with / written as %2F (and % as %25), so none of their bitmaps overwrites another and each
+     * one decodes to a name of its own. A file in the input directory itself keeps its name either way.
+     */
+    private void assignFileNames(List<File> files) {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (File file : files) {
+            Integer count = counts.get(file.getName());
+            counts.put(file.getName(), count == null ? 1 : count + 1);
+        }
+        Path inputDirectory = getInputDirectoryPath();
+        Map<String, File> assigned = new HashMap<String, File>();
+        for (File file : files) {
+            if (counts.get(file.getName()) > 1) {
+                fileNames.put(file, getRelativePath(inputDirectory, file).replace("%", "%25").replace("/", "%2F"));
+            }
+            //only a file that is literally named like the escaped path of another one gets here
+            File previous = assigned.put(getFileName(file), file);
+            if (previous != null) {
+                System.err.println("WARNING: " + previous.getAbsolutePath() + " and " + file.getAbsolutePath()
+                        + " are both encoded as " + getFileName(file) + ".bmp, only the last one is kept.");
+            }
+        }
+    }
+
+    /**
+     * @return the name the file is encoded under and decodes to
+     */
+    private String getFileName(File file) {
+        String name = fileNames.get(file);
+        return name != null ? name : file.getName();
+    }
+
+    private void encodeFile(File file) throws Exception {
+        String bitmapName = getFileName(file) + ".bmp";
+        Catalog.Entry entry = catalog != null ? describeFile(file, bitmapName) : null;
+        generateBitmap(file.getAbsolutePath(), generateOutputName(bitmapName));
+        recordEncoded(file);
+        if (entry != null) {
+            catalog.put(entry);
+        }
+        if(isCleanUp() && isPerformRar()) {
+            deleteFile(file);
+        }
+    }
+
+    private void performParallelEncoding(List<File> files) throws Exception {
+        //every file has a bitmap of its own and becomes a task of its own, only files assignFileNames warned
+        //about share one; those stay together in listing order so the same file is kept as in the serial path
+        final Map<String, List<File>> groups = new LinkedHashMap<String, List<File>>();
+        final Map<String, Long> groupSizes = new HashMap<String, Long>();
+        for (File file : files) {
+            String outputName = generateOutputName(getFileName(file) + ".bmp");
+            if (!groups.containsKey(outputName)) {
+                groups.put(outputName, new ArrayList<File>());
+                groupSizes.put(outputName, 0L);
+            }
+            groups.get(outputName).add(file);
+            groupSizes.put(outputName, groupSizes.get(outputName) + file.length());
+        }
+
+        //schedule the largest work first so no worker is left with a big file at the end
+        List<String> outputNames = new ArrayList<String>(groups.keySet());
+        Collections.sort(outputNames, new Comparator<String>() {
+            @Override
+            public int compare(String left, String right) {
+                return groupSizes.get(right).compareTo(groupSizes.get(left));
+            }
+        });
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (String outputName : outputNames) {
+            final List<File> group = groups.get(outputName);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (File file : group) {
+                        try {
+                            encodeFile(file);
+                        } catch (Exception ex) {
+                            throw new Exception("Failed to encode " + file.getAbsolutePath() + ": " + ex.getMessage(), ex);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+
+        int failures = TaskUtility.executeTasks(tasks, getThreads());
+        if (failures > 0) {
+            reportError(failures + " of " + tasks.size() + " encode tasks failed (see above).");
+        }
+    }
+
+    private List<File> performPackedEncoding(List<File> files) throws Exception {
+        //fill each bitmap up to its pixel capacity, files that don't fit anywhere are encoded on their own
+        long capacity = Math.min(getMaxFileSize(), getGeometryPlanner().getCapacity());
+        List<File> unpacked = new ArrayList<File>();
+        final List<List<File>> batches = new ArrayList<List<File>>();
+        List<File> batch = null;
+        long batchSize = 0;
+        for (File file : files) {
+            long size = file.length();
+            if (size > capacity) {
+                unpacked.add(file);
+                continue;
+            }
+            if (batch == null || batchSize + size > capacity) {
+                batch = new ArrayList<File>();
+                batches.add(batch);
+                batchSize = 0;
+            }
+            batch.add(file);
+            batchSize += size;
+        }
+
+        int digits = String.valueOf(Math.max(batches.size(), 10000)).length();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < batches.size(); i++) {
+            final int index = i;
+            final String outputName = generateOutputName(getInputTargetName() + ".pack"
+                    + String.format("%0" + digits + "d", index + 1) + ".bmp");
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    List<File> batch = batches.get(index);
+                    try {
+                        List<Catalog.Entry> entries = new ArrayList<Catalog.Entry>();
+                        for (int i = 0; catalog != null && i < batch.size(); i++) {
+                            entries.add(describeFile(batch.get(i), new File(outputName).getName()));
+                        }
+                        writePackedBitmap(batch, index, batches.size(), outputName);
+                        for (Catalog.Entry entry : entries) {
+                            catalog.put(entry);
+                        }
+                    } catch (Exception ex) {
+                        throw new Exception("Failed to encode " + outputName + ": " + ex.getMessage(), ex);
+                    }
+                    if (isCleanUp() && isPerformRar()) {
+                        for (File file : batch) {
+                            deleteFile(file);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+
+        int failures = TaskUtility.executeTasks(tasks, getThreads());
+        if (failures > 0) {
+            reportError(failures + " of " + tasks.size() + " packed bitmaps failed (see above).");
+        }
+        return unpacked;
+    }
+
+    private boolean isSelectedEntry(ArchiveEntry entry) {
+        String name = FilenameUtils.getName(entry.getName());
+        boolean returnValue = !entry.isDirectory() && !name.isEmpty();
+        if (entry instanceof TarArchiveEntry) {
+            //links, devices and fifos have no data of their own
+            TarArchiveEntry tarEntry = (TarArchiveEntry) entry;
+            returnValue &= !(tarEntry.isSymbolicLink() || tarEntry.isLink() || tarEntry.isCharacterDevice()
+                    || tarEntry.isBlockDevice() || tarEntry.isFIFO());
+        }
+        if (getExtensionFilter() != null) {
+            returnValue &= FilenameUtils.isExtension(name, getExtensionFilter());
+        }
+        return returnValue;
+    }
+
+    private void performArchiveEncoding() throws Exception {
+        if (isPack()) {
+            System.out.println("Packing needs every file up front, the archive entries are encoded one per bitmap.");
+        }
+        //a stream that was handed in stays open, it belongs to the caller
+        InputStream inputStream = getInputStream() != null ? new CloseShieldInputStream(getInputStream())
+                : new FileInputStream(getInputTarget());
+        ArchiveInputStream archiveStream;
+        try {
+            archiveStream = ArchiveUtility.openArchive(inputStream, getInputTargetName());
+        } catch (IOException ex) {
+            inputStream.close();
+            throw ex;
+        }
+
+        try {
+            //the entries come straight out of the archive one after another, nothing is extracted to disk
+            ArchiveEntry entry;
+            while ((entry = archiveStream.getNextEntry()) != null) {
+                if (!isSelectedEntry(entry)) {
+                    continue;
+                }
+                if (!archiveStream.canReadEntryData(entry)) {
+                    reportError("Skipping " + entry.getName() + ", its data is encrypted or uses an unsupported method.");
+                    continue;
+                }
+                String outputName = generateOutputName(FilenameUtils.getName(entry.getName()) + ".bmp");
+                try {
+                    //the encoders must not close the archive at the end of an entry
+                    generateBitmap(new CloseShieldInputStream(archiveStream), entry.getName(), entry.getSize(), outputName);
+                } catch (Exception ex) {
+                    throw new Exception("Failed to encode " + entry.getName() + " from " + getInputTargetName() + ": "
+                            + ex.getMessage(), ex);
+                }
+            }
+        } finally {
+            archiveStream.close();
+        }
+    }
+
+    private void performParity() throws Exception {
+        if (getParityShards() == 0 || generatedBitmaps.isEmpty()) {
+            return;
+        }
+
+        List<File> bitmaps = new ArrayList<File>(generatedBitmaps);
+        Collections.sort(bitmaps);
+        String baseName = getInputTargetName();
+        if (isIncremental() || isDedup()) {
+            //later runs add their bitmaps to the same directory, their parity must not replace this run's
+            baseName += "-" + Long.toString(System.currentTimeMillis(), 36);
+        }
+        int groups = (bitmaps.size() + getParityData() - 1) / getParityData();
+        System.out.println("Protecting " + bitmaps.size() + " bitmaps with " + getParityShards() + " parity bitmaps per group of "
+                + getParityData());
+        for (int group = 0; group < groups; group++) {
+            List<File> dataFiles = bitmaps.subList(group * getParityData(), Math.min(bitmaps.size(), (group + 1) * getParityData()));
+            long start = System.nanoTime();
+            List<File> parityFiles = ParityUtility.writeParityGroup(dataFiles, group, getParityShards(),
+                    generateOutputName(baseName), getGeometryPlanner(), getThreads());
+            registerParity(parityFiles);
+            long size = 0;
+            for (File parityFile : parityFiles) {
+                size += parityFile.length();
+            }
+            getMetrics().record(Metrics.PARITY, start, parityFiles.size(), size);
+        }
+    }
+
+    private void performEncoding() throws Exception {
+
+        if (getInputStream() != null) {
+            //the stream is split into bitmaps as it comes in, however long it turns out to be
+            generateBitmap(getInputStream(), getInputName(), getInputSize(), generateOutputName(getInputName() + ".bmp"));
+        } else if (isInputTargetADirectory()) {
+            //no filter lists every file
+            String[] extensions = null;
+            if (getExtensionFilter() != null) {
+                extensions = new String[]{getExtensionFilter()};
+            }
+            long start = System.nanoTime();
+            List<File> files = (List<File>) FileUtils.listFiles(getInputTarget(), extensions, true);
+            getMetrics().record(Metrics.LIST, start, files.size(), 0);
+            assignFileNames(files);
+            catalog = createCatalog();
+            if (isIncremental()) {
+                files = selectChangedFiles(files);
+            }
+            if (isPack()) {
+                files = performPackedEncoding(files);
+            }
+            if (getThreads() > 1) {
+                performParallelEncoding(files);
+            } else {
+                for (File file : files) {
+                    encodeFile(file);
+                }
+            }
+        } else {
+            catalog = createCatalog();
+            if (!isIncremental() || !selectChangedFiles(Collections.singletonList(getInputTarget())).isEmpty()) {
+                //process a single file
+                encodeFile(getInputTarget());
+            }
+        }
+    }
+
+    private boolean isInputTargetADirectory() {
+        return getInputTarget().isDirectory();
+    }
+
+    private boolean isStdinInput() {
+        return getInputTarget() != null && STDIN.equals(getInputTarget().getPath());
+    }
+
+    private boolean isStdoutOutput() {
+        return STDOUT.equals(getOutputDirectory());
+    }
+
+    private String getInputTargetName() {
+        return getInputName() != null ? getInputName() : getInputTarget().getName();
+    }
+
+    private boolean isEncode() {
+        boolean returnValue = false;
+        if (getAction().equalsIgnoreCase("encode")) {
+            returnValue = true;
+        }
+        return returnValue;
+    }
+
+    private void removeRars() {
+        removeFiles("rar");
+    }
+
+    private void deleteFile(File file) {
+        System.out.println("Deleting " + file.getAbsolutePath());
+        long start = System.nanoTime();
+        long size = file.length();
+        if (FileUtils.deleteQuietly(file)) {
+            getMetrics().record(Metrics.CLEANUP, start, 1, size);
+        }
+    }
+
+    private void removeFiles(String extension) {
+        String[] extensions = new String[]{extension};
+        List<File> files = (List<File>) FileUtils.listFiles(new File(getOutputDirectory()), extensions, true);
+        for (File file : files) {
+            deleteFile(file);
+        }
+    }
+
+    private void performRar() throws Exception {
+        //the volumes are encoded while rar is still writing the next ones
+        executeRar();
+        //the rars are the input now, the parity bitmaps are named after it
+        setInputTarget(new File(getOutputDirectory()));
+        setExtensionFilter("rar");
+    }
+
     private void extractRars() throws Exception {
         if (isPerformRar() && RarUtility.isRarAvailable()) {
             executeUnrar();
@@ -818,26 +3837,139 @@ public class BattEngine {
     }
 
     private void handleDecodeRequest() throws Exception {
-        performUnzip();
-        performDecode();
-        extractRars();
+        if (getOutputChannel() != null) {
+            performStreamDecode();
+        } else if (getGlob() != null) {
+            performSelectiveDecode();
+        } else if (isZipInput()) {
+            performZipDecode(Collections.singletonList(getInputTarget()));
+        } else {
+            performDecode();
+        }
+        if (!isStreamingRarDecode()) {
+            extractRars();
+        }
     }
 
     private void handleEncodeRequest() throws Exception {
-        performRar();
-        performEncoding();
+        if (isArchive()) {
+            performArchiveEncoding();
+        } else if (isPerformRar() && RarUtility.isRarAvailable()) {
+            performRar();
+        } else {
+            performEncoding();
+        }
+        finishDedup();
+        finishIncremental();
+        finishCatalog();
+        performParity();
     }
 
-    public void start(String[] args) throws Exception {
+    /**
+     * Parses the arguments and prepares the output directory without running anything, used by the
+     * benchmarks to drive the encoder and decoder directly.
+     */
+    void configure(String[] args) throws Exception {
         parseCommandline(args);
-        printoutCurrentSettings();
+        createOutputDirectory();
+    }
+
+    private void reportMetrics() {
+        getMetrics().printSummary();
+        if (getMetricsFile() != null) {
+            try {
+                getMetrics().writeSummary(getMetricsFile(), getAction());
+                System.out.println("Metrics written to " + getMetricsFile());
+            } catch (IOException ex) {
+                System.err.println("ERROR: Could not write the metrics to " + getMetricsFile() + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Applies the settings of a library call, the counterpart of parsing the command line.
+     */
+    void configure(String action, BattConfig config) {
+        setAction(action);
+        setWidth(config.getWidth());
+        setHeight(config.getHeight());
+        setMaxFileSize(config.getMaxFileSize());
+        setPixelBudget(config.getPixelBudget());
+        setBytesPerPixel(config.getBytesPerPixel());
+        setThreads(config.getThreads());
+        setPack(config.isPack());
+        setCompression(config.getCompression());
+        setDedup(config.isDedup());
+        setParityData(config.getParityData());
+        setParityShards(config.getParityShards());
+        setExtensionFilter(config.getExtensionFilter());
+        setArchive(config.isArchive());
+        setIncremental(config.isIncremental());
+        setWriteCatalog(config.isCatalog());
+        setCleanUp(config.isCleanUp());
+        setPerformRar(config.isPerformRar());
+        setRarLocation(config.getRarLocation());
+        if (config.getRarName() != null) {
+            setRarName(config.getRarName());
+        }
+        setRarPassword(config.getRarPassword());
+        setRarCompression(config.getRarCompression());
+        setRarRecoveryRecord(config.getRarRecoveryRecord());
+        setRarStream(config.isRarStream());
+        setRarTimeout(config.getRarTimeout());
+    }
+
+    /**
+     * Sets where a library call reads from and writes to, a null output directory when the decode
+     * goes to the output channel.
+     */
+    void setTargets(File inputTarget, File outputDirectory) {
+        setInputTarget(inputTarget);
+        if (outputDirectory != null) {
+            setOutputDirectory(outputDirectory.getPath());
+        }
+    }
+
+    /**
+     * Runs the configured action, without the settings printout and the metrics report of start.
+     */
+    void run() throws Exception {
         createOutputDirectory();
         //here's the meat
-        if (isEncode()) {
-            handleEncodeRequest();
-        } else {
-            //we only have two actions, so it must be a decode
-            handleDecodeRequest();
+        try {
+            if (isEncode()) {
+                handleEncodeRequest();
+            } else if (SERVE.equalsIgnoreCase(getAction())) {
+                performServe();
+            } else {
+                handleDecodeRequest();
+            }
+        } finally {
+            shutdownCompressionExecutor();
+        }
+    }
+
+    public void start(String[] args) throws Exception {
+        parseCommandline(args);
+        PrintStream console = System.out;
+        if (isStdoutOutput()) {
+            //the decoded data owns stdout, everything else goes to stderr
+            System.setOut(System.err);
+            setOutputChannel(new FileOutputStream(FileDescriptor.out).getChannel());
+        }
+        if (isStdinInput()) {
+            setInputStream(System.in, STDIN_NAME, -1);
+        }
+        printoutCurrentSettings();
+        //the stages are visible over JMX for as long as the run lasts
+        getMetrics().reset();
+        getMetrics().register();
+        try {
+            run();
+        } finally {
+            getMetrics().unregister();
+            reportMetrics();
+            System.setOut(console);
         }
     }
 }
@@ -39,6 +39,7 @@ import java.awt.dnd.DropTarget;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.*;
+import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.List;
@@ -87,48 +88,28 @@ public class BattEngineGUI {
         return returnValue;
     }
 
-    private String[] buildTwiddlerCommands(String action) {
-        //build the proper command string
-        List<String> command = new ArrayList<String>();
-        command.add("-s");
-        command.add("-a");
-        command.add(action);
-        command.add("-i");
-        command.add(inputTargetTextField.getText());
-        command.add("-o");
-        command.add(outputDirectoryTextField.getText());
-        command.add("-w");
-        command.add(String.valueOf((Integer) widthSpinner.getValue()));
-        command.add("-h");
-        command.add(String.valueOf((Integer) heightSpinner.getValue()));
-        command.add("-m");
-        command.add(String.valueOf(calculateFileSize()));
-        command.add("-b");
-        command.add(String.valueOf((Integer) bytesPerPixelSpinner.getValue()));
-        command.add("-e");
-        command.add(extensionFilterTextField.getText());
-
-        if (cleanUpTemporaryFilesCheckBox.isSelected()) {
-            command.add("-c");
-        }
+    private BattConfig buildConfig() {
+        BattConfig.Builder builder = new BattConfig.Builder()
+                .setWidth((Integer) widthSpinner.getValue())
+                .setHeight((Integer) heightSpinner.getValue())
+                .setMaxFileSize(calculateFileSize())
+                .setBytesPerPixel((Integer) bytesPerPixelSpinner.getValue())
+                .setExtensionFilter(extensionFilterTextField.getText())
+                .setCleanUp(cleanUpTemporaryFilesCheckBox.isSelected());
 
         if (enableRarCheckBox.isSelected()) {
-            command.add("-r");
-            command.add("-rx");
-            command.add(String.valueOf((Integer) compressionLevelSpinner.getValue()));
-            command.add("-rr");
-            command.add(String.valueOf((Integer) recoveryRecordSpinner.getValue()));
+            builder.setRar(true)
+                    .setRarCompression((Integer) compressionLevelSpinner.getValue())
+                    .setRarRecoveryRecord((Integer) recoveryRecordSpinner.getValue());
             if (archiveNameTextField != null && !archiveNameTextField.getText().trim().isEmpty()) {
-                command.add("-rn");
-                command.add(archiveNameTextField.getText());
+                builder.setRarName(archiveNameTextField.getText());
             }
             if (rarPasswordPasswordField != null && rarPasswordPasswordField.getPassword().length > 0) {
-                command.add("-rp");
-                command.add(new String(rarPasswordPasswordField.getPassword()));
+                builder.setRarPassword(new String(rarPasswordPasswordField.getPassword()));
             }
         }
 
-        return command.toArray(new String[command.size()]);
+        return builder.build();
     }
 
     private Integer calculateFileSize() {
@@ -299,7 +280,12 @@ public class BattEngineGUI {
                     @Override
                     protected Void doInBackground() throws Exception {
                         try {
-                            new BattEngine().start(buildTwiddlerCommands("encode"));
+                            BattTranscoder transcoder = new BattTranscoder(buildConfig());
+                            try {
+                                transcoder.encode(Paths.get(inputTargetTextField.getText()), Paths.get(outputDirectoryTextField.getText()));
+                            } finally {
+                                transcoder.close();
+                            }
                         } catch (Exception ex) {
                             System.err.println(ex.getMessage());
                             System.err.println("");
@@ -325,7 +311,12 @@ public class BattEngineGUI {
                     @Override
                     protected Void doInBackground() throws Exception {
                         try {
-                            new BattEngine().start(buildTwiddlerCommands("decode"));
+                            BattTranscoder transcoder = new BattTranscoder(buildConfig());
+                            try {
+                                transcoder.decode(Paths.get(inputTargetTextField.getText()), Paths.get(outputDirectoryTextField.getText()));
+                            } finally {
+                                transcoder.close();
+                            }
                         } catch (Exception ex) {
                             System.err.println(ex.getMessage());
                             System.err.println("");
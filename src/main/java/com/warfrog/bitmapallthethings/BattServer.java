@@ -0,0 +1,421 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves the files of a catalog over HTTP on the loopback interface, straight out of their bitmaps.
+ * GET and HEAD are supported, with single byte ranges so media players can seek. Every file is read in
+ * blocks that go through a shared LRU cache: mapped files in blocks of BLOCK_SIZE, compressed ones in
+ * their compression blocks, which are only inflated once while they stay cached.
+ */
+public class BattServer {
+
+    public static final int BLOCK_SIZE = 1024 * 1024;
+    //a media player alone keeps a couple of connections busy
+    private static final int MIN_THREADS = 4;
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Catalog catalog;
+    private final Opener opener;
+    private final BlockCache cache;
+    private final Metrics metrics;
+    private final ConcurrentHashMap<String, Source> sources = new ConcurrentHashMap<String, Source>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Opens the bitmaps of a cataloged file.
+     */
+    public interface Opener {
+        Source open(Catalog.Entry entry) throws IOException;
+    }
+
+    /**
+     * A file that is read a block at a time, blocks start and end at the same offsets on every call.
+     */
+    public interface Source extends Closeable {
+        long size();
+
+        int findBlock(long position);
+
+        long getBlockStart(int block);
+
+        byte[] readBlock(int block) throws IOException;
+    }
+
+    /**
+     * Reads a file that is mapped for random access.
+     */
+    public static class MappedSource implements Source {
+        private final MappedPayload payload;
+
+        public MappedSource(MappedPayload payload) {
+            this.payload = payload;
+        }
+
+        @Override
+        public long size() {
+            return payload.size();
+        }
+
+        @Override
+        public int findBlock(long position) {
+            return (int) (position / BLOCK_SIZE);
+        }
+
+        @Override
+        public long getBlockStart(int block) {
+            return (long) block * BLOCK_SIZE;
+        }
+
+        @Override
+        public byte[] readBlock(int block) throws IOException {
+            long start = getBlockStart(block);
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BLOCK_SIZE, size() - start));
+            while (buffer.hasRemaining() && payload.read(buffer, start + buffer.position()) > 0) {
+                //the mappings hand out everything up to the end in one go, this loop is just in case
+            }
+            return buffer.array();
+        }
+
+        @Override
+        public void close() {
+            payload.close();
+        }
+    }
+
+    /**
+     * Reads a compressed file by its compression blocks, the frame headers are walked once up front so
+     * any block can be found and inflated on its own.
+     */
+    public static class CompressedSource implements Source {
+        private final PayloadReader reader;
+        private final String codec;
+        private final long size;
+        private final long[] framePositions;
+        private final long[] rawStarts;
+        private final int[] rawLengths;
+        private final int[] storedLengths;
+
+        public CompressedSource(PayloadReader reader, String name) throws IOException {
+            this.reader = reader;
+            ByteBuffer header = ByteBuffer.allocate(CompressionUtility.STREAM_HEADER_SIZE);
+            reader.read(header, 0);
+            this.codec = CompressionUtility.readCodec(header, name);
+            this.size = CompressionUtility.readRawSize(header);
+
+            List<long[]> frames = new ArrayList<long[]>();
+            ByteBuffer frame = ByteBuffer.allocate(CompressionUtility.FRAME_HEADER_SIZE);
+            frame.order(ByteOrder.LITTLE_ENDIAN);
+            long position = CompressionUtility.STREAM_HEADER_SIZE;
+            long raw = 0;
+            while (raw < size) {
+                frame.clear();
+                reader.read(frame, position);
+                int rawLength = frame.getInt(0);
+                int storedLength = frame.getInt(4);
+                if (rawLength <= 0 || rawLength > size - raw || storedLength <= 0 || storedLength > rawLength) {
+                    throw new IOException(name + " has a corrupt compressed block.");
+                }
+                frames.add(new long[]{position, raw, rawLength, storedLength});
+                position += CompressionUtility.FRAME_HEADER_SIZE + storedLength;
+                raw += rawLength;
+            }
+
+            this.framePositions = new long[frames.size()];
+            this.rawStarts = new long[frames.size()];
+            this.rawLengths = new int[frames.size()];
+            this.storedLengths = new int[frames.size()];
+            for (int i = 0; i < frames.size(); i++) {
+                framePositions[i] = frames.get(i)[0];
+                rawStarts[i] = frames.get(i)[1];
+                rawLengths[i] = (int) frames.get(i)[2];
+                storedLengths[i] = (int) frames.get(i)[3];
+            }
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public int findBlock(long position) {
+            int low = 0;
+            int high = rawStarts.length - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (rawStarts[middle] <= position) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+
+        @Override
+        public long getBlockStart(int block) {
+            return rawStarts[block];
+        }
+
+        @Override
+        public byte[] readBlock(int block) throws IOException {
+            byte[] stored = new byte[storedLengths[block]];
+            reader.read(ByteBuffer.wrap(stored), framePositions[block] + CompressionUtility.FRAME_HEADER_SIZE);
+            return CompressionUtility.decompressBlock(codec, stored, rawLengths[block]);
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * @param cacheBudget the bytes the block cache may hold
+     */
+    public BattServer(Catalog catalog, Opener opener, long cacheBudget, Metrics metrics) {
+        this.catalog = catalog;
+        this.opener = opener;
+        this.cache = new BlockCache(cacheBudget);
+        this.metrics = metrics;
+    }
+
+    public BlockCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Starts listening on the loopback interface.
+     *
+     * @param port the port, 0 picks a free one
+     * @return the port the server listens on
+     */
+    public int start(int port, int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        executor = Executors.newFixedThreadPool(Math.max(MIN_THREADS, threads));
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } catch (IOException ex) {
+                    //mostly players that hang up halfway through a range
+                    System.err.println("WARNING: " + exchange.getRequestMethod() + " " + exchange.getRequestURI() + " failed: "
+                            + ex.getMessage());
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Blocks until the server is stopped.
+     */
+    public void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            for (Source source : sources.values()) {
+                try {
+                    source.close();
+                } catch (IOException ex) {
+                    //nothing is written, there is nothing to lose
+                }
+            }
+            sources.clear();
+        }
+        stopped.countDown();
+    }
+
+    private Source getSource(Catalog.Entry entry) throws IOException {
+        Source source = sources.get(entry.getPath());
+        if (source == null) {
+            Source opened = opener.open(entry);
+            source = sources.putIfAbsent(entry.getPath(), opened);
+            if (source == null) {
+                source = opened;
+            } else {
+                //another request opened it at the same time
+                opened.close();
+            }
+        }
+        return source;
+    }
+
+    private byte[] getBlock(Catalog.Entry entry, Source source, int block) throws IOException {
+        String key = entry.getPath() + "#" + block;
+        byte[] data = cache.get(key);
+        if (data == null) {
+            data = source.readBlock(block);
+            cache.put(key, data);
+        }
+        return data;
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] body = text.getBytes(UTF8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        boolean head = "HEAD".equals(exchange.getRequestMethod());
+        exchange.sendResponseHeaders(status, head ? -1 : body.length);
+        if (!head) {
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    private void sendIndex(HttpExchange exchange) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (Catalog.Entry entry : catalog.getEntries()) {
+            text.append(entry.getPath()).append('\t').append(entry.getSize()).append('\n');
+        }
+        sendText(exchange, 200, text.toString());
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte value : bytes) {
+            hex.append(String.format("%02x", value & 0xFF));
+        }
+        return hex.toString();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        String method = exchange.getRequestMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+            sendText(exchange, 405, method + " is not supported.\n");
+            return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        path = path.startsWith("/") ? path.substring(1) : path;
+        if (path.isEmpty()) {
+            sendIndex(exchange);
+            return;
+        }
+        Catalog.Entry entry = catalog.find(path);
+        if (entry == null) {
+            sendText(exchange, 404, path + " is not in the catalog.\n");
+            return;
+        }
+
+        Source source;
+        try {
+            source = getSource(entry);
+        } catch (IOException ex) {
+            System.err.println("ERROR: Could not open " + path + ": " + ex.getMessage());
+            sendText(exchange, 500, "Could not open " + path + ": " + ex.getMessage() + "\n");
+            return;
+        }
+
+        //a single range is served as asked, several ranges get the whole file which is just as valid
+        long size = source.size();
+        long first = 0;
+        long last = size - 1;
+        int status = 200;
+        Headers headers = exchange.getResponseHeaders();
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher matcher = range != null ? RANGE.matcher(range.trim()) : null;
+        if (matcher != null && matcher.matches() && !(matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+            try {
+                if (matcher.group(1).isEmpty()) {
+                    //the last n bytes
+                    first = Math.max(0, size - Long.parseLong(matcher.group(2)));
+                } else {
+                    first = Long.parseLong(matcher.group(1));
+                    if (!matcher.group(2).isEmpty()) {
+                        last = Math.min(last, Long.parseLong(matcher.group(2)));
+                    }
+                }
+            } catch (NumberFormatException ex) {
+                first = size;
+            }
+            if (first >= size || first > last) {
+                headers.set("Content-Range", "bytes */" + size);
+                sendText(exchange, 416, "The range " + range + " is outside of the " + size + " bytes of " + path + ".\n");
+                return;
+            }
+            status = 206;
+            headers.set("Content-Range", "bytes " + first + "-" + last + "/" + size);
+        }
+
+        String contentType = URLConnection.getFileNameMap().getContentTypeFor(entry.getName());
+        headers.set("Content-Type", contentType != null ? contentType : "application/octet-stream");
+        headers.set("Accept-Ranges", "bytes");
+        headers.set("ETag", "\"" + toHex(entry.getHash()) + "\"");
+        long length = last - first + 1;
+        if ("HEAD".equals(method) || length == 0) {
+            headers.set("Content-Length", String.valueOf(length));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, length);
+
+        OutputStream body = exchange.getResponseBody();
+        long position = first;
+        for (int block = source.findBlock(first); position <= last; block++) {
+            byte[] data = getBlock(entry, source, block);
+            int offset = (int) (position - source.getBlockStart(block));
+            int count = (int) Math.min(data.length - offset, last - position + 1);
+            body.write(data, offset, count);
+            position += count;
+        }
+        body.flush();
+        metrics.record(Metrics.SERVE, start, 1, length);
+        System.out.println(method + " " + path + " " + status + " " + (status == 206 ? first + "-" + last : length + " bytes"));
+    }
+}
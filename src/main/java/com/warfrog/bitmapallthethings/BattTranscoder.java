@@ -0,0 +1,306 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * B.A.T.T. as a library. A transcoder keeps its buffer pools and compression threads for as long as it
+ * is open, so a service can encode and decode job after job without paying for them again. It is safe
+ * to call from several threads at once, every call runs on an engine of its own. Progress is reported on
+ * stdout just like on the command line, problems with single files on stderr; a call that had any
+ * throws an IOException once it is done with the rest.
+ */
+public class BattTranscoder implements Closeable {
+
+    private static final String ENCODE = "encode";
+    private static final String DECODE = "decode";
+    private static final String BUFFER_NAME = "buffer";
+
+    private final BattConfig config;
+    private final BufferPool directBuffers = new BufferPool("direct", true);
+    private final BufferPool heapBuffers = new BufferPool("heap", false);
+    private final ExecutorService compressionExecutor;
+
+    public BattTranscoder(BattConfig config) {
+        this.config = config;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.compressionExecutor = Executors.newFixedThreadPool(config.getThreads(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                //an embedding application must not be kept alive by a transcoder it forgot to close
+                Thread thread = new Thread(runnable, "batt-compression-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public BattConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return the direct and the heap buffer pool, their hits and misses show how well they are reused
+     */
+    public List<BufferPoolMBean> getBufferPools() {
+        return Arrays.<BufferPoolMBean>asList(directBuffers, heapBuffers);
+    }
+
+    private BattEngine createEngine(String action) {
+        BattEngine engine = new BattEngine(directBuffers, heapBuffers, compressionExecutor);
+        engine.configure(action, config);
+        return engine;
+    }
+
+    private static void run(BattEngine engine) throws IOException {
+        try {
+            engine.run();
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+        if (engine.getErrors() > 0) {
+            throw new IOException(engine.getErrors() + " errors were reported (see above).");
+        }
+    }
+
+    private static void checkExists(Path path) throws FileNotFoundException {
+        if (path.toString().isEmpty() || !Files.exists(path)) {
+            throw new FileNotFoundException(path + " does not exist.");
+        }
+    }
+
+    private void checkStreamable() {
+        if (config.isPerformRar()) {
+            throw new IllegalArgumentException("Rar needs files, it can not be used to transcode streams.");
+        }
+    }
+
+    private static List<Path> toPaths(List<File> files) {
+        List<Path> paths = new ArrayList<Path>();
+        for (File file : files) {
+            paths.add(file.toPath());
+        }
+        return paths;
+    }
+
+    /**
+     * Encodes a file, or every file of a directory.
+     *
+     * @return the bitmaps that were written
+     */
+    public List<Path> encode(Path input, Path outputDirectory) throws IOException {
+        checkExists(input);
+        BattEngine engine = createEngine(ENCODE);
+        engine.setTargets(input.toFile(), outputDirectory.toFile());
+        run(engine);
+        return toPaths(engine.getGeneratedBitmaps());
+    }
+
+    /**
+     * Encodes everything the stream delivers up to its end, as a file of the given name (or as the
+     * entries of a tar or zip stream with the archive option). The stream is not closed.
+     *
+     * @return the bitmaps that were written
+     */
+    public List<Path> encode(InputStream input, String name, Path outputDirectory) throws IOException {
+        return encode(input, name, -1, outputDirectory);
+    }
+
+    /**
+     * Encodes the remaining bytes of the buffer as a file of the given name. The buffer is left as it is.
+     *
+     * @return the bitmaps that were written
+     */
+    public List<Path> encode(ByteBuffer input, String name, Path outputDirectory) throws IOException {
+        return encode(new ByteBufferInputStream(input.duplicate()), name, input.remaining(), outputDirectory);
+    }
+
+    private List<Path> encode(InputStream input, String name, long size, Path outputDirectory) throws IOException {
+        checkStreamable();
+        if (config.isIncremental()) {
+            throw new IllegalArgumentException("Incremental encoding tracks files, it can not be used to encode streams.");
+        }
+        BattEngine engine = createEngine(ENCODE);
+        engine.setTargets(null, outputDirectory.toFile());
+        engine.setInputStream(input, name, size);
+        run(engine);
+        return toPaths(engine.getGeneratedBitmaps());
+    }
+
+    /**
+     * Decodes a bitmap, a directory of bitmaps or a zip of bitmaps into the output directory.
+     */
+    public void decode(Path input, Path outputDirectory) throws IOException {
+        checkExists(input);
+        BattEngine engine = createEngine(DECODE);
+        engine.setTargets(input.toFile(), outputDirectory.toFile());
+        run(engine);
+    }
+
+    /**
+     * Restores the files whose path relative to the encoded directory matches the glob (docs/**.pdf, a
+     * single path, ...) into their directory tree, reading only the bitmaps the catalog of the encode
+     * lists for them. The encode must have written a catalog ({@link BattConfig.Builder#setCatalog(boolean)}).
+     */
+    public void decode(Path inputDirectory, String glob, Path outputDirectory) throws IOException {
+        checkExists(inputDirectory);
+        if (!Files.isDirectory(inputDirectory)) {
+            throw new IllegalArgumentException("A glob needs a directory of bitmaps to look up, " + inputDirectory + " is not one.");
+        }
+        if (config.isCleanUp() || config.isPerformRar()) {
+            throw new IllegalArgumentException("A glob can not be combined with clean up or rar.");
+        }
+        //a malformed glob fails here, before anything is read
+        FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        BattEngine engine = createEngine(DECODE);
+        engine.setTargets(inputDirectory.toFile(), outputDirectory.toFile());
+        engine.setGlob(glob);
+        run(engine);
+    }
+
+    /**
+     * Maps a plain bitmap, or the parts of a file that was split, for random access without decoding it.
+     */
+    public MappedPayload open(List<Path> bitmaps) throws IOException {
+        List<File> files = new ArrayList<File>();
+        for (Path bitmap : bitmaps) {
+            checkExists(bitmap);
+            files.add(bitmap.toFile());
+        }
+        return MappedPayload.open(files);
+    }
+
+    /**
+     * Maps the file with this path (relative to the directory that was encoded) for random access,
+     * looked up in the catalog of the encode (see {@link BattConfig.Builder#setCatalog(boolean)}). Packed and
+     * deduplicated files work as well, compressed ones have to be decoded.
+     */
+    public MappedPayload open(Path inputDirectory, String path) throws IOException {
+        checkExists(inputDirectory);
+        BattEngine engine = createEngine(DECODE);
+        engine.setTargets(inputDirectory.toFile(), null);
+        return engine.openPayload(path);
+    }
+
+    /**
+     * Decodes a single file into the stream: a plain bitmap, or a directory holding the parts of one
+     * chunked or compressed file (parity bitmaps are skipped). The stream is not closed.
+     */
+    public void decode(Path input, OutputStream output) throws IOException {
+        checkExists(input);
+        checkStreamable();
+        BattEngine engine = createEngine(DECODE);
+        engine.setTargets(input.toFile(), null);
+        engine.setOutputChannel(Channels.newChannel(output));
+        run(engine);
+        output.flush();
+    }
+
+    /**
+     * Decodes a bitmap that is already in memory, from the position of the buffer on. Plain bitmaps and
+     * files that fit in a single bitmap are supported, parts of bigger ones and deduplicated files need to
+     * be decoded from files.
+     *
+     * @return the payload, a view of the bitmap unless it was compressed
+     */
+    public ByteBuffer decode(ByteBuffer bitmap) throws IOException {
+        BitmapHeader header = BitmapHeader.read(bitmap, BUFFER_NAME);
+        String name = header.isPlain() ? BUFFER_NAME : header.getName();
+        if (header.getType() == BitmapHeader.TYPE_PACKED || header.getType() == BitmapHeader.TYPE_PARITY) {
+            throw new IOException(name + " is a packed or parity bitmap, decode it from a file instead.");
+        }
+        if (header.getType() == BitmapHeader.TYPE_STORE || header.getType() == BitmapHeader.TYPE_RECIPE) {
+            throw new IOException(name + " holds deduplicated data, decode it into a directory instead.");
+        }
+        if (!header.isPlain() && header.getCount() != 1) {
+            throw new IOException(name + " is part " + (header.getIndex() + 1) + " of " + header.getCount()
+                    + ", decode the parts from files instead.");
+        }
+
+        ByteBuffer payload = bitmap.duplicate();
+        payload.position(bitmap.position() + header.getPixelOffset());
+        payload.limit(payload.position() + header.getPayloadSize());
+        payload = payload.slice();
+        return header.getType() == BitmapHeader.TYPE_COMPRESSED ? CompressionUtility.decompress(payload, name) : payload;
+    }
+
+    /**
+     * Stops the compression threads, calls that are still running fail.
+     */
+    @Override
+    public void close() {
+        compressionExecutor.shutdownNow();
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+/**
+ * The dimensions of one bitmap. BMP rows are padded to a multiple of 4 bytes, the payload is written
+ * straight through the pixel array (row padding included) and whatever is left of the last row is
+ * filler.
+ */
+public class BitmapGeometry {
+
+    private final int width;
+    private final int height;
+    private final int bitsPerPixel;
+
+    public BitmapGeometry(int width, int height, int bitsPerPixel) {
+        this.width = width;
+        this.height = height;
+        this.bitsPerPixel = bitsPerPixel;
+    }
+
+    public static int calculateRowSize(int width, int bitsPerPixel) {
+        return (int) (((long) width * bitsPerPixel + 31) / 32 * 4);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBitsPerPixel() {
+        return bitsPerPixel;
+    }
+
+    public int getRowSize() {
+        return calculateRowSize(width, bitsPerPixel);
+    }
+
+    /**
+     * @return the size of the pixel array in bytes
+     */
+    public long getImageSize() {
+        return (long) getRowSize() * height;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height;
+    }
+}
@@ -0,0 +1,544 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The header written in front of every bitmap. A plain bitmap is the classic 54 byte BMP header with
+ * the payload size hidden in the reserved field at offset 6. Anything more elaborate (chunks of a large
+ * file, several small files packed together, compressed files, parity, deduplicated files, ...) adds a
+ * B.A.T.T. extension block between the BMP header and the pixel array, the pixel offset at byte 10
+ * then points past the extension so the image stays a valid BMP.
+ */
+public class BitmapHeader {
+
+    public static final int BITMAP_HEADER_SIZE = 54;
+    //the payload size and the file size are 32 bit fields, this leaves room for the header and the filler,
+    //bigger payloads are split and put back together through the 64 bit total size and offset of the extension
+    public static final long MAX_PAYLOAD_SIZE = Integer.MAX_VALUE - 64 * 1024 * 1024;
+
+    //extension types
+    public static final int TYPE_PLAIN = 0;
+    public static final int TYPE_CHUNK = 1;
+    public static final int TYPE_PACKED = 2;
+    public static final int TYPE_COMPRESSED = 3;
+    public static final int TYPE_PARITY = 4;
+    //the chunks of deduplicated files, and a file put back together from them
+    public static final int TYPE_STORE = 5;
+    public static final int TYPE_RECIPE = 6;
+    //the table of contents of an encode
+    public static final int TYPE_CATALOG = 7;
+
+    private static final int EXTENSION_MAGIC = 0x54544142;     //BATT
+    private static final int EXTENSION_VERSION = 1;
+    private static final int EXTENSION_FIXED_SIZE = 34;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    //an 8 bit bitmap needs a color table to be valid, a gray ramp keeps the bytes as they are
+    private static final int PALETTE_COLORS = 256;
+
+    private int width;
+    private int height;
+    private int bitsPerPixel;
+    private int payloadSize;
+    private int pixelOffset = BITMAP_HEADER_SIZE;
+    private int colorTableSize = 0;
+
+    //extension values
+    private int type = TYPE_PLAIN;
+    private String name = "";
+    private long totalSize;
+    private long offset;
+    private int index;
+    private int count;
+    private List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * A file stored in a packed bitmap, the offset is relative to the start of the pixel array. Parity
+     * bitmaps use the same table to list the data bitmaps they protect, along with their CRC32. A recipe
+     * lists the chunks of its file in order, by chunk store, offset in the store's payload and length.
+     */
+    public static class Entry {
+        private final String name;
+        private final long offset;
+        private final long size;
+        private final long checksum;
+
+        public Entry(String name, long offset, long size) {
+            this(name, offset, size, 0);
+        }
+
+        public Entry(String name, long offset, long size, long checksum) {
+            this.name = name;
+            this.offset = offset;
+            this.size = size;
+            this.checksum = checksum;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getChecksum() {
+            return checksum;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public void setWidth(int width) {
+        this.width = width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void setHeight(int height) {
+        this.height = height;
+    }
+
+    public int getBitsPerPixel() {
+        return bitsPerPixel;
+    }
+
+    public void setBitsPerPixel(int bitsPerPixel) {
+        this.bitsPerPixel = bitsPerPixel;
+    }
+
+    /**
+     * @return the number of payload bytes stored in this bitmap
+     */
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    public void setPayloadSize(int payloadSize) {
+        this.payloadSize = payloadSize;
+    }
+
+    public int getPixelOffset() {
+        return pixelOffset;
+    }
+
+    /**
+     * Sizes the image to hold the payload.
+     *
+     * @return the number of filler bytes that need to follow the payload
+     */
+    public int layout(BitmapGeometry geometry, int payloadSize) {
+        setWidth(geometry.getWidth());
+        setHeight(geometry.getHeight());
+        setBitsPerPixel(geometry.getBitsPerPixel());
+        setPayloadSize(payloadSize);
+        return (int) (geometry.getImageSize() - payloadSize);
+    }
+
+    /**
+     * @return the size of the pixel array, payload and filler
+     */
+    public int getImageSize() {
+        return (int) new BitmapGeometry(getWidth(), getHeight(), getBitsPerPixel()).getImageSize();
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public void setType(int type) {
+        this.type = type;
+    }
+
+    public boolean isPlain() {
+        return getType() == TYPE_PLAIN;
+    }
+
+    /**
+     * @return the name of the original file
+     */
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return the size of the original file
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    public void setTotalSize(long totalSize) {
+        this.totalSize = totalSize;
+    }
+
+    /**
+     * @return the position of this payload within the original file
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    /**
+     * @return the table of contents of a packed bitmap
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public void addEntry(String name, long size) {
+        long entryOffset = 0;
+        if (!entries.isEmpty()) {
+            Entry last = entries.get(entries.size() - 1);
+            entryOffset = last.getOffset() + last.getSize();
+        }
+        entries.add(new Entry(name, entryOffset, size));
+    }
+
+    public static int calculateEntrySize(String name) {
+        return 18 + name.getBytes(UTF8).length;
+    }
+
+    private boolean hasEntries() {
+        return getType() == TYPE_PACKED || getType() == TYPE_PARITY || getType() == TYPE_RECIPE;
+    }
+
+    private boolean hasChecksums() {
+        return getType() == TYPE_PARITY;
+    }
+
+    private int calculateExtensionSize(byte[] nameBytes) {
+        int size = EXTENSION_FIXED_SIZE + nameBytes.length;
+        if (hasEntries()) {
+            size += 4;
+            for (Entry entry : getEntries()) {
+                size += calculateEntrySize(entry.getName()) + (hasChecksums() ? 8 : 0);
+            }
+        }
+        //keep the pixel array 4 byte aligned
+        return (size + 3) & ~3;
+    }
+
+    /**
+     * Fixes the pixel offset for the current fields.
+     *
+     * @return the size of the header, the payload starts right after it
+     */
+    public int calculateHeaderSize() {
+        colorTableSize = getBitsPerPixel() == 8 ? PALETTE_COLORS * 4 : 0;
+        //a plain header has no name, so nothing is encoded for it
+        pixelOffset = getExtensionStart() + (isPlain() ? 0 : calculateExtensionSize(getName().getBytes(UTF8)));
+        return pixelOffset;
+    }
+
+    /**
+     * @return where the extension block starts, right after the color table if there is one
+     */
+    private int getExtensionStart() {
+        return BITMAP_HEADER_SIZE + colorTableSize;
+    }
+
+    public ByteBuffer toByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(calculateHeaderSize());
+        write(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Puts the header at the position of the buffer, which needs calculateHeaderSize() bytes of room.
+     * The buffer may hold old data, the alignment padding is zeroed here.
+     */
+    public void write(ByteBuffer buffer) {
+        int start = buffer.position();
+        calculateHeaderSize();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 0x42);        //B
+        buffer.put((byte) 0x4D);        //M
+        buffer.putInt(getImageSize() + getPixelOffset());        //total file size
+        buffer.putInt(getPayloadSize());        //unofficial -- used to save the file size
+        buffer.putInt(getPixelOffset());               //pixel info offset
+        buffer.putInt(40);              //size of the bitmap info header
+        buffer.putInt(getWidth());           //width
+        buffer.putInt(getHeight());          //height
+        buffer.putShort((short) 1);     //number of color planes
+        buffer.putShort((short) getBitsPerPixel());    //bytes per pixel
+        buffer.putInt(0);               //no compression
+        buffer.putInt(getImageSize());       //size of the raw pixel array
+        buffer.putInt(2835);            //horizontal resolution
+        buffer.putInt(2835);            //vertical resolution
+        buffer.putInt(colorTableSize / 4);               //number of colors
+        buffer.putInt(0);               //important colors
+        for (int i = 0; i < colorTableSize / 4; i++) {
+            buffer.put((byte) i);
+            buffer.put((byte) i);
+            buffer.put((byte) i);
+            buffer.put((byte) 0);
+        }
+
+        if (!isPlain()) {
+            byte[] nameBytes = getName().getBytes(UTF8);
+            buffer.putInt(EXTENSION_MAGIC);
+            buffer.putShort((short) EXTENSION_VERSION);
+            buffer.putShort((short) getType());
+            buffer.putLong(getTotalSize());
+            buffer.putLong(getOffset());
+            buffer.putInt(getIndex());
+            buffer.putInt(getCount());
+            buffer.putShort((short) nameBytes.length);
+            buffer.put(nameBytes);
+            if (hasEntries()) {
+                buffer.putInt(getEntries().size());
+                for (Entry entry : getEntries()) {
+                    byte[] entryName = entry.getName().getBytes(UTF8);
+                    buffer.putLong(entry.getOffset());
+                    buffer.putLong(entry.getSize());
+                    buffer.putShort((short) entryName.length);
+                    buffer.put(entryName);
+                    if (hasChecksums()) {
+                        buffer.putLong(entry.getChecksum());
+                    }
+                }
+            }
+            while (buffer.position() < start + getPixelOffset()) {
+                buffer.put((byte) 0);
+            }
+        }
+    }
+
+    public static BitmapHeader read(File file) throws IOException {
+        return read(file, ByteBuffer.allocate(BITMAP_HEADER_SIZE));
+    }
+
+    public static BitmapHeader read(File file, ByteBuffer scratch) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            return read(inputStream.getChannel(), file.getPath(), scratch);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    public static BitmapHeader read(FileChannel channel, String filename) throws IOException {
+        return read(channel, filename, ByteBuffer.allocate(BITMAP_HEADER_SIZE));
+    }
+
+    /**
+     * Reads the header through the scratch buffer, which must hold at least the 54 byte BMP header. A
+     * bigger buffer is only allocated for an extension that does not fit.
+     */
+    public static BitmapHeader read(FileChannel channel, String filename, ByteBuffer scratch) throws IOException {
+        scratch.clear();
+        scratch.limit(BITMAP_HEADER_SIZE);
+        ChannelUtility.readFully(channel, scratch, 0);
+        BitmapHeader header = parse(scratch, filename, channel.size());
+
+        if (header.hasExtension()) {
+            int extensionSize = header.getPixelOffset() - header.getExtensionStart();
+            ByteBuffer extension = extensionSize <= scratch.capacity() ? scratch : ByteBuffer.allocate(extensionSize);
+            extension.clear();
+            extension.limit(extensionSize);
+            ChannelUtility.readFully(channel, extension, header.getExtensionStart());
+            extension.flip();
+            readExtension(extension, filename, header);
+        }
+        return header;
+    }
+
+    /**
+     * Reads the header from the start of a stream, the stream is left at the first byte of the payload.
+     *
+     * @param size the size of the whole bitmap, -1 if it isn't known
+     */
+    public static BitmapHeader read(InputStream inputStream, String filename, long size) throws IOException {
+        return read(inputStream, filename, size, ByteBuffer.allocate(BITMAP_HEADER_SIZE));
+    }
+
+    /**
+     * Same as read(inputStream, filename, size) through a heap scratch buffer, see read(channel, filename, scratch).
+     */
+    public static BitmapHeader read(InputStream inputStream, String filename, long size, ByteBuffer scratch) throws IOException {
+        try {
+            scratch.clear();
+            IOUtils.readFully(inputStream, scratch.array(), scratch.arrayOffset(), BITMAP_HEADER_SIZE);
+            BitmapHeader header = parse(scratch, filename, size);
+
+            //always read up to the pixels, even when the gap isn't ours
+            int extensionSize = header.getPixelOffset() - BITMAP_HEADER_SIZE;
+            ByteBuffer extension = extensionSize <= scratch.capacity() ? scratch : ByteBuffer.allocate(extensionSize);
+            extension.clear();
+            extension.limit(extensionSize);
+            IOUtils.readFully(inputStream, extension.array(), extension.arrayOffset(), extensionSize);
+            if (header.hasExtension()) {
+                extension.position(header.getExtensionStart() - BITMAP_HEADER_SIZE);
+                readExtension(extension.slice(), filename, header);
+            }
+            return header;
+        } catch (EOFException ex) {
+            throw new IOException(filename + " is truncated or was not created by B.A.T.T.", ex);
+        }
+    }
+
+    /**
+     * Reads the header of a bitmap that is already in memory, from the position of the buffer on. The
+     * buffer itself is left untouched.
+     */
+    public static BitmapHeader read(ByteBuffer bitmap, String filename) throws IOException {
+        ByteBuffer buffer = bitmap.slice();
+        if (buffer.remaining() < BITMAP_HEADER_SIZE) {
+            throw new IOException(filename + " is truncated or was not created by B.A.T.T.");
+        }
+        BitmapHeader header = parse(buffer, filename, buffer.remaining());
+
+        if (header.hasExtension()) {
+            buffer.position(header.getExtensionStart());
+            buffer.limit(header.getPixelOffset());
+            readExtension(buffer.slice(), filename, header);
+        }
+        return header;
+    }
+
+    private static BitmapHeader parse(ByteBuffer buffer, String filename, long size) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.get(0) != 0x42 || buffer.get(1) != 0x4D) {
+            throw new IOException(filename + " is not a bitmap.");
+        }
+
+        BitmapHeader header = new BitmapHeader();
+        header.setPayloadSize(buffer.getInt(6));
+        header.pixelOffset = buffer.getInt(10);
+        header.setWidth(buffer.getInt(18));
+        header.setHeight(buffer.getInt(22));
+        header.setBitsPerPixel(buffer.getShort(28));
+        //bitmaps written before 8 bit ones got a color table have none
+        int colors = buffer.getInt(46);
+        if (header.getBitsPerPixel() <= 8 && colors > 0 && colors <= PALETTE_COLORS
+                && BITMAP_HEADER_SIZE + colors * 4 <= buffer.getInt(10)) {
+            header.colorTableSize = colors * 4;
+        }
+        if (header.getPayloadSize() < 0 || header.getPixelOffset() < BITMAP_HEADER_SIZE
+                || (size >= 0 && header.getPixelOffset() + (long) header.getPayloadSize() > size)) {
+            throw new IOException(filename + " is truncated or was not created by B.A.T.T.");
+        }
+        return header;
+    }
+
+    private boolean hasExtension() {
+        return getPixelOffset() >= getExtensionStart() + EXTENSION_FIXED_SIZE;
+    }
+
+    private static void readExtension(ByteBuffer buffer, String filename, BitmapHeader header) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt() != EXTENSION_MAGIC) {
+            //someone else's gap between the header and the pixels, treat it as a plain bitmap
+            return;
+        }
+        int version = buffer.getShort();
+        if (version > EXTENSION_VERSION) {
+            throw new IOException(filename + " was created by a newer version of B.A.T.T.");
+        }
+        header.setType(buffer.getShort());
+        header.setTotalSize(buffer.getLong());
+        header.setOffset(buffer.getLong());
+        header.setIndex(buffer.getInt());
+        header.setCount(buffer.getInt());
+        byte[] nameBytes = new byte[buffer.getShort() & 0xFFFF];
+        if (nameBytes.length > buffer.remaining()) {
+            throw new IOException(filename + " has a corrupt B.A.T.T. header.");
+        }
+        buffer.get(nameBytes);
+        header.setName(new String(nameBytes, UTF8));
+
+        if (header.hasEntries()) {
+            //offset, size and name length, plus the checksum of a parity entry
+            int entryFixedSize = header.hasChecksums() ? 26 : 18;
+            if (buffer.remaining() < 4) {
+                throw new IOException(filename + " has a corrupt table of contents.");
+            }
+            int entryCount = buffer.getInt();
+            if (entryCount < 0 || entryCount > buffer.remaining() / entryFixedSize) {
+                throw new IOException(filename + " has a corrupt table of contents.");
+            }
+            for (int i = 0; i < entryCount; i++) {
+                if (buffer.remaining() < entryFixedSize) {
+                    throw new IOException(filename + " has a corrupt table of contents.");
+                }
+                long entryOffset = buffer.getLong();
+                long entrySize = buffer.getLong();
+                byte[] entryName = new byte[buffer.getShort() & 0xFFFF];
+                if (entryName.length > buffer.remaining() - (entryFixedSize - 18) || entryOffset < 0 || entrySize < 0
+                        || (header.getType() == TYPE_PACKED && entrySize > header.getPayloadSize() - entryOffset)) {
+                    throw new IOException(filename + " has a corrupt table of contents.");
+                }
+                buffer.get(entryName);
+                long checksum = header.hasChecksums() ? buffer.getLong() : 0;
+                header.getEntries().add(new Entry(new String(entryName, UTF8), entryOffset, entrySize, checksum));
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a payload of unknown length across as many bitmaps as it takes, starting a new part whenever
+ * the current one is full. The part count and total size are only known at the end, so the headers
+ * are patched in place when the writer is closed. Nothing is buffered in memory.
+ */
+public class BitmapWriter implements WritableByteChannel {
+
+    private final String outputName;
+    private final String name;
+    private final int type;
+    private final long maxPayloadSize;
+    private final GeometryPlanner planner;
+
+    private final List<File> files = new ArrayList<File>();
+    private final List<BitmapHeader> headers = new ArrayList<BitmapHeader>();
+    private FileOutputStream outputStream = null;
+    private FileChannel outputChannel = null;
+    private long payloadSize = 0;
+    private long totalSize = 0;
+    private ByteBuffer payloadPatch = null;
+    private boolean open = true;
+
+    public BitmapWriter(String outputName, String name, int type, long maxPayloadSize, GeometryPlanner planner) {
+        this.outputName = outputName;
+        this.name = name;
+        this.type = type;
+        this.maxPayloadSize = Math.min(maxPayloadSize, BitmapHeader.MAX_PAYLOAD_SIZE);
+        this.planner = planner;
+    }
+
+    public static String generatePartName(String outputName, int index, int count) {
+        String baseName = outputName.endsWith(".bmp") ? outputName.substring(0, outputName.length() - 4) : outputName;
+        int digits = String.valueOf(Math.max(count, 100)).length();
+        return baseName + ".part" + String.format("%0" + digits + "d", index + 1) + ".bmp";
+    }
+
+    /**
+     * @return the bitmaps written so far
+     */
+    public List<File> getFiles() {
+        return files;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Overwrites the start of the payload when the writer is closed, for stream headers that hold
+     * values which are only known at the end.
+     */
+    public void patchPayload(ByteBuffer patch) {
+        this.payloadPatch = patch;
+    }
+
+    private void nextBitmap() throws IOException {
+        finishBitmap();
+
+        File file = new File(generatePartName(outputName, files.size(), 0));
+        System.out.println("Generating " + file);
+        BitmapHeader header = new BitmapHeader();
+        header.setType(type);
+        header.setName(name);
+        header.setOffset(totalSize);
+        header.setIndex(files.size());
+        header.layout(planner.plan(0), 0);
+
+        outputStream = new FileOutputStream(file);
+        outputChannel = outputStream.getChannel();
+        //placeholder, the real header is written once the size of this part is known
+        ChannelUtility.writeFully(outputChannel, header.toByteBuffer());
+        files.add(file);
+        headers.add(header);
+        payloadSize = 0;
+    }
+
+    private void finishBitmap() throws IOException {
+        if (outputChannel != null) {
+            BitmapHeader header = headers.get(headers.size() - 1);
+            ChannelUtility.writeZeros(outputChannel, header.layout(planner.plan(payloadSize), (int) payloadSize));
+            outputStream.close();
+            outputStream = null;
+            outputChannel = null;
+        }
+    }
+
+    private int prepareWrite(long remaining) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (outputChannel == null || payloadSize == maxPayloadSize) {
+            nextBitmap();
+        }
+        return (int) Math.min(remaining, maxPayloadSize - payloadSize);
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        int written = 0;
+        while (source.hasRemaining()) {
+            int count = prepareWrite(source.remaining());
+            ByteBuffer slice = source.duplicate();
+            slice.limit(slice.position() + count);
+            ChannelUtility.writeFully(outputChannel, slice);
+            source.position(slice.position());
+            payloadSize += count;
+            totalSize += count;
+            written += count;
+        }
+        return written;
+    }
+
+    /**
+     * Copies count bytes from the source file without pulling them through the heap.
+     */
+    public void transferFrom(FileChannel source, long position, long count) throws IOException {
+        while (count > 0) {
+            int length = prepareWrite(count);
+            ChannelUtility.transferFully(source, position, length, outputChannel);
+            position += length;
+            count -= length;
+            payloadSize += length;
+            totalSize += length;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        if (files.isEmpty()) {
+            //an empty payload still gets a bitmap so it can be restored
+            nextBitmap();
+        }
+        finishBitmap();
+        open = false;
+
+        for (int i = 0; i < files.size(); i++) {
+            BitmapHeader header = headers.get(i);
+            header.setCount(files.size());
+            header.setTotalSize(totalSize);
+            RandomAccessFile output = new RandomAccessFile(files.get(i), "rw");
+            try {
+                ChannelUtility.writeFully(output.getChannel(), header.toByteBuffer());
+                if (i == 0 && payloadPatch != null) {
+                    ChannelUtility.writeFully(output.getChannel(), payloadPatch, header.getPixelOffset());
+                }
+            } finally {
+                output.close();
+            }
+        }
+
+        //a single part keeps the plain name
+        if (files.size() == 1) {
+            File file = new File(outputName);
+            Files.move(files.get(0).toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            files.set(0, file);
+        }
+    }
+}
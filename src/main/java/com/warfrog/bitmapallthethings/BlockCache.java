@@ -0,0 +1,102 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used blocks of decoded payload, bounded by the bytes they hold rather than their
+ * number. Blocks are never modified once they are in the cache, so a block that is handed out can be
+ * read by any number of threads; only the lookups are serialized, the loading is done by the callers.
+ */
+public class BlockCache {
+
+    private final long budget;
+    //access order, the eldest entry is the least recently used one
+    private final LinkedHashMap<String, byte[]> blocks = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long size = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param budget the most bytes the blocks may add up to, 0 disables the cache
+     */
+    public BlockCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @return the block, null if it has to be loaded
+     */
+    public synchronized byte[] get(String key) {
+        byte[] block = blocks.get(key);
+        if (block == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return block;
+    }
+
+    /**
+     * Adds a block that was just loaded, pushing out the least recently used ones until it fits. A
+     * block bigger than the whole budget is not kept.
+     */
+    public synchronized void put(String key, byte[] block) {
+        if (block.length > budget) {
+            return;
+        }
+        byte[] previous = blocks.put(key, block);
+        size += block.length - (previous != null ? previous.length : 0);
+        for (Iterator<Map.Entry<String, byte[]>> iterator = blocks.entrySet().iterator(); size > budget && iterator.hasNext(); ) {
+            Map.Entry<String, byte[]> eldest = iterator.next();
+            size -= eldest.getValue().length;
+            iterator.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+}
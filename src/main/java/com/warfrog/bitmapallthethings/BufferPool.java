@@ -0,0 +1,143 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+
+package com.warfrog.bitmapallthethings;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed size buffers shared by every thread of an engine, so the per file work doesn't allocate once
+ * the pool is warm. A buffer is acquired, used and released by the same task; requests bigger than the
+ * buffer size get a throw away buffer and count as a miss.
+ */
+public class BufferPool implements BufferPoolMBean {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String name;
+    private final boolean direct;
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param direct    direct buffers for channels, heap buffers for the stream APIs that need an array
+     * @param maxPooled the number of released buffers kept around, the rest is left to the garbage collector
+     */
+    public BufferPool(String name, boolean direct, int bufferSize, int maxPooled) {
+        this.name = name;
+        this.direct = direct;
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public BufferPool(String name, boolean direct) {
+        this(name, direct, BUFFER_SIZE, 256);
+    }
+
+    private ByteBuffer allocate(int size) {
+        misses.incrementAndGet();
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    /**
+     * @return a cleared buffer of the pool's buffer size
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return allocate(bufferSize);
+        }
+        pooled.decrementAndGet();
+        hits.incrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * @return a cleared buffer that holds at least size bytes
+     */
+    public ByteBuffer acquire(int size) {
+        return size <= bufferSize ? acquire() : allocate(size);
+    }
+
+    /**
+     * Hands a buffer back, the caller must not touch it afterwards. Buffers that didn't come from the
+     * pool are ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            buffers.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    @Override
+    public boolean isDirect() {
+        return direct;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public int getPooled() {
+        return pooled.get();
+    }
+
+    /**
+     * Clears the counters, the pooled buffers stay.
+     */
+    @Override
+    public void reset() {
+        hits.set(0);
+        misses.set(0);
+    }
+}
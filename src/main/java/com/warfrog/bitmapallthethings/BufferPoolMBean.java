@@ -0,0 +1,44 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+
+package com.warfrog.bitmapallthethings;
+
+/**
+ * The JMX view of a buffer pool, a miss is a buffer that had to be allocated.
+ */
+public interface BufferPoolMBean {
+
+    String getName();
+
+    int getBufferSize();
+
+    boolean isDirect();
+
+    long getHits();
+
+    long getMisses();
+
+    int getPooled();
+
+    void reset();
+}
@@ -0,0 +1,258 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+
+package com.warfrog.bitmapallthethings;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The table of contents an encode writes next to its bitmaps: one entry per input file with its path
+ * relative to the input directory, size, SHA-256 and the bitmap that holds it (the first part for a
+ * file that was split) as well as the name it decodes to. Files that share a name are encoded under
+ * their escaped relative path, so every file decodes to a name of its own; should two still end up
+ * with the same name, only the last one encoded is kept, just like in the bitmaps. The catalog is
+ * stored deflated in a bitmap of its own, after a small uncompressed header.
+ */
+public class Catalog {
+
+    public static final String SUFFIX = ".catalog";
+
+    private static final int MAGIC = 0x43544142;       //BATC
+    private static final int VERSION = 2;
+    private static final int HASH_SIZE = 32;
+
+    //filled by every encode thread at once, by the name the file decodes to and by its path
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final Map<String, Entry> paths = new ConcurrentHashMap<String, Entry>();
+    private volatile boolean modified = false;
+
+    public static class Entry {
+        private final String path;
+        private final String name;
+        private final long size;
+        private final byte[] hash;
+        private final String bitmap;
+
+        public Entry(String path, String name, long size, byte[] hash, String bitmap) {
+            this.path = path;
+            this.name = name;
+            this.size = size;
+            this.hash = hash;
+            this.bitmap = bitmap;
+        }
+
+        /**
+         * @return the path relative to the input directory, always with / as the separator
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return the name the file decodes to
+         */
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public byte[] getHash() {
+            return hash;
+        }
+
+        public String getBitmap() {
+            return bitmap;
+        }
+    }
+
+    /**
+     * Reads a catalog from the payload of its bitmaps.
+     */
+    public static Catalog read(ByteBuffer payload, String filename) throws IOException {
+        byte[] data = new byte[payload.remaining()];
+        payload.duplicate().get(data);
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(data));
+        Catalog catalog = new Catalog();
+        try {
+            if (inputStream.readInt() != MAGIC) {
+                throw new IOException(filename + " is not a B.A.T.T. catalog.");
+            }
+            int version = inputStream.readInt();
+            if (version > VERSION) {
+                throw new IOException(filename + " was created by a newer version of B.A.T.T.");
+            }
+            inputStream = new DataInputStream(new InflaterInputStream(inputStream));
+            int count = inputStream.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = inputStream.readUTF();
+                //the first version had no names, every file decoded to its file name
+                String name = version > 1 ? inputStream.readUTF() : FilenameUtils.getName(path);
+                long size = inputStream.readLong();
+                byte[] hash = new byte[HASH_SIZE];
+                inputStream.readFully(hash);
+                String bitmap = inputStream.readUTF();
+                catalog.add(new Entry(path, name, size, hash, bitmap));
+            }
+        } catch (EOFException ex) {
+            throw new IOException(filename + " is truncated.", ex);
+        } finally {
+            inputStream.close();
+        }
+        return catalog;
+    }
+
+    /**
+     * @return the payload of the catalog bitmap
+     */
+    public ByteBuffer toByteBuffer() throws IOException {
+        List<Entry> sorted = getEntries();
+        ByteArrayOutputStream data = new ByteArrayOutputStream(64 + sorted.size() * 32);
+        DataOutputStream outputStream = new DataOutputStream(data);
+        outputStream.writeInt(MAGIC);
+        outputStream.writeInt(VERSION);
+        outputStream = new DataOutputStream(new DeflaterOutputStream(data));
+        outputStream.writeInt(sorted.size());
+        for (Entry entry : sorted) {
+            outputStream.writeUTF(entry.getPath());
+            outputStream.writeUTF(entry.getName());
+            outputStream.writeLong(entry.getSize());
+            outputStream.write(entry.getHash());
+            outputStream.writeUTF(entry.getBitmap());
+        }
+        outputStream.close();
+        return ByteBuffer.wrap(data.toByteArray());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return true if anything was put or removed since the catalog was read
+     */
+    public boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Adds the file, replacing whatever decoded to the same name before as well as an older entry of
+     * the same path.
+     */
+    public synchronized void put(Entry entry) {
+        add(entry);
+        modified = true;
+    }
+
+    private void add(Entry entry) {
+        Entry replaced = entries.put(entry.getName(), entry);
+        if (replaced != null) {
+            paths.remove(replaced.getPath());
+        }
+        replaced = paths.put(entry.getPath(), entry);
+        if (replaced != null && !replaced.getName().equals(entry.getName())) {
+            entries.remove(replaced.getName());
+        }
+    }
+
+    /**
+     * Adds every entry of an older catalog that neither shares its name nor its path with one of
+     * this catalog, the entries of this one win. Taking over what was already written down does not
+     * count as a modification.
+     */
+    public synchronized void merge(Catalog older) {
+        for (Entry entry : older.entries.values()) {
+            if (!entries.containsKey(entry.getName()) && !paths.containsKey(entry.getPath())) {
+                add(entry);
+            }
+        }
+    }
+
+    /**
+     * Drops the file with this path, if there is one.
+     */
+    public synchronized void remove(String path) {
+        Entry entry = paths.remove(path);
+        if (entry != null) {
+            entries.remove(entry.getName());
+            modified = true;
+        }
+    }
+
+    /**
+     * @return the entry of the file with exactly this path, null if there is none
+     */
+    public Entry find(String path) {
+        return paths.get(path);
+    }
+
+    /**
+     * @return every entry, by path
+     */
+    public List<Entry> getEntries() {
+        List<Entry> sorted = new ArrayList<Entry>(entries.values());
+        Collections.sort(sorted, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry left, Entry right) {
+                return left.getPath().compareTo(right.getPath());
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * @param glob a glob over the relative paths, * stays within a directory and ** crosses them
+     * @return the entries that match, by path
+     */
+    public List<Entry> select(String glob) {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        List<Entry> selected = new ArrayList<Entry>();
+        for (Entry entry : getEntries()) {
+            if (matcher.matches(Paths.get(entry.getPath()))) {
+                selected.add(entry);
+            }
+        }
+        return selected;
+    }
+}
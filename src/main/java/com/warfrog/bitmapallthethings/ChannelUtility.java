@@ -0,0 +1,135 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+
+public class ChannelUtility {
+
+    //shared source of padding, every caller works on its own duplicate so this is thread safe
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(64 * 1024).asReadOnlyBuffer();
+
+    public static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    public static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file, " + buffer.remaining() + " bytes were missing.");
+            }
+            position += read;
+        }
+    }
+
+    public static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    public static void writeZeros(WritableByteChannel channel, long count) throws IOException {
+        ByteBuffer zeros = ZEROS.duplicate();
+        while (count > 0) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), count));
+            count -= zeros.remaining();
+            writeFully(channel, zeros);
+        }
+    }
+
+    /**
+     * Copies count bytes starting at position from the source file, letting the kernel do the copy
+     * where the platform supports it.
+     */
+    public static void transferFully(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        while (count > 0) {
+            long transferred = source.transferTo(position, count, target);
+            if (transferred <= 0 && position >= source.size()) {
+                throw new EOFException("Unexpected end of file, " + count + " bytes were missing.");
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    /**
+     * Copies count bytes starting at position from the source file to targetPosition in the target
+     * file. The target's own position is left alone, so several threads can fill one file at once.
+     */
+    public static void transferFully(FileChannel source, long position, long count, FileChannel target, long targetPosition) throws IOException {
+        source.position(position);
+        while (count > 0) {
+            long transferred = target.transferFrom(source, targetPosition, count);
+            if (transferred <= 0) {
+                throw new EOFException("Unexpected end of file, " + count + " bytes were missing.");
+            }
+            targetPosition += transferred;
+            count -= transferred;
+        }
+    }
+
+    /**
+     * Hashes the whole file through the buffer.
+     *
+     * @return the digest of the file
+     */
+    public static byte[] digest(FileChannel channel, MessageDigest digest, ByteBuffer buffer) throws IOException {
+        long position = 0;
+        int read;
+        buffer.clear();
+        while ((read = channel.read(buffer, position)) > 0) {
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+            buffer.clear();
+        }
+        return digest.digest();
+    }
+
+    /**
+     * @return the CRC32 of the whole file
+     */
+    public static long checksum(FileChannel channel) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] bytes = new byte[64 * 1024];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long position = 0;
+        int read;
+        while ((read = channel.read(buffer, position)) > 0) {
+            crc.update(bytes, 0, read);
+            position += read;
+            buffer.clear();
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,232 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import org.apache.commons.io.input.CountingInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers every chunk that was ever stored into the bitmaps of an output directory, by SHA-256. The
+ * index lives next to the bitmaps as an append only file: a header, then one record per chunk with its
+ * hash, the chunk store it went into and where it is in there. A run appends its new chunks once its
+ * chunk store is complete, a run that fails leaves the index as it was.
+ */
+public class ChunkIndex {
+
+    public static final String FILENAME = "batt.index";
+
+    private static final int MAGIC = 0x49544142;       //BATI
+    private static final int VERSION = 1;
+    private static final int HASH_SIZE = 32;
+
+    private final File file;
+    private final Map<ByteBuffer, Location> locations = new HashMap<ByteBuffer, Location>();
+    private final List<ByteBuffer> added = new ArrayList<ByteBuffer>();
+
+    /**
+     * Where a chunk is, the offset counts from the start of the chunk store's payload.
+     */
+    public static class Location {
+        private final String store;
+        private final long offset;
+        private final int length;
+
+        public Location(String store, long offset, int length) {
+            this.store = store;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getStore() {
+            return store;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    private ChunkIndex(File file) {
+        this.file = file;
+    }
+
+    public static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            //every java runtime has to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Reads the index, a missing file is an empty index.
+     */
+    public static ChunkIndex load(File file) throws IOException {
+        ChunkIndex index = new ChunkIndex(file);
+        if (!file.exists()) {
+            return index;
+        }
+
+        CountingInputStream countingStream = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+        DataInputStream inputStream = new DataInputStream(countingStream);
+        long validLength = 0;
+        try {
+            if (inputStream.readInt() != MAGIC) {
+                throw new IOException(file + " is not a B.A.T.T. chunk index.");
+            }
+            if (inputStream.readInt() > VERSION) {
+                throw new IOException(file + " was created by a newer version of B.A.T.T.");
+            }
+            validLength = countingStream.getByteCount();
+            //the store names repeat for every chunk, keep one copy of each
+            Map<String, String> stores = new HashMap<String, String>();
+            while (true) {
+                byte[] hash = new byte[HASH_SIZE];
+                if (inputStream.read(hash, 0, 1) < 0) {
+                    break;
+                }
+                inputStream.readFully(hash, 1, HASH_SIZE - 1);
+                String store = inputStream.readUTF();
+                if (!stores.containsKey(store)) {
+                    stores.put(store, store);
+                }
+                long offset = inputStream.readLong();
+                int length = inputStream.readInt();
+                index.locations.put(ByteBuffer.wrap(hash), new Location(stores.get(store), offset, length));
+                validLength = countingStream.getByteCount();
+            }
+        } catch (EOFException ex) {
+            if (validLength == 0) {
+                throw new IOException(file + " is not a B.A.T.T. chunk index.", ex);
+            }
+            //a run that died while saving, its chunks are simply stored again next time
+            System.out.println("WARNING: Dropping the incomplete last record of " + file);
+        } finally {
+            inputStream.close();
+        }
+        if (validLength < file.length()) {
+            RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+            try {
+                truncated.setLength(validLength);
+            } finally {
+                truncated.close();
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return whether the chunk store has a bitmap in the directory, a single one or the first of several parts
+     */
+    public static boolean isStorePresent(File directory, String store) {
+        String bitmapName = store + ".bmp";
+        return new File(directory, bitmapName).isFile()
+                || new File(directory, BitmapWriter.generatePartName(bitmapName, 0, 0)).isFile();
+    }
+
+    /**
+     * Forgets the chunks of stores that were deleted from the directory, so they get stored again
+     * instead of being pointed at.
+     *
+     * @return the number of chunks forgotten
+     */
+    public synchronized int removeMissingStores(File directory) {
+        Map<String, Boolean> present = new HashMap<String, Boolean>();
+        int removed = 0;
+        for (Iterator<Location> iterator = locations.values().iterator(); iterator.hasNext(); ) {
+            String store = iterator.next().getStore();
+            if (!present.containsKey(store)) {
+                present.put(store, isStorePresent(directory, store));
+            }
+            if (!present.get(store)) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public synchronized int size() {
+        return locations.size();
+    }
+
+    public synchronized Location find(byte[] hash) {
+        return locations.get(ByteBuffer.wrap(hash));
+    }
+
+    public synchronized void add(byte[] hash, Location location) {
+        ByteBuffer key = ByteBuffer.wrap(hash.clone());
+        locations.put(key, location);
+        added.add(key);
+    }
+
+    /**
+     * Appends the chunks added since the index was loaded or last saved.
+     */
+    public synchronized void save() throws IOException {
+        if (added.isEmpty()) {
+            return;
+        }
+        boolean created = !file.exists();
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        try {
+            if (created) {
+                outputStream.writeInt(MAGIC);
+                outputStream.writeInt(VERSION);
+            }
+            for (ByteBuffer key : added) {
+                Location location = locations.get(key);
+                outputStream.write(key.array());
+                outputStream.writeUTF(location.getStore());
+                outputStream.writeLong(location.getOffset());
+                outputStream.writeInt(location.getLength());
+            }
+        } finally {
+            outputStream.close();
+        }
+        added.clear();
+    }
+}
@@ -22,52 +22,82 @@
 
 package com.warfrog.bitmapallthethings;
 
-import java.io.BufferedReader;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class CommandUtility {
 
+    //probing for a tool starts a process, so every answer is kept for the rest of the run
+    private static final Map<String, Boolean> availableCommands = new ConcurrentHashMap<String, Boolean>();
+    private static final long PROBE_TIMEOUT = 10000;
+
     private static void buildEnvironment() {
 
     }
 
-    public static void executeCommand(List<String> command) throws IOException {
-        ProcessBuilder pb = new ProcessBuilder();
-        pb.command(command);
-
-        System.out.println("Executing: " + pb.command());
-
-        Process process = pb.start();
-
-        BufferedReader stdInput = new BufferedReader(new
-                InputStreamReader(process.getInputStream()));
+    /**
+     * Starts the command without waiting for it, its output is copied to the console.
+     *
+     * @param timeoutMillis stop the command after this long, 0 for no limit
+     */
+    public static ManagedProcess startCommand(List<String> command, long timeoutMillis) throws IOException {
+        System.out.println("Executing: " + command);
+        return new ManagedProcess(command, true, timeoutMillis);
+    }
 
-        BufferedReader stdError = new BufferedReader(new
-                InputStreamReader(process.getErrorStream()));
+    /**
+     * Starts the command with its output (stderr merged into stdout) and input left to the caller.
+     */
+    public static ManagedProcess startInteractiveCommand(List<String> command, long timeoutMillis) throws IOException {
+        System.out.println("Executing: " + command);
+        return new ManagedProcess(command, false, timeoutMillis);
+    }
 
-        // read the output from the command
-        String s = null;
-        while ((s = stdInput.readLine()) != null) {
-            System.out.println(s);
+    /**
+     * Runs the command to completion, a command that is interrupted or runs out of time is stopped.
+     *
+     * @return the exit code of the command
+     */
+    public static int executeCommand(List<String> command, long timeoutMillis) throws IOException, InterruptedException {
+        ManagedProcess process = startCommand(command, timeoutMillis);
+        try {
+            return process.waitFor();
+        } finally {
+            process.destroy();
         }
+    }
 
-        // read any errors from the attempted command
-        while ((s = stdError.readLine()) != null) {
-            System.out.println(s);
+    public static boolean isCommandAvailable(String command) {
+        Boolean returnValue = availableCommands.get(command);
+        if (returnValue == null) {
+            returnValue = probeCommand(command);
+            availableCommands.put(command, returnValue);
         }
+        return returnValue;
     }
 
-    public static boolean isCommandAvailable(String command) {
+    private static boolean probeCommand(String command) {
         boolean returnValue = false;
 
+        ManagedProcess process = null;
         try {
-            ProcessBuilder pb = new ProcessBuilder(command);
-            Process p = pb.start();
+            //the usage text goes nowhere, all we care about is that it starts
+            process = new ManagedProcess(Collections.singletonList(command), false, PROBE_TIMEOUT);
+            process.getOutputStream().close();
+            IOUtils.copy(process.getInputStream(), new NullOutputStream());
             returnValue = true;
         } catch (IOException ex) {
             //ex.printStackTrace();
+        } finally {
+            if (process != null) {
+                process.destroy();
+            }
         }
 
         return returnValue;
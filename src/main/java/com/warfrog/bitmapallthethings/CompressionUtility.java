@@ -0,0 +1,264 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A compressed payload is a small stream header followed by independently compressed blocks, so both
+ * sides can work on the blocks in parallel. Every block is framed by its raw and stored length, a block
+ * that did not shrink is stored as is (stored length == raw length).
+ */
+public class CompressionUtility {
+
+    public static final String NONE = "none";
+    public static final int BLOCK_SIZE = 4 * 1024 * 1024;
+    public static final int STREAM_HEADER_SIZE = 16;
+    public static final int FRAME_HEADER_SIZE = 8;
+
+    private static final int STREAM_MAGIC = 0x5A544142;        //BATZ
+    private static final String[] CODECS = new String[]{NONE, CompressorStreamFactory.DEFLATE,
+            CompressorStreamFactory.BZIP2, CompressorStreamFactory.XZ};
+
+    //anything above this many bits per byte is already compressed (jpeg, mp4, zip, ...)
+    private static final double ENTROPY_THRESHOLD = 7.5;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final int SAMPLE_COUNT = 4;
+
+    public static boolean isSupportedCodec(String codec) {
+        return findCodecId(codec) >= 0;
+    }
+
+    public static boolean isCodecAvailable(String codec) {
+        boolean returnValue = true;
+        if (CompressorStreamFactory.XZ.equals(codec)) {
+            //xz support is an optional dependency of commons-compress
+            try {
+                Class.forName("org.tukaani.xz.XZOutputStream");
+            } catch (ClassNotFoundException ex) {
+                returnValue = false;
+            }
+        }
+        return returnValue;
+    }
+
+    private static int findCodecId(String codec) {
+        for (int i = 0; i < CODECS.length; i++) {
+            if (CODECS[i].equalsIgnoreCase(codec)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Samples a few windows spread across the file and measures the Shannon entropy of the bytes.
+     *
+     * @return the estimated entropy in bits per byte (0 - 8)
+     */
+    public static double estimateEntropy(FileChannel channel, long size) throws IOException {
+        long[] histogram = new long[256];
+        long total = 0;
+        ByteBuffer sample = ByteBuffer.allocate((int) Math.min(SAMPLE_SIZE, size));
+        int samples = size <= (long) SAMPLE_SIZE * SAMPLE_COUNT ? (int) ((size + SAMPLE_SIZE - 1) / SAMPLE_SIZE) : SAMPLE_COUNT;
+        for (int i = 0; i < samples; i++) {
+            long position = samples == 1 ? 0 : (size - sample.capacity()) / (samples - 1) * i;
+            sample.clear();
+            sample.limit((int) Math.min(sample.capacity(), size - position));
+            ChannelUtility.readFully(channel, sample, position);
+            sample.flip();
+            while (sample.hasRemaining()) {
+                histogram[sample.get() & 0xFF]++;
+                total++;
+            }
+        }
+        return calculateEntropy(histogram, total);
+    }
+
+    /**
+     * Measures the entropy of the first bytes of a stream, all there is to sample without random access.
+     *
+     * @return the estimated entropy in bits per byte (0 - 8)
+     */
+    public static double estimateEntropy(byte[] data, int length) {
+        long[] histogram = new long[256];
+        for (int i = 0; i < length; i++) {
+            histogram[data[i] & 0xFF]++;
+        }
+        return calculateEntropy(histogram, length);
+    }
+
+    private static double calculateEntropy(long[] histogram, long total) {
+        double entropy = 0;
+        for (long count : histogram) {
+            if (count > 0) {
+                double probability = (double) count / total;
+                entropy -= probability * (Math.log(probability) / Math.log(2));
+            }
+        }
+        return entropy;
+    }
+
+    public static boolean isCompressible(FileChannel channel, long size) throws IOException {
+        return size > 0 && estimateEntropy(channel, size) < ENTROPY_THRESHOLD;
+    }
+
+    public static boolean isCompressible(byte[] data, int length) {
+        return length > 0 && estimateEntropy(data, length) < ENTROPY_THRESHOLD;
+    }
+
+    public static ByteBuffer createStreamHeader(String codec, long rawSize) {
+        ByteBuffer buffer = ByteBuffer.allocate(STREAM_HEADER_SIZE);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(STREAM_MAGIC);
+        buffer.putShort((short) findCodecId(codec));
+        buffer.putShort((short) 0);     //reserved
+        buffer.putLong(rawSize);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return the codec the stream was compressed with
+     */
+    public static String readCodec(ByteBuffer streamHeader, String filename) throws IOException {
+        streamHeader.order(ByteOrder.LITTLE_ENDIAN);
+        int codecId = streamHeader.getShort(4);
+        if (streamHeader.getInt(0) != STREAM_MAGIC || codecId < 0 || codecId >= CODECS.length) {
+            throw new IOException(filename + " does not contain a B.A.T.T. compressed stream.");
+        }
+        return CODECS[codecId];
+    }
+
+    public static long readRawSize(ByteBuffer streamHeader) {
+        streamHeader.order(ByteOrder.LITTLE_ENDIAN);
+        return streamHeader.getLong(8);
+    }
+
+    /**
+     * Reads one block from the file and compresses it.
+     *
+     * @return the framed block, ready to be written
+     */
+    public static ByteBuffer compressBlock(String codec, FileChannel channel, long position, int length) throws IOException {
+        byte[] raw = new byte[length];
+        ChannelUtility.readFully(channel, ByteBuffer.wrap(raw), position);
+        return compressBlock(codec, raw, length);
+    }
+
+    /**
+     * Compresses one block that is already in memory.
+     *
+     * @return the framed block, ready to be written
+     */
+    public static ByteBuffer compressBlock(String codec, byte[] raw, int length) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + FRAME_HEADER_SIZE);
+        try {
+            OutputStream outputStream = new CompressorStreamFactory().createCompressorOutputStream(codec, compressed);
+            outputStream.write(raw, 0, length);
+            outputStream.close();
+        } catch (CompressorException ex) {
+            throw new IOException("Could not compress with " + codec + ": " + ex.getMessage(), ex);
+        }
+
+        boolean shrunk = compressed.size() < length;
+        int storedLength = shrunk ? compressed.size() : length;
+        ByteBuffer buffer = ByteBuffer.allocate(FRAME_HEADER_SIZE + storedLength);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(length);
+        buffer.putInt(storedLength);
+        buffer.put(shrunk ? compressed.toByteArray() : raw, 0, storedLength);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decompresses a whole stream that is already in memory, one block after the other.
+     *
+     * @return the raw bytes, ready to be read
+     */
+    public static ByteBuffer decompress(ByteBuffer stream, String filename) throws IOException {
+        ByteBuffer buffer = stream.slice();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < STREAM_HEADER_SIZE) {
+            throw new IOException(filename + " does not contain a B.A.T.T. compressed stream.");
+        }
+        String codec = readCodec(buffer, filename);
+        long rawSize = readRawSize(buffer);
+        if (rawSize < 0 || rawSize > Integer.MAX_VALUE) {
+            throw new IOException(filename + " is too big to be decompressed in memory.");
+        }
+
+        ByteBuffer raw = ByteBuffer.allocate((int) rawSize);
+        buffer.position(STREAM_HEADER_SIZE);
+        while (raw.hasRemaining()) {
+            if (buffer.remaining() < FRAME_HEADER_SIZE) {
+                throw new IOException(filename + " is truncated.");
+            }
+            int rawLength = buffer.getInt();
+            int storedLength = buffer.getInt();
+            if (rawLength <= 0 || rawLength > raw.remaining() || storedLength <= 0 || storedLength > rawLength
+                    || storedLength > buffer.remaining()) {
+                throw new IOException(filename + " has a corrupt compressed block.");
+            }
+            byte[] stored = new byte[storedLength];
+            buffer.get(stored);
+            raw.put(decompressBlock(codec, stored, rawLength));
+        }
+        raw.flip();
+        return raw;
+    }
+
+    /**
+     * @return the raw bytes of a block
+     */
+    public static byte[] decompressBlock(String codec, byte[] stored, int rawLength) throws IOException {
+        if (stored.length == rawLength) {
+            return stored;
+        }
+
+        byte[] raw = new byte[rawLength];
+        try {
+            InputStream inputStream = new CompressorStreamFactory().createCompressorInputStream(codec, new ByteArrayInputStream(stored));
+            try {
+                IOUtils.readFully(inputStream, raw);
+            } finally {
+                inputStream.close();
+            }
+        } catch (CompressorException ex) {
+            throw new IOException("Could not decompress with " + codec + ": " + ex.getMessage(), ex);
+        }
+        return raw;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Splits a stream into content defined chunks. A gear rolling hash (as in FastCDC) runs over the bytes
+ * and a chunk ends wherever its top bits are all zero, so the boundaries move with the content: an
+ * insert only changes the chunks around it and identical runs of bytes end up in identical chunks,
+ * whatever file they are in and wherever they start.
+ */
+public class ContentChunker {
+
+    public static final int MIN_SIZE = 256 * 1024;
+    public static final int MAX_SIZE = 4 * 1024 * 1024;
+    //20 bits, a boundary every megabyte on average
+    private static final long BOUNDARY_MASK = ((1L << 20) - 1) << 44;
+
+    //the table must never change, or the chunks of earlier runs won't be found again (package visible for the tests)
+    static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x42415454L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream inputStream;
+    private final byte[] buffer = new byte[MAX_SIZE * 2];
+    private int position = 0;
+    private int limit = 0;
+    private boolean exhausted = false;
+
+    public ContentChunker(InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    private void fill() throws IOException {
+        //keep at least one maximum chunk ahead
+        if (exhausted || limit - position >= MAX_SIZE) {
+            return;
+        }
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        limit -= position;
+        position = 0;
+        int count = IOUtils.read(inputStream, buffer, limit, buffer.length - limit);
+        limit += count;
+        exhausted = limit < buffer.length;
+    }
+
+    /**
+     * @return the next chunk, only valid until the next call; null at the end of the stream
+     */
+    public ByteBuffer next() throws IOException {
+        fill();
+        int available = limit - position;
+        if (available == 0) {
+            return null;
+        }
+
+        int length = Math.min(available, MAX_SIZE);
+        if (available > MIN_SIZE) {
+            long hash = 0;
+            for (int i = position + MIN_SIZE; i < position + length; i++) {
+                hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+                if ((hash & BOUNDARY_MASK) == 0) {
+                    length = i + 1 - position;
+                    break;
+                }
+            }
+        }
+        ByteBuffer chunk = ByteBuffer.wrap(buffer, position, length);
+        position += length;
+        return chunk;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+/**
+ * Picks the dimensions of every bitmap. With a fixed width (the default) the height simply grows with
+ * the payload. With a pixel budget (e.g. 16 megapixels for Google Photos) each bitmap gets the width
+ * and height that waste the fewest bytes within the budget, and the budget also caps how much goes
+ * into one bitmap, so a payload takes as few images as possible. Instances are immutable.
+ */
+public class GeometryPlanner {
+
+    public static final int MAX_DIMENSION = 32000;
+    //photo services reject images that are too long and thin
+    private static final int MAX_ASPECT_RATIO = 4;
+
+    private final int width;
+    private final int height;
+    private final int bitsPerPixel;
+    private final long pixelBudget;
+
+    /**
+     * @param width        the fixed width, and with the height the size of a full bitmap
+     * @param pixelBudget  the most pixels a bitmap may have, 0 for the fixed width
+     */
+    public GeometryPlanner(int width, int height, int bitsPerPixel, long pixelBudget) {
+        this.width = width;
+        this.height = height;
+        this.bitsPerPixel = bitsPerPixel;
+        this.pixelBudget = pixelBudget;
+    }
+
+    public boolean isBudgeted() {
+        return pixelBudget > 0;
+    }
+
+    /**
+     * @return the most payload bytes that fit into a full bitmap
+     */
+    public long getCapacity() {
+        if (!isBudgeted()) {
+            return (long) BitmapGeometry.calculateRowSize(width, bitsPerPixel) * height;
+        }
+        int fullWidth = (int) Math.min(MAX_DIMENSION, Math.max(1, (long) Math.sqrt(pixelBudget)));
+        long fullHeight = Math.min(MAX_DIMENSION, pixelBudget / fullWidth);
+        return (long) BitmapGeometry.calculateRowSize(fullWidth, bitsPerPixel) * fullHeight;
+    }
+
+    private static long divideRoundingUp(long dividend, long divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+
+    /**
+     * @return the dimensions of a bitmap holding payloadSize bytes, at least 1x1
+     */
+    public BitmapGeometry plan(long payloadSize) {
+        if (!isBudgeted()) {
+            long rows = Math.max(1, divideRoundingUp(payloadSize, BitmapGeometry.calculateRowSize(width, bitsPerPixel)));
+            return new BitmapGeometry(width, (int) rows, bitsPerPixel);
+        }
+
+        long pixels = Math.max(1, divideRoundingUp(payloadSize, bitsPerPixel / 8));
+        //something bigger than the budget (a parity bitmap) gets what it needs
+        long budget = Math.max(pixelBudget, pixels);
+        int minWidth = (int) Math.max(1, (long) Math.sqrt((double) pixels / MAX_ASPECT_RATIO));
+        int maxWidth = (int) Math.min(MAX_DIMENSION, (long) Math.ceil(Math.sqrt((double) pixels * MAX_ASPECT_RATIO)));
+
+        //try every width in range, the least filler wins and the squarer one breaks a tie
+        BitmapGeometry best = null;
+        long bestFiller = Long.MAX_VALUE;
+        for (int candidate = minWidth; candidate <= maxWidth; candidate++) {
+            int rowSize = BitmapGeometry.calculateRowSize(candidate, bitsPerPixel);
+            long rows = Math.max(1, divideRoundingUp(payloadSize, rowSize));
+            if (rows > MAX_DIMENSION || candidate * rows > budget
+                    || Math.max(candidate, rows) > (long) MAX_ASPECT_RATIO * Math.min(candidate, rows)) {
+                continue;
+            }
+            long filler = rowSize * rows - payloadSize;
+            if (filler < bestFiller || (filler == bestFiller
+                    && Math.abs(candidate - rows) < Math.abs(best.getWidth() - best.getHeight()))) {
+                best = new BitmapGeometry(candidate, (int) rows, bitsPerPixel);
+                bestFiller = filler;
+            }
+        }
+        if (best == null) {
+            //too big for the limits, stay as square as the width allows
+            int fallbackWidth = (int) Math.min(MAX_DIMENSION, (long) Math.ceil(Math.sqrt((double) pixels)));
+            long rows = Math.max(1, divideRoundingUp(payloadSize, BitmapGeometry.calculateRowSize(fallbackWidth, bitsPerPixel)));
+            best = new BitmapGeometry(fallbackWidth, (int) rows, bitsPerPixel);
+        }
+        return best;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An external process that can't hang the run. stdout and stderr are drained on their own threads so
+ * the tool never blocks on a full pipe, an optional watchdog stops it once its time is up, and every
+ * process that is still alive when the JVM goes down is destroyed with it.
+ */
+public class ManagedProcess {
+
+    private static final Set<ManagedProcess> running = Collections.synchronizedSet(new HashSet<ManagedProcess>());
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("process reaper") {
+            @Override
+            public void run() {
+                List<ManagedProcess> leftovers;
+                synchronized (running) {
+                    leftovers = new ArrayList<ManagedProcess>(running);
+                }
+                for (ManagedProcess process : leftovers) {
+                    process.destroy();
+                }
+            }
+        });
+    }
+
+    private final List<String> command;
+    private final Process process;
+    private final long timeoutMillis;
+    private final List<Thread> drainers = new ArrayList<Thread>();
+    private Thread watchdog = null;
+    private volatile boolean timedOut = false;
+
+    /**
+     * @param drainOutput   true to copy stdout and stderr to the console and close stdin, false to merge
+     *                      stderr into stdout and leave both ends to the caller
+     * @param timeoutMillis stop the process after this long, 0 for no limit
+     */
+    ManagedProcess(List<String> command, boolean drainOutput, long timeoutMillis) throws IOException {
+        this.command = new ArrayList<String>(command);
+        this.timeoutMillis = timeoutMillis;
+
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectErrorStream(!drainOutput);
+        this.process = pb.start();
+        running.add(this);
+
+        if (drainOutput) {
+            //nobody is going to answer a question, it's better to fail right away than to wait forever
+            process.getOutputStream().close();
+            drain(process.getInputStream(), System.out, "stdout");
+            drain(process.getErrorStream(), System.err, "stderr");
+        }
+        if (timeoutMillis > 0) {
+            startWatchdog();
+        }
+    }
+
+    private void drain(final InputStream stream, final PrintStream target, String name) {
+        Thread drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+                try {
+                    String s = null;
+                    while ((s = reader.readLine()) != null) {
+                        target.println(s);
+                    }
+                } catch (IOException ex) {
+                    //the process is gone, nothing left to read
+                }
+            }
+        }, name + " of " + command.get(0));
+        drainer.setDaemon(true);
+        drainer.start();
+        drainers.add(drainer);
+    }
+
+    private void startWatchdog() {
+        watchdog = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(timeoutMillis);
+                    if (isRunning()) {
+                        timedOut = true;
+                        System.err.println("ERROR: " + command.get(0) + " did not finish within " + timeoutMillis / 1000
+                                + " seconds, stopping it.");
+                        destroy();
+                    }
+                } catch (InterruptedException ex) {
+                    //the process ended in time
+                }
+            }
+        }, "watchdog of " + command.get(0));
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    public InputStream getInputStream() {
+        return process.getInputStream();
+    }
+
+    public OutputStream getOutputStream() {
+        return process.getOutputStream();
+    }
+
+    public boolean isRunning() {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException ex) {
+            return true;
+        }
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * Waits for the process to end and for all of its output to be copied.
+     *
+     * @return the exit code
+     * @throws IOException if the process ran out of time
+     */
+    public int waitFor() throws IOException, InterruptedException {
+        int exitCode = process.waitFor();
+        for (Thread drainer : drainers) {
+            drainer.join();
+        }
+        release();
+        if (timedOut) {
+            throw new IOException(command.get(0) + " timed out after " + timeoutMillis / 1000 + " seconds.");
+        }
+        return exitCode;
+    }
+
+    private void release() {
+        running.remove(this);
+        if (watchdog != null && watchdog != Thread.currentThread()) {
+            watchdog.interrupt();
+        }
+    }
+
+    /**
+     * Stops the process if it's still running, safe to call at any time and more than once.
+     */
+    public void destroy() {
+        process.destroy();
+        release();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What the incremental runs into an output directory have encoded so far: one record per input file
+ * with its path relative to the input directory, size, modification time, SHA-256 and the bitmap it
+ * went into. Files that disappeared from the input keep their record, marked with the time the run
+ * noticed, their bitmaps are still around. The whole manifest is rewritten at the end of a run and
+ * replaces the old one in a single move.
+ */
+public class Manifest {
+
+    public static final String FILENAME = "batt.manifest";
+
+    private static final int MAGIC = 0x4D544142;       //BATM
+    private static final int VERSION = 1;
+    private static final int HASH_SIZE = 32;
+
+    private final File file;
+    //looked up by every thread of the scan at once
+    private final Map<String, Record> records = new ConcurrentHashMap<String, Record>();
+    private volatile boolean modified = false;
+
+    public static class Record {
+        private final String path;
+        private final long size;
+        private final long modified;
+        private final byte[] hash;
+        private final String bitmap;
+        private final long deleted;
+
+        public Record(String path, long size, long modified, byte[] hash, String bitmap) {
+            this(path, size, modified, hash, bitmap, 0);
+        }
+
+        public Record(String path, long size, long modified, byte[] hash, String bitmap, long deleted) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.bitmap = bitmap;
+            this.deleted = deleted;
+        }
+
+        /**
+         * @return the path relative to the input directory, always with / as the separator
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        public byte[] getHash() {
+            return hash;
+        }
+
+        public String getBitmap() {
+            return bitmap;
+        }
+
+        /**
+         * @return when the file was found missing from the input, 0 while it is still there
+         */
+        public long getDeleted() {
+            return deleted;
+        }
+
+        public boolean isDeleted() {
+            return deleted != 0;
+        }
+    }
+
+    private Manifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the manifest, a missing file is an empty manifest.
+     */
+    public static Manifest load(File file) throws IOException {
+        Manifest manifest = new Manifest(file);
+        if (!file.exists()) {
+            return manifest;
+        }
+
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (inputStream.readInt() != MAGIC) {
+                throw new IOException(file + " is not a B.A.T.T. manifest.");
+            }
+            if (inputStream.readInt() > VERSION) {
+                throw new IOException(file + " was created by a newer version of B.A.T.T.");
+            }
+            int count = inputStream.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = inputStream.readUTF();
+                long size = inputStream.readLong();
+                long modified = inputStream.readLong();
+                byte[] hash = new byte[HASH_SIZE];
+                inputStream.readFully(hash);
+                String bitmap = inputStream.readUTF();
+                long deleted = inputStream.readLong();
+                manifest.records.put(path, new Record(path, size, modified, hash, bitmap, deleted));
+            }
+        } catch (EOFException ex) {
+            //the manifest is only ever replaced as a whole, so this is not an interrupted run
+            throw new IOException(file + " is truncated, restore it or delete it to encode everything again.", ex);
+        } finally {
+            inputStream.close();
+        }
+        return manifest;
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    public Record get(String path) {
+        return records.get(path);
+    }
+
+    public void put(Record record) {
+        records.put(record.getPath(), record);
+        modified = true;
+    }
+
+    /**
+     * @return a snapshot of every record, in no particular order
+     */
+    public List<Record> getRecords() {
+        return new ArrayList<Record>(records.values());
+    }
+
+    /**
+     * Writes the manifest if anything was put since it was loaded.
+     */
+    public void save() throws IOException {
+        if (!modified) {
+            return;
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+        try {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+            outputStream.writeInt(records.size());
+            for (Record record : records.values()) {
+                outputStream.writeUTF(record.getPath());
+                outputStream.writeLong(record.getSize());
+                outputStream.writeLong(record.getModified());
+                outputStream.write(record.getHash());
+                outputStream.writeUTF(record.getBitmap());
+                outputStream.writeLong(record.getDeleted());
+            }
+        } finally {
+            outputStream.close();
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        modified = false;
+    }
+}
@@ -0,0 +1,349 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+
+package com.warfrog.bitmapallthethings;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Random access to the original bytes of an encoded file without decoding it. The payload regions of
+ * its bitmaps are memory mapped and stitched together in file order: the parts of a split file, one
+ * entry of a packed bitmap or the chunks a deduplicated file points at in its chunk stores. Compressed
+ * files can only be read front to back and are not supported.
+ * <p>
+ * Positional reads never change the mappings, so any number of threads can read at once without
+ * waiting on each other. Each channel handed out by newChannel() keeps a position of its own and is
+ * meant for one thread. The files are closed as soon as they are mapped, the mappings go away with the
+ * last reference.
+ */
+public class MappedPayload implements Closeable {
+
+    private final String name;
+    //where each segment starts in the file, for the binary search
+    private final long[] starts;
+    private final ByteBuffer[] segments;
+    private final long size;
+    private volatile boolean open = true;
+
+    private MappedPayload(String name, Segments segments) {
+        this.name = name;
+        this.segments = segments.buffers.toArray(new ByteBuffer[segments.buffers.size()]);
+        this.starts = new long[this.segments.length];
+        long position = 0;
+        for (int i = 0; i < this.segments.length; i++) {
+            starts[i] = position;
+            position += this.segments[i].remaining();
+        }
+        this.size = position;
+    }
+
+    private static ByteBuffer map(File file, long position, long size) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            return input.getChannel().map(FileChannel.MapMode.READ_ONLY, position, size);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * The regions of the mappings in file order.
+     */
+    private static class Segments {
+        private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        private ByteBuffer lastMapping = null;
+
+        /**
+         * Adds a region of a mapping, merged into the previous segment when it simply carries on from it
+         * (consecutive chunks that were stored together).
+         */
+        void add(ByteBuffer mapping, int offset, int length) {
+            if (mapping == lastMapping && buffers.get(buffers.size() - 1).limit() == offset) {
+                buffers.get(buffers.size() - 1).limit(offset + length);
+                return;
+            }
+            ByteBuffer segment = mapping.duplicate();
+            segment.limit(offset + length);
+            segment.position(offset);
+            buffers.add(segment);
+            lastMapping = mapping;
+        }
+    }
+
+    /**
+     * Maps a plain bitmap, or every part of a split file in any order.
+     */
+    public static MappedPayload open(List<File> bitmaps) throws IOException {
+        if (bitmaps.isEmpty()) {
+            throw new IOException("There are no bitmaps to read.");
+        }
+        File[] parts = new File[bitmaps.size()];
+        BitmapHeader[] headers = new BitmapHeader[bitmaps.size()];
+        BitmapHeader first = null;
+        for (File bitmap : bitmaps) {
+            BitmapHeader header = BitmapHeader.read(bitmap);
+            if (header.getType() == BitmapHeader.TYPE_COMPRESSED) {
+                throw new IOException(bitmap + " is compressed, it can only be read front to back, decode it instead.");
+            }
+            if (!header.isPlain() && header.getType() != BitmapHeader.TYPE_CHUNK) {
+                throw new IOException(bitmap + " does not hold a file of its own.");
+            }
+            if (first == null) {
+                first = header;
+            }
+            int index = header.isPlain() ? 0 : header.getIndex();
+            int count = header.isPlain() ? 1 : header.getCount();
+            if (count != bitmaps.size() || index < 0 || index >= count || parts[index] != null
+                    || header.getType() != first.getType() || header.getTotalSize() != first.getTotalSize()) {
+                throw new IOException(bitmap + " does not belong with " + bitmaps.get(0) + " or parts are missing.");
+            }
+            parts[index] = bitmap;
+            headers[index] = header;
+        }
+
+        Segments segments = new Segments();
+        for (int i = 0; i < parts.length; i++) {
+            if (!headers[i].isPlain() && headers[i].getOffset() != (i == 0 ? 0 : headers[i - 1].getOffset() + headers[i - 1].getPayloadSize())) {
+                throw new IOException(parts[i] + " does not carry on where " + parts[i - 1] + " ends.");
+            }
+            ByteBuffer mapping = map(parts[i], headers[i].getPixelOffset(), headers[i].getPayloadSize());
+            segments.add(mapping, 0, headers[i].getPayloadSize());
+        }
+        return new MappedPayload(first.isPlain() ? parts[0].getName() : first.getName(), segments);
+    }
+
+    /**
+     * Maps one file of a packed bitmap.
+     */
+    public static MappedPayload open(File bitmap, BitmapHeader header, BitmapHeader.Entry entry) throws IOException {
+        if (entry.getOffset() < 0 || entry.getSize() < 0 || entry.getOffset() + entry.getSize() > header.getPayloadSize()) {
+            throw new IOException(bitmap + " has a corrupt table of contents.");
+        }
+        Segments segments = new Segments();
+        segments.add(map(bitmap, header.getPixelOffset() + entry.getOffset(), entry.getSize()), 0, (int) entry.getSize());
+        return new MappedPayload(entry.getName(), segments);
+    }
+
+    /**
+     * Maps the chunks of a deduplicated file where they lie in the chunk stores.
+     *
+     * @param stores every part of every chunk store the recipe points at, by store name
+     */
+    public static MappedPayload open(BitmapHeader recipe, Map<String, List<File>> stores, Map<File, BitmapHeader> headers) throws IOException {
+        //each part of a store is mapped once, however many chunks come from it
+        Map<String, ByteBuffer[]> mappings = new HashMap<String, ByteBuffer[]>();
+        Map<String, BitmapHeader[]> partHeaders = new HashMap<String, BitmapHeader[]>();
+        Segments segments = new Segments();
+        long size = 0;
+        for (BitmapHeader.Entry chunk : recipe.getEntries()) {
+            if (!mappings.containsKey(chunk.getName())) {
+                List<File> parts = stores.get(chunk.getName());
+                if (parts == null) {
+                    throw new IOException("The chunk store " + chunk.getName() + " of " + recipe.getName() + " is missing.");
+                }
+                ByteBuffer[] storeMappings = new ByteBuffer[parts.size()];
+                BitmapHeader[] storeHeaders = new BitmapHeader[parts.size()];
+                for (File part : parts) {
+                    BitmapHeader header = headers.get(part);
+                    storeMappings[header.getIndex()] = map(part, header.getPixelOffset(), header.getPayloadSize());
+                    storeHeaders[header.getIndex()] = header;
+                }
+                mappings.put(chunk.getName(), storeMappings);
+                partHeaders.put(chunk.getName(), storeHeaders);
+            }
+
+            ByteBuffer[] storeMappings = mappings.get(chunk.getName());
+            BitmapHeader[] storeHeaders = partHeaders.get(chunk.getName());
+            long position = chunk.getOffset();
+            long end = chunk.getOffset() + chunk.getSize();
+            //a chunk can run from the end of one part into the next
+            for (int part = 0; part < storeHeaders.length && position < end; part++) {
+                long partEnd = storeHeaders[part].getOffset() + storeHeaders[part].getPayloadSize();
+                if (position < partEnd) {
+                    int offset = (int) (position - storeHeaders[part].getOffset());
+                    int length = (int) (Math.min(end, partEnd) - position);
+                    segments.add(storeMappings[part], offset, length);
+                    position += length;
+                }
+            }
+            if (position < end) {
+                throw new IOException("The chunk store " + chunk.getName() + " ends before a chunk of " + recipe.getName() + ".");
+            }
+            size += chunk.getSize();
+        }
+        if (size != recipe.getTotalSize()) {
+            throw new IOException("The chunks of " + recipe.getName() + " add up to " + size + " bytes instead of "
+                    + recipe.getTotalSize() + ".");
+        }
+        return new MappedPayload(recipe.getName(), segments);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the size of the original file
+     */
+    public long size() {
+        return size;
+    }
+
+    private int findSegment(long position) {
+        int low = 0;
+        int high = starts.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (starts[middle] <= position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Copies as many bytes as fit from position on into the buffer. Safe to call from any number of
+     * threads at once.
+     *
+     * @return the number of bytes read, -1 at or past the end of the file
+     */
+    public int read(ByteBuffer buffer, long position) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (position < 0) {
+            throw new IllegalArgumentException("The position must not be negative.");
+        }
+        if (position >= size) {
+            return -1;
+        }
+        int read = 0;
+        for (int segment = findSegment(position); buffer.hasRemaining() && segment < segments.length; segment++) {
+            //a duplicate per read, the shared segments are never moved
+            ByteBuffer source = segments[segment].duplicate();
+            int skip = (int) (position - starts[segment]);
+            int length = Math.min(buffer.remaining(), source.remaining() - skip);
+            source.position(source.position() + skip);
+            source.limit(source.position() + length);
+            buffer.put(source);
+            position += length;
+            read += length;
+        }
+        return read;
+    }
+
+    /**
+     * @return a read only channel over the file, starting at position 0
+     */
+    public SeekableByteChannel newChannel() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        return new Channel();
+    }
+
+    /**
+     * Closes this payload and every channel of it.
+     */
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    private class Channel implements SeekableByteChannel {
+        private long position = 0;
+        private boolean channelOpen = true;
+
+        private void checkOpen() throws ClosedChannelException {
+            if (!channelOpen || !open) {
+                throw new ClosedChannelException();
+            }
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            checkOpen();
+            int read = MappedPayload.this.read(buffer, position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public int write(ByteBuffer buffer) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            checkOpen();
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            checkOpen();
+            if (newPosition < 0) {
+                throw new IllegalArgumentException("The position must not be negative.");
+            }
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            checkOpen();
+            return size;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channelOpen && open;
+        }
+
+        @Override
+        public void close() {
+            channelOpen = false;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The stages of one run. While the run is going every stage is published as an MBean under
+ * com.warfrog.bitmapallthethings:type=Stage, at the end the stages can be printed or written
+ * out as JSON or CSV. The buffer pools of the engine are published next to them
+ * (type=BufferPool).
+ */
+public class Metrics {
+
+    public static final String LIST = "list";
+    public static final String SCAN = "scan";
+    public static final String RAR = "rar";
+    public static final String UNZIP = "unzip";
+    public static final String HEADER = "header";
+    public static final String COPY = "copy";
+    public static final String COMPRESS = "compress";
+    public static final String DECOMPRESS = "decompress";
+    public static final String DEDUP = "dedup";
+    public static final String ENCODE = "encode";
+    public static final String DECODE = "decode";
+    public static final String CATALOG = "catalog";
+    public static final String RESTORE = "restore";
+    public static final String SERVE = "serve";
+    public static final String PARITY = "parity";
+    public static final String REPAIR = "repair";
+    public static final String UNRAR = "unrar";
+    public static final String CLEANUP = "cleanup";
+
+    private static final String DOMAIN = "com.warfrog.bitmapallthethings";
+
+    private final Map<String, StageMetrics> stages = new LinkedHashMap<String, StageMetrics>();
+    private final List<BufferPool> pools = new ArrayList<BufferPool>();
+    private final List<ObjectName> registeredNames = new ArrayList<ObjectName>();
+    private long startTime = System.nanoTime();
+
+    public Metrics() {
+        //in pipeline order, that's the order of the summary
+        for (String stage : new String[]{LIST, SCAN, RAR, UNZIP, HEADER, COPY, COMPRESS, DECOMPRESS, DEDUP, ENCODE, DECODE,
+                CATALOG, RESTORE, SERVE, PARITY, REPAIR, UNRAR, CLEANUP}) {
+            stages.put(stage, new StageMetrics(stage));
+        }
+    }
+
+    public synchronized StageMetrics getStage(String name) {
+        StageMetrics stage = stages.get(name);
+        if (stage == null) {
+            stage = new StageMetrics(name);
+            stages.put(name, stage);
+        }
+        return stage;
+    }
+
+    public synchronized List<StageMetrics> getStages() {
+        return new ArrayList<StageMetrics>(stages.values());
+    }
+
+    public synchronized void addPool(BufferPool pool) {
+        pools.add(pool);
+    }
+
+    public synchronized List<BufferPool> getPools() {
+        return new ArrayList<BufferPool>(pools);
+    }
+
+    /**
+     * Shorthand for getStage(stage).record(start, files, bytes).
+     */
+    public void record(String stage, long start, long files, long bytes) {
+        getStage(stage).record(start, files, bytes);
+    }
+
+    public double getElapsedMillis() {
+        return (System.nanoTime() - startTime) / 1000000.0;
+    }
+
+    /**
+     * Clears every stage and restarts the run clock.
+     */
+    public synchronized void reset() {
+        for (StageMetrics stage : stages.values()) {
+            stage.reset();
+        }
+        for (BufferPool pool : pools) {
+            pool.reset();
+        }
+        startTime = System.nanoTime();
+    }
+
+    private static ObjectName createObjectName(String type, String name) throws JMException {
+        return new ObjectName(DOMAIN + ":type=" + type + ",name=" + name);
+    }
+
+    private void register(MBeanServer server, Object bean, ObjectName objectName) throws JMException {
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+        server.registerMBean(bean, objectName);
+        registeredNames.add(objectName);
+    }
+
+    /**
+     * Publishes the stages on the platform MBean server. A stage that is already there (another
+     * engine in the same JVM) is replaced. JMX is only a window, so failures are just reported.
+     */
+    public synchronized void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (StageMetrics stage : stages.values()) {
+            try {
+                register(server, stage, createObjectName("Stage", stage.getName()));
+            } catch (JMException ex) {
+                System.err.println("WARNING: Could not publish the " + stage.getName() + " metrics: " + ex.getMessage());
+            }
+        }
+        for (BufferPool pool : pools) {
+            try {
+                register(server, pool, createObjectName("BufferPool", pool.getName()));
+            } catch (JMException ex) {
+                System.err.println("WARNING: Could not publish the " + pool.getName() + " buffer pool: " + ex.getMessage());
+            }
+        }
+    }
+
+    public synchronized void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName objectName : registeredNames) {
+            try {
+                if (server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+            } catch (JMException ex) {
+                //already gone
+            }
+        }
+        registeredNames.clear();
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    /**
+     * Prints one line for every stage that saw any work.
+     */
+    public void printSummary() {
+        System.out.println("Finished in " + String.format("%.2f", getElapsedMillis() / 1000) + " seconds:");
+        for (StageMetrics stage : getStages()) {
+            if (stage.getCount() > 0) {
+                System.out.println(String.format("  %-10s %6d passes %8d files %14d bytes %10.1f ms (p95 %.1f ms) %8.2f MB/s",
+                        stage.getName(), stage.getCount(), stage.getFiles(), stage.getBytes(), stage.getWallMillis(),
+                        stage.getP95Millis(), stage.getThroughput()));
+            }
+        }
+        for (BufferPool pool : getPools()) {
+            if (pool.getHits() + pool.getMisses() > 0) {
+                System.out.println(String.format("  %-10s %8d hits %8d misses (%d pooled)", pool.getName() + " pool",
+                        pool.getHits(), pool.getMisses(), pool.getPooled()));
+            }
+        }
+    }
+
+    /**
+     * Writes every stage to file, as CSV if the name ends with .csv and as JSON otherwise.
+     */
+    public void writeSummary(File file, String action) throws IOException {
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        try {
+            if (file.getName().toLowerCase(Locale.ROOT).endsWith(".csv")) {
+                writeCsv(writer);
+            } else {
+                writeJson(writer, action);
+            }
+        } finally {
+            writer.close();
+        }
+        if (writer.checkError()) {
+            throw new IOException("Could not write the metrics to " + file + ".");
+        }
+    }
+
+    private void writeCsv(PrintWriter writer) {
+        writer.println("stage,count,files,bytes,totalMillis,wallMillis,minMillis,meanMillis,p50Millis,p95Millis,p99Millis,maxMillis,throughput");
+        for (StageMetrics stage : getStages()) {
+            writer.println(stage.getName() + "," + stage.getCount() + "," + stage.getFiles() + "," + stage.getBytes() + ","
+                    + format(stage.getTotalMillis()) + "," + format(stage.getWallMillis()) + ","
+                    + format(stage.getMinMillis()) + "," + format(stage.getMeanMillis()) + ","
+                    + format(stage.getP50Millis()) + "," + format(stage.getP95Millis()) + ","
+                    + format(stage.getP99Millis()) + "," + format(stage.getMaxMillis()) + ","
+                    + format(stage.getThroughput()));
+        }
+    }
+
+    private void writeJson(PrintWriter writer, String action) {
+        writer.println("{");
+        writer.println("  \"action\": \"" + action + "\",");
+        writer.println("  \"elapsedMillis\": " + format(getElapsedMillis()) + ",");
+        writer.println("  \"stages\": [");
+        List<StageMetrics> stageList = getStages();
+        for (int i = 0; i < stageList.size(); i++) {
+            StageMetrics stage = stageList.get(i);
+            //the histogram is cut after the last bucket in use, bucket i counts latencies below 2^i ns
+            long[] histogram = stage.getHistogram();
+            int used = histogram.length;
+            while (used > 0 && histogram[used - 1] == 0) {
+                used--;
+            }
+            StringBuilder buckets = new StringBuilder();
+            for (int j = 0; j < used; j++) {
+                buckets.append(j > 0 ? ", " : "").append(histogram[j]);
+            }
+
+            writer.println("    {");
+            writer.println("      \"stage\": \"" + stage.getName() + "\",");
+            writer.println("      \"count\": " + stage.getCount() + ",");
+            writer.println("      \"files\": " + stage.getFiles() + ",");
+            writer.println("      \"bytes\": " + stage.getBytes() + ",");
+            writer.println("      \"totalMillis\": " + format(stage.getTotalMillis()) + ",");
+            writer.println("      \"wallMillis\": " + format(stage.getWallMillis()) + ",");
+            writer.println("      \"minMillis\": " + format(stage.getMinMillis()) + ",");
+            writer.println("      \"meanMillis\": " + format(stage.getMeanMillis()) + ",");
+            writer.println("      \"p50Millis\": " + format(stage.getP50Millis()) + ",");
+            writer.println("      \"p95Millis\": " + format(stage.getP95Millis()) + ",");
+            writer.println("      \"p99Millis\": " + format(stage.getP99Millis()) + ",");
+            writer.println("      \"maxMillis\": " + format(stage.getMaxMillis()) + ",");
+            writer.println("      \"throughput\": " + format(stage.getThroughput()) + ",");
+            writer.println("      \"histogram\": [" + buckets + "]");
+            writer.println("    }" + (i < stageList.size() - 1 ? "," : ""));
+        }
+        writer.println("  ],");
+        writer.println("  \"bufferPools\": [");
+        List<BufferPool> poolList = getPools();
+        for (int i = 0; i < poolList.size(); i++) {
+            BufferPool pool = poolList.get(i);
+            writer.println("    {\"pool\": \"" + pool.getName() + "\", \"direct\": " + pool.isDirect() + ", \"bufferSize\": "
+                    + pool.getBufferSize() + ", \"hits\": " + pool.getHits() + ", \"misses\": " + pool.getMisses()
+                    + ", \"pooled\": " + pool.getPooled() + "}" + (i < poolList.size() - 1 ? "," : ""));
+        }
+        writer.println("  ]");
+        writer.println("}");
+    }
+}
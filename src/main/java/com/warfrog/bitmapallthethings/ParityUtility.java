@@ -0,0 +1,382 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Protects a group of data bitmaps with Reed-Solomon parity bitmaps. Every data bitmap (header and all)
+ * is one shard, shorter ones are padded with zeros to the longest. Each parity bitmap lists the data
+ * bitmaps of its group with their size and CRC32, so a missing or corrupt one can be spotted and
+ * rebuilt. The shards are processed in independent stripes on a pool of worker threads.
+ */
+public class ParityUtility {
+
+    private static final int STRIPE_SIZE = 1024 * 1024;
+
+    public static String generateParityName(String baseName, int group, int index) {
+        return baseName + ".parity" + String.format("%04d", group + 1) + "-" + String.format("%03d", index + 1) + ".bmp";
+    }
+
+    private static long[] calculateChecksums(final List<File> files, int threads) throws Exception {
+        final long[] checksums = new long[files.size()];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < files.size(); i++) {
+            final int index = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    FileInputStream inputStream = new FileInputStream(files.get(index));
+                    try {
+                        checksums[index] = ChannelUtility.checksum(inputStream.getChannel());
+                    } catch (IOException ex) {
+                        throw new IOException("Could not read " + files.get(index) + ": " + ex.getMessage(), ex);
+                    } finally {
+                        inputStream.close();
+                    }
+                    return null;
+                }
+            });
+        }
+        if (TaskUtility.executeTasks(tasks, threads) > 0) {
+            throw new IOException("Could not checksum every bitmap (see above).");
+        }
+        return checksums;
+    }
+
+    private static void readShard(FileChannel channel, long position, long shardSize, byte[] shard, int length) throws IOException {
+        //everything past the end of a shorter shard reads as zeros
+        int available = (int) Math.max(0, Math.min(length, shardSize - position));
+        ChannelUtility.readFully(channel, ByteBuffer.wrap(shard, 0, available), position);
+        Arrays.fill(shard, available, length, (byte) 0);
+    }
+
+    private static void processStripes(long shardSize, int threads, final StripeProcessor processor) throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (long position = 0; position < shardSize; position += STRIPE_SIZE) {
+            final long stripePosition = position;
+            final int length = (int) Math.min(STRIPE_SIZE, shardSize - position);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    processor.process(stripePosition, length);
+                    return null;
+                }
+            });
+        }
+        if (TaskUtility.executeTasks(tasks, threads) > 0) {
+            throw new IOException("Could not process every parity stripe (see above).");
+        }
+    }
+
+    private interface StripeProcessor {
+        void process(long position, int length) throws IOException;
+    }
+
+    /**
+     * Writes the parity bitmaps for one group of data bitmaps.
+     *
+     * @return the parity bitmaps that were written
+     */
+    public static List<File> writeParityGroup(final List<File> dataFiles, int group, int parityShards, String baseName,
+                                              GeometryPlanner planner, int threads) throws Exception {
+        final int dataShards = dataFiles.size();
+        final ReedSolomon codec = new ReedSolomon(dataShards, parityShards);
+        long[] checksums = calculateChecksums(dataFiles, threads);
+
+        long maxSize = 0;
+        for (File file : dataFiles) {
+            maxSize = Math.max(maxSize, file.length());
+        }
+        final long shardSize = maxSize;
+
+        final List<File> parityFiles = new ArrayList<File>();
+        final FileInputStream[] inputs = new FileInputStream[dataShards];
+        final RandomAccessFile[] outputs = new RandomAccessFile[parityShards];
+        final int[] pixelOffsets = new int[parityShards];
+        try {
+            for (int i = 0; i < dataShards; i++) {
+                inputs[i] = new FileInputStream(dataFiles.get(i));
+            }
+            for (int i = 0; i < parityShards; i++) {
+                File parityFile = new File(generateParityName(baseName, group, i));
+                System.out.println("Generating " + parityFile);
+                BitmapHeader header = new BitmapHeader();
+                header.setType(BitmapHeader.TYPE_PARITY);
+                header.setOffset(group);
+                header.setIndex(i);
+                header.setCount(parityShards);
+                header.setTotalSize(shardSize);
+                for (int j = 0; j < dataShards; j++) {
+                    header.getEntries().add(new BitmapHeader.Entry(dataFiles.get(j).getName(), 0,
+                            dataFiles.get(j).length(), checksums[j]));
+                }
+                int fillerBytes = header.layout(planner.plan(shardSize), (int) shardSize);
+
+                outputs[i] = new RandomAccessFile(parityFile, "rw");
+                ByteBuffer headerBuffer = header.toByteBuffer();
+                pixelOffsets[i] = header.getPixelOffset();
+                outputs[i].setLength(0);
+                ChannelUtility.writeFully(outputs[i].getChannel(), headerBuffer, 0);
+                //extending the file takes care of the zero filler
+                outputs[i].setLength(pixelOffsets[i] + shardSize + fillerBytes);
+                parityFiles.add(parityFile);
+            }
+
+            processStripes(shardSize, threads, new StripeProcessor() {
+                @Override
+                public void process(long position, int length) throws IOException {
+                    byte[][] shards = new byte[dataShards + outputs.length][length];
+                    for (int i = 0; i < dataShards; i++) {
+                        readShard(inputs[i].getChannel(), position, dataFiles.get(i).length(), shards[i], length);
+                    }
+                    codec.encodeParity(shards, length);
+                    for (int i = 0; i < outputs.length; i++) {
+                        ChannelUtility.writeFully(outputs[i].getChannel(), ByteBuffer.wrap(shards[dataShards + i], 0, length),
+                                pixelOffsets[i] + position);
+                    }
+                }
+            });
+        } finally {
+            for (FileInputStream input : inputs) {
+                if (input != null) {
+                    input.close();
+                }
+            }
+            for (RandomAccessFile output : outputs) {
+                if (output != null) {
+                    output.close();
+                }
+            }
+        }
+        return parityFiles;
+    }
+
+    private static boolean isIntact(File file, BitmapHeader.Entry entry) {
+        boolean returnValue = false;
+        if (file != null && file.isFile() && file.length() == entry.getSize()) {
+            try {
+                FileInputStream inputStream = new FileInputStream(file);
+                try {
+                    returnValue = ChannelUtility.checksum(inputStream.getChannel()) == entry.getChecksum();
+                } finally {
+                    inputStream.close();
+                }
+            } catch (IOException ex) {
+                //unreadable counts as missing
+            }
+        }
+        return returnValue;
+    }
+
+    /**
+     * Finds the data bitmaps that a later run into the same directory replaced. Those are listed by
+     * several parity groups, the one they are still intact for (or the latest one if they are missing or
+     * damaged) protects them and the older groups must not roll them back.
+     *
+     * @param groups the parity bitmaps of every group
+     * @return the replaced bitmaps, by the first parity bitmap of each group that no longer matches them
+     */
+    public static Map<File, Set<String>> findReplaced(Collection<List<File>> groups, Map<File, BitmapHeader> headers,
+                                                      Map<String, File> dataCandidates) {
+        Map<String, List<File>> listings = new HashMap<String, List<File>>();
+        for (List<File> group : groups) {
+            for (BitmapHeader.Entry entry : headers.get(group.get(0)).getEntries()) {
+                if (!listings.containsKey(entry.getName())) {
+                    listings.put(entry.getName(), new ArrayList<File>());
+                }
+                listings.get(entry.getName()).add(group.get(0));
+            }
+        }
+
+        Map<File, Set<String>> replaced = new HashMap<File, Set<String>>();
+        for (Map.Entry<String, List<File>> listing : listings.entrySet()) {
+            if (listing.getValue().size() < 2) {
+                continue;
+            }
+            List<File> stale = new ArrayList<File>();
+            for (File parityFile : listing.getValue()) {
+                if (!isIntact(dataCandidates.get(listing.getKey()), findEntry(headers.get(parityFile), listing.getKey()))) {
+                    stale.add(parityFile);
+                }
+            }
+            if (stale.size() == listing.getValue().size()) {
+                //gone or damaged, only the latest run gets to rebuild it
+                File latest = stale.get(0);
+                for (File parityFile : stale) {
+                    if (parityFile.lastModified() > latest.lastModified()) {
+                        latest = parityFile;
+                    }
+                }
+                stale.remove(latest);
+            }
+            for (File parityFile : stale) {
+                if (!replaced.containsKey(parityFile)) {
+                    replaced.put(parityFile, new HashSet<String>());
+                }
+                replaced.get(parityFile).add(listing.getKey());
+            }
+        }
+        return replaced;
+    }
+
+    private static BitmapHeader.Entry findEntry(BitmapHeader header, String name) {
+        for (BitmapHeader.Entry entry : header.getEntries()) {
+            if (entry.getName().equals(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks the data bitmaps of one parity group and rebuilds the ones that are missing or corrupt.
+     *
+     * @param parityFiles    the parity bitmaps of the group that were found
+     * @param dataCandidates the bitmaps that were found, by name
+     * @param replaced       bitmaps of the group that a later run replaced, they count as missing but are not rebuilt
+     * @return the rebuilt bitmaps, by name
+     */
+    public static Map<String, File> repairGroup(List<File> parityFiles, Map<File, BitmapHeader> headers,
+                                                final Map<String, File> dataCandidates, Set<String> replaced,
+                                                String outputDirectory, int threads) throws Exception {
+        final BitmapHeader first = headers.get(parityFiles.get(0));
+        final List<BitmapHeader.Entry> entries = first.getEntries();
+        final int dataShards = entries.size();
+        final int parityShards = first.getCount();
+
+        //verify the data bitmaps in parallel
+        final boolean[] present = new boolean[dataShards + parityShards];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < dataShards; i++) {
+            final int index = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    BitmapHeader.Entry entry = entries.get(index);
+                    present[index] = isIntact(dataCandidates.get(entry.getName()), entry);
+                    return null;
+                }
+            });
+        }
+        TaskUtility.executeTasks(tasks, threads);
+
+        final List<Integer> missing = new ArrayList<Integer>();
+        int replacedShards = 0;
+        for (int i = 0; i < dataShards; i++) {
+            if (!present[i] && replaced.contains(entries.get(i).getName())) {
+                replacedShards++;
+            } else if (!present[i]) {
+                missing.add(i);
+            }
+        }
+        Map<String, File> rebuilt = new LinkedHashMap<String, File>();
+        if (missing.isEmpty()) {
+            return rebuilt;
+        }
+
+        final ReedSolomon codec = new ReedSolomon(dataShards, parityShards);
+        final FileInputStream[] inputs = new FileInputStream[dataShards + parityShards];
+        final int[] offsets = new int[dataShards + parityShards];
+        final RandomAccessFile[] outputs = new RandomAccessFile[dataShards];
+        try {
+            for (int i = 0; i < dataShards; i++) {
+                if (present[i]) {
+                    inputs[i] = new FileInputStream(dataCandidates.get(entries.get(i).getName()));
+                }
+            }
+            for (File parityFile : parityFiles) {
+                BitmapHeader header = headers.get(parityFile);
+                int index = dataShards + header.getIndex();
+                if (header.getIndex() >= 0 && header.getIndex() < parityShards && header.getTotalSize() == first.getTotalSize()) {
+                    present[index] = true;
+                    offsets[index] = header.getPixelOffset();
+                    inputs[index] = new FileInputStream(parityFile);
+                }
+            }
+
+            int available = 0;
+            for (boolean shard : present) {
+                available += shard ? 1 : 0;
+            }
+            if (available < dataShards) {
+                throw new IOException((missing.size() + replacedShards) + " bitmaps of the group are missing, corrupt or replaced, but only "
+                        + (available - dataShards + missing.size() + replacedShards) + " parity bitmaps are available.");
+            }
+
+            for (int index : missing) {
+                BitmapHeader.Entry entry = entries.get(index);
+                File file = new File(outputDirectory, new File(entry.getName()).getName());
+                System.out.println("Rebuilding " + file + " from parity");
+                outputs[index] = new RandomAccessFile(file, "rw");
+                outputs[index].setLength(entry.getSize());
+                rebuilt.put(entry.getName(), file);
+            }
+
+            processStripes(first.getTotalSize(), threads, new StripeProcessor() {
+                @Override
+                public void process(long position, int length) throws IOException {
+                    byte[][] shards = new byte[dataShards + parityShards][length];
+                    for (int i = 0; i < shards.length; i++) {
+                        if (present[i]) {
+                            long shardSize = i < dataShards ? entries.get(i).getSize() : first.getTotalSize();
+                            readShard(inputs[i].getChannel(), offsets[i] + position, offsets[i] + shardSize, shards[i], length);
+                        }
+                    }
+                    codec.reconstruct(shards, present, length);
+                    for (int index : missing) {
+                        int count = (int) Math.max(0, Math.min(length, entries.get(index).getSize() - position));
+                        ChannelUtility.writeFully(outputs[index].getChannel(), ByteBuffer.wrap(shards[index], 0, count), position);
+                    }
+                }
+            });
+        } finally {
+            for (FileInputStream input : inputs) {
+                if (input != null) {
+                    input.close();
+                }
+            }
+            for (RandomAccessFile output : outputs) {
+                if (output != null) {
+                    output.close();
+                }
+            }
+        }
+        return rebuilt;
+    }
+}
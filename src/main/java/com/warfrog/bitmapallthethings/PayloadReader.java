@@ -0,0 +1,112 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the payload of a multi part bitmap set as if it was one continuous stream. Reads are
+ * positional, so several threads can share one reader.
+ */
+public class PayloadReader implements Closeable {
+
+    private final FileInputStream[] streams;
+    private final BitmapHeader[] headers;
+    private final long size;
+
+    /**
+     * @param parts every part of the payload, the headers must already have been validated
+     */
+    public PayloadReader(List<File> parts, Map<File, BitmapHeader> headers) throws IOException {
+        this.streams = new FileInputStream[parts.size()];
+        this.headers = new BitmapHeader[parts.size()];
+        try {
+            for (File part : parts) {
+                BitmapHeader header = headers.get(part);
+                this.headers[header.getIndex()] = header;
+                this.streams[header.getIndex()] = new FileInputStream(part);
+            }
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+        BitmapHeader last = this.headers[this.headers.length - 1];
+        this.size = last.getOffset() + last.getPayloadSize();
+    }
+
+    public long size() {
+        return size;
+    }
+
+    private int findPart(long position) {
+        int low = 0;
+        int high = headers.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (headers[middle].getOffset() <= position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Fills the buffer with the payload bytes starting at position.
+     */
+    public void read(ByteBuffer buffer, long position) throws IOException {
+        if (position + buffer.remaining() > size) {
+            throw new EOFException("Unexpected end of payload, " + (position + buffer.remaining() - size) + " bytes were missing.");
+        }
+        int part = findPart(position);
+        while (buffer.hasRemaining()) {
+            BitmapHeader header = headers[part];
+            long partPosition = position - header.getOffset();
+            int length = (int) Math.min(buffer.remaining(), header.getPayloadSize() - partPosition);
+
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(slice.position() + length);
+            ChannelUtility.readFully(streams[part].getChannel(), slice, header.getPixelOffset() + partPosition);
+            buffer.position(slice.position());
+            position += length;
+            part++;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (FileInputStream stream : streams) {
+            if (stream != null) {
+                stream.close();
+            }
+        }
+    }
+}
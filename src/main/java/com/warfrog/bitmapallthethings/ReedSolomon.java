@@ -0,0 +1,199 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Systematic Reed-Solomon erasure code over GF(2^8). The parity rows form a Cauchy matrix, every square
+ * sub matrix of it is invertible, so any dataShards of the dataShards + parityShards shards are enough
+ * to rebuild the rest. Shards are plain byte arrays and instances are immutable, so one codec can be
+ * shared by every thread working on a stripe.
+ */
+public class ReedSolomon {
+
+    public static final int MAX_SHARDS = 256;
+
+    //log and exp tables for the field generated by x^8 + x^4 + x^3 + x^2 + 1
+    private static final int[] EXP = new int[510];
+    private static final int[] LOG = new int[256];
+    //full product table, a row is looked up once per shard so the inner loop is a single array access
+    private static final byte[][] MULTIPLY = new byte[256][256];
+
+    static {
+        int value = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = value;
+            EXP[i + 255] = value;
+            LOG[value] = i;
+            value <<= 1;
+            if ((value & 0x100) != 0) {
+                value ^= 0x11D;
+            }
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MULTIPLY[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    private final int[][] parityMatrix;
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > MAX_SHARDS) {
+            throw new IllegalArgumentException("Reed-Solomon supports at most " + MAX_SHARDS + " shards in total.");
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.parityMatrix = new int[parityShards][dataShards];
+        for (int i = 0; i < parityShards; i++) {
+            for (int j = 0; j < dataShards; j++) {
+                //1 / (x_i + y_j) with x_i = dataShards + i and y_j = j, all distinct
+                parityMatrix[i][j] = inverse((dataShards + i) ^ j);
+            }
+        }
+    }
+
+    private static int multiply(int a, int b) {
+        return MULTIPLY[a][b] & 0xFF;
+    }
+
+    private static int inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    private static void multiplyAndAdd(int coefficient, byte[] source, byte[] target, int length) {
+        if (coefficient == 0) {
+            return;
+        }
+        byte[] row = MULTIPLY[coefficient];
+        for (int i = 0; i < length; i++) {
+            target[i] ^= row[source[i] & 0xFF];
+        }
+    }
+
+    /**
+     * Computes the parity shards, shards[dataShards ...] are overwritten.
+     */
+    public void encodeParity(byte[][] shards, int length) {
+        for (int i = 0; i < parityShards; i++) {
+            byte[] parity = shards[dataShards + i];
+            Arrays.fill(parity, 0, length, (byte) 0);
+            for (int j = 0; j < dataShards; j++) {
+                multiplyAndAdd(parityMatrix[i][j], shards[j], parity, length);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the missing data shards from the ones that are present.
+     *
+     * @param present which of the dataShards + parityShards shards hold valid data
+     */
+    public void reconstruct(byte[][] shards, boolean[] present, int length) throws IOException {
+        //pick dataShards surviving rows of the encoding matrix
+        int[][] matrix = new int[dataShards][];
+        int[] rows = new int[dataShards];
+        int found = 0;
+        for (int i = 0; i < dataShards + parityShards && found < dataShards; i++) {
+            if (present[i]) {
+                if (i < dataShards) {
+                    matrix[found] = new int[dataShards];
+                    matrix[found][i] = 1;
+                } else {
+                    matrix[found] = parityMatrix[i - dataShards].clone();
+                }
+                rows[found++] = i;
+            }
+        }
+        if (found < dataShards) {
+            throw new IOException("Only " + found + " of the " + dataShards + " shards needed to rebuild are available.");
+        }
+
+        int[][] decode = invert(matrix);
+        for (int j = 0; j < dataShards; j++) {
+            if (!present[j]) {
+                byte[] target = shards[j];
+                Arrays.fill(target, 0, length, (byte) 0);
+                for (int r = 0; r < dataShards; r++) {
+                    multiplyAndAdd(decode[j][r], shards[rows[r]], target, length);
+                }
+            }
+        }
+    }
+
+    //gauss-jordan elimination, in GF(2^8) addition and subtraction are both xor
+    private static int[][] invert(int[][] matrix) throws IOException {
+        int size = matrix.length;
+        int[][] work = new int[size][];
+        int[][] result = new int[size][size];
+        for (int i = 0; i < size; i++) {
+            work[i] = matrix[i].clone();
+            result[i][i] = 1;
+        }
+
+        for (int column = 0; column < size; column++) {
+            int pivot = column;
+            while (pivot < size && work[pivot][column] == 0) {
+                pivot++;
+            }
+            if (pivot == size) {
+                throw new IOException("The Reed-Solomon matrix is singular.");
+            }
+            int[] swap = work[pivot];
+            work[pivot] = work[column];
+            work[column] = swap;
+            swap = result[pivot];
+            result[pivot] = result[column];
+            result[column] = swap;
+
+            int scale = inverse(work[column][column]);
+            for (int i = 0; i < size; i++) {
+                work[column][i] = multiply(work[column][i], scale);
+                result[column][i] = multiply(result[column][i], scale);
+            }
+            for (int row = 0; row < size; row++) {
+                int factor = work[row][column];
+                if (row != column && factor != 0) {
+                    for (int i = 0; i < size; i++) {
+                        work[row][i] ^= multiply(factor, work[column][i]);
+                        result[row][i] ^= multiply(factor, result[column][i]);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+}
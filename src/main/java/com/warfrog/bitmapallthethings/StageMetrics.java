@@ -0,0 +1,197 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the files, bytes and latencies of one stage. Every recording is lock free, so the worker
+ * threads can share a stage. Latencies go into power of two buckets of nanoseconds, bucket i holds
+ * everything below 2^i.
+ */
+public class StageMetrics implements StageMetricsMBean {
+
+    private static final int BUCKETS = 64;
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final String name;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong minNanos = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLong firstStart = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong lastEnd = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    public StageMetrics(String name) {
+        this.name = name;
+    }
+
+    private static void updateMin(AtomicLong target, long value) {
+        long current;
+        while (value < (current = target.get()) && !target.compareAndSet(current, value)) {
+            //lost the race, try again
+        }
+    }
+
+    private static void updateMax(AtomicLong target, long value) {
+        long current;
+        while (value > (current = target.get()) && !target.compareAndSet(current, value)) {
+            //lost the race, try again
+        }
+    }
+
+    /**
+     * Records one pass through the stage that started at start (System.nanoTime) and ends now.
+     */
+    public void record(long start, long files, long bytes) {
+        long end = System.nanoTime();
+        long nanos = Math.max(0, end - start);
+        count.incrementAndGet();
+        this.files.addAndGet(files);
+        this.bytes.addAndGet(bytes);
+        totalNanos.addAndGet(nanos);
+        updateMin(minNanos, nanos);
+        updateMax(maxNanos, nanos);
+        updateMin(firstStart, start);
+        updateMax(lastEnd, end);
+        histogram.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos)));
+    }
+
+    private double percentile(double fraction) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram.get(i);
+            if (seen >= rank) {
+                //the bucket bound can be far off for the top bucket, the real max is never exceeded
+                return Math.min(Math.pow(2, i), maxNanos.get()) / NANOS_PER_MILLI;
+            }
+        }
+        return getMaxMillis();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public long getFiles() {
+        return files.get();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public double getTotalMillis() {
+        return totalNanos.get() / NANOS_PER_MILLI;
+    }
+
+    /**
+     * The time from the first start to the last end, parallel passes overlap so this is usually
+     * less than the total.
+     */
+    @Override
+    public double getWallMillis() {
+        return count.get() == 0 ? 0 : Math.max(0, lastEnd.get() - firstStart.get()) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMinMillis() {
+        return count.get() == 0 ? 0 : minNanos.get() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return count.get() == 0 ? 0 : getTotalMillis() / count.get();
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return maxNanos.get() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return percentile(0.50);
+    }
+
+    @Override
+    public double getP95Millis() {
+        return percentile(0.95);
+    }
+
+    @Override
+    public double getP99Millis() {
+        return percentile(0.99);
+    }
+
+    /**
+     * @return MB/s over the wall time of the stage
+     */
+    @Override
+    public double getThroughput() {
+        double seconds = getWallMillis() / 1000;
+        return seconds > 0 ? bytes.get() / seconds / (1024 * 1024) : 0;
+    }
+
+    @Override
+    public long[] getHistogram() {
+        long[] returnValue = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            returnValue[i] = histogram.get(i);
+        }
+        return returnValue;
+    }
+
+    @Override
+    public void reset() {
+        count.set(0);
+        files.set(0);
+        bytes.set(0);
+        totalNanos.set(0);
+        minNanos.set(Long.MAX_VALUE);
+        maxNanos.set(0);
+        firstStart.set(Long.MAX_VALUE);
+        lastEnd.set(Long.MIN_VALUE);
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+/**
+ * The JMX view of one stage of an encode or decode run. Times are in milliseconds, the percentiles are
+ * read from a power of two histogram so they are upper bounds.
+ */
+public interface StageMetricsMBean {
+
+    String getName();
+
+    long getCount();
+
+    long getFiles();
+
+    long getBytes();
+
+    double getTotalMillis();
+
+    double getWallMillis();
+
+    double getMinMillis();
+
+    double getMeanMillis();
+
+    double getMaxMillis();
+
+    double getP50Millis();
+
+    double getP95Millis();
+
+    double getP99Millis();
+
+    double getThroughput();
+
+    long[] getHistogram();
+
+    void reset();
+}
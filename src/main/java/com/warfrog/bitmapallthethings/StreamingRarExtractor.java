@@ -0,0 +1,306 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts a multi volume rar archive while its volumes are still being decoded. The volumes are
+ * decoded in part order and rar is started as soon as the first one is there. rar announces every
+ * volume it moves on to, so the ones before it can be released, and the decoders are held back to a
+ * window of volumes ahead of rar to bound the scratch space. Should rar still catch up it asks for the
+ * next volume, which is answered once that volume is ready. Only the English prompts are recognized, so a
+ * line rar leaves unfinished and then goes quiet on is taken for a prompt as well, and a rar that prints
+ * nothing at all for a long time is stopped rather than waited on forever.
+ */
+public class StreamingRarExtractor {
+
+    /**
+     * Produces and releases the volumes, a volume must only show up on disk once it's complete.
+     */
+    public interface VolumeSource {
+        void decode(int index) throws Exception;
+
+        void release(int index);
+    }
+
+    private static final Pattern EXTRACTING = Pattern.compile("Extracting from (.+)");
+    private static final Pattern INSERT_DISK = Pattern.compile("Insert disk with (.+)");
+    //rar's answer line for a missing volume is "[C]ontinue, [Q]uit" and it doesn't end in a new line
+    private static final String PROMPT = "[Q]uit";
+    //the percentage rar keeps updating while it extracts a file, that line is unfinished but not a prompt
+    private static final Pattern PROGRESS = Pattern.compile("\\d+%\\s*$");
+    private static final long PROMPT_IDLE_TIMEOUT = 10 * 1000;
+    private static final long STALL_TIMEOUT = 10 * 60 * 1000;
+    private static final long POLL_INTERVAL = 50;
+
+    private final List<File> volumes;
+    private final VolumeSource source;
+    private final int threads;
+    private final int window;
+    private final boolean releaseConsumed;
+    private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+    //guarded by this
+    private final boolean[] ready;
+    private final boolean[] failed;
+    private final boolean[] released;
+    private int current = 0;
+    private boolean finished = false;
+
+    /**
+     * @param volumes         the volume files in part order
+     * @param window          how many volumes may be decoded ahead of the one rar is reading, 0 for no limit
+     * @param releaseConsumed release every volume as soon as rar has moved past it
+     */
+    public StreamingRarExtractor(List<File> volumes, VolumeSource source, int threads, int window, boolean releaseConsumed) {
+        this.volumes = volumes;
+        this.source = source;
+        this.threads = Math.max(1, threads);
+        this.window = window;
+        this.releaseConsumed = releaseConsumed;
+        this.ready = new boolean[volumes.size()];
+        this.failed = new boolean[volumes.size()];
+        this.released = new boolean[volumes.size()];
+        for (int i = 0; i < volumes.size(); i++) {
+            indexes.put(volumes.get(i).getName().toLowerCase(), i);
+        }
+    }
+
+    private synchronized boolean awaitWindow(int index) throws InterruptedException {
+        while (!finished && window > 0 && index >= current + window) {
+            wait();
+        }
+        return !finished;
+    }
+
+    private synchronized void markDecoded(int index, boolean success) {
+        ready[index] = success;
+        failed[index] = !success;
+        notifyAll();
+    }
+
+    /**
+     * @return true once the volume is on disk, false if it could not be decoded
+     */
+    private synchronized boolean awaitVolume(int index) throws InterruptedException {
+        while (!ready[index] && !failed[index]) {
+            wait();
+        }
+        return ready[index];
+    }
+
+    private synchronized void moveTo(int index) {
+        if (index > current) {
+            current = index;
+            notifyAll();
+        }
+        if (releaseConsumed) {
+            for (int i = 0; i < index; i++) {
+                release(i);
+            }
+        }
+    }
+
+    private synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    private synchronized void release(int index) {
+        if (!released[index]) {
+            released[index] = true;
+            source.release(index);
+        }
+    }
+
+    private int findVolume(String name) {
+        Integer index = indexes.get(new File(name.trim()).getName().toLowerCase());
+        return index != null ? index : -1;
+    }
+
+    private List<Future<Void>> startDecoding(ExecutorService executor) {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < volumes.size(); i++) {
+            final int index = i;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    if (!awaitWindow(index)) {
+                        //rar is already done, nobody needs this volume anymore
+                        return null;
+                    }
+                    try {
+                        source.decode(index);
+                        markDecoded(index, true);
+                    } catch (Exception ex) {
+                        markDecoded(index, false);
+                        throw new Exception("Failed to decode " + volumes.get(index) + ": " + ex.getMessage(), ex);
+                    }
+                    return null;
+                }
+            }));
+        }
+        return futures;
+    }
+
+    /**
+     * Lets rar continue once the volume it asks for is there, or makes it quit if that volume won't come.
+     *
+     * @param requested the volume rar named, -2 if it didn't name one
+     */
+    private void answerPrompt(OutputStream input, int requested, boolean[] continued) throws IOException, InterruptedException {
+        int index = requested == -2 ? current + 1 : requested;
+        //a volume that is already there and still can't be opened would make rar ask forever
+        boolean available = index >= 0 && index < volumes.size() && !continued[index] && awaitVolume(index);
+        if (available) {
+            continued[index] = true;
+        }
+        input.write((available ? "C\n" : "Q\n").getBytes());
+        input.flush();
+    }
+
+    /**
+     * Copies rar's output to the console and reacts to the volumes it reads and asks for. The output is
+     * polled rather than read blocking, so a prompt that is not recognized or a rar that stalls is noticed.
+     */
+    private void followOutput(ManagedProcess process) throws IOException, InterruptedException {
+        BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        OutputStream input = process.getOutputStream();
+        StringBuilder line = new StringBuilder();
+        //-2 until rar names the volume it's missing, -1 if it's not one of ours
+        int requested = -2;
+        boolean[] continued = new boolean[volumes.size()];
+        long lastOutput = System.currentTimeMillis();
+        while (true) {
+            if (!output.ready()) {
+                if (!process.isRunning()) {
+                    //the last bytes could have come in just before it exited
+                    if (output.ready()) {
+                        continue;
+                    }
+                    break;
+                }
+                long idle = System.currentTimeMillis() - lastOutput;
+                if (idle >= STALL_TIMEOUT) {
+                    System.err.println("ERROR: rar printed nothing for " + idle / 1000 + " seconds, stopping it.");
+                    process.destroy();
+                } else if (idle >= PROMPT_IDLE_TIMEOUT && line.length() > 0 && !PROGRESS.matcher(line).find()) {
+                    //most likely a prompt in another language, waiting for an answer
+                    System.out.println(line);
+                    System.out.println("rar is waiting for an answer, taking it for a request for the next volume");
+                    line.setLength(0);
+                    answerPrompt(input, requested, continued);
+                    requested = -2;
+                    lastOutput = System.currentTimeMillis();
+                } else {
+                    Thread.sleep(POLL_INTERVAL);
+                }
+                continue;
+            }
+
+            int c = output.read();
+            if (c == -1) {
+                break;
+            }
+            lastOutput = System.currentTimeMillis();
+            if (c == '\n' || c == '\r') {
+                if (line.length() > 0) {
+                    System.out.println(line);
+                    Matcher extracting = EXTRACTING.matcher(line);
+                    Matcher insertDisk = INSERT_DISK.matcher(line);
+                    if (extracting.find() && findVolume(extracting.group(1)) >= 0) {
+                        moveTo(findVolume(extracting.group(1)));
+                    } else if (insertDisk.find()) {
+                        requested = findVolume(insertDisk.group(1));
+                    }
+                }
+                line.setLength(0);
+                continue;
+            }
+
+            line.append((char) c);
+            if (line.toString().endsWith(PROMPT)) {
+                //rar caught up with the decoders, let it continue once the volume is there
+                System.out.println(line);
+                line.setLength(0);
+                answerPrompt(input, requested, continued);
+                requested = -2;
+                lastOutput = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Decodes the volumes and runs the rar command on them, the command has to extract the first volume.
+     *
+     * @param timeoutMillis stop rar after this long, 0 for no limit
+     * @return the exit code of rar
+     */
+    public int extract(List<String> command, long timeoutMillis) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ManagedProcess process = null;
+        try {
+            List<Future<Void>> futures = startDecoding(executor);
+            int exitCode = -1;
+            if (awaitVolume(0)) {
+                process = CommandUtility.startInteractiveCommand(command, timeoutMillis);
+                followOutput(process);
+                exitCode = process.waitFor();
+            }
+            finish();
+
+            int failures = TaskUtility.waitForTasks(futures);
+            if (failures > 0) {
+                System.err.println("ERROR: " + failures + " of " + volumes.size() + " rar volumes could not be decoded (see above).");
+            }
+            //a failed extraction keeps what's left so it can be retried by hand
+            if (releaseConsumed && exitCode == 0 && failures == 0) {
+                for (int i = 0; i < volumes.size(); i++) {
+                    release(i);
+                }
+            }
+            return exitCode;
+        } finally {
+            finish();
+            executor.shutdownNow();
+            if (process != null) {
+                process.destroy();
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TaskUtility {
+
+    /**
+     * Runs the tasks on a fixed pool of worker threads. Tasks are handed out in list order, so callers
+     * should put their most expensive work first. A failing task is reported on stderr and does not
+     * stop the others.
+     *
+     * @return the number of tasks that failed
+     */
+    public static int executeTasks(List<? extends Callable<?>> tasks, int threads) throws InterruptedException {
+        int failures = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (Callable<?> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            failures = waitForTasks(futures);
+        } finally {
+            executor.shutdownNow();
+        }
+        return failures;
+    }
+
+    /**
+     * Waits for tasks that were submitted elsewhere, failures are reported just like executeTasks does.
+     *
+     * @return the number of tasks that failed
+     */
+    public static int waitForTasks(List<? extends Future<?>> futures) throws InterruptedException {
+        int failures = 0;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException ex) {
+                System.err.println("ERROR: " + ex.getCause().getMessage());
+                failures++;
+            }
+        }
+        return failures;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * A damaged table of contents has to be reported as such, never as an unchecked exception, so the
+ * bitmap can be rebuilt from parity.
+ */
+public class BitmapHeaderTest {
+
+    //the packed header has no name, its table of contents starts right after the fixed fields
+    private static final int ENTRY_COUNT_OFFSET = BitmapHeader.BITMAP_HEADER_SIZE + 34;
+
+    private static ByteBuffer createPackedBitmap() {
+        BitmapHeader header = new BitmapHeader();
+        header.setType(BitmapHeader.TYPE_PACKED);
+        header.addEntry("a.txt", 5);
+        header.addEntry("b.txt", 7);
+        int fillerBytes = header.layout(new GeometryPlanner(100, 100, 32, 0).plan(12), 12);
+        ByteBuffer bitmap = ByteBuffer.allocate(header.calculateHeaderSize() + 12 + fillerBytes).order(ByteOrder.LITTLE_ENDIAN);
+        header.write(bitmap);
+        bitmap.clear();
+        return bitmap;
+    }
+
+    private static void assertCorrupt(ByteBuffer bitmap) {
+        try {
+            BitmapHeader.read(bitmap, "test.bmp");
+            fail("The damaged table of contents was read.");
+        } catch (IOException ex) {
+            assertEquals("test.bmp has a corrupt table of contents.", ex.getMessage());
+        }
+        byte[] bytes = new byte[bitmap.remaining()];
+        bitmap.duplicate().get(bytes);
+        try {
+            BitmapHeader.read(new ByteArrayInputStream(bytes), "test.bmp", bytes.length);
+            fail("The damaged table of contents was read.");
+        } catch (IOException ex) {
+            assertEquals("test.bmp has a corrupt table of contents.", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void readsTheTableOfContents() throws IOException {
+        BitmapHeader header = BitmapHeader.read(createPackedBitmap(), "test.bmp");
+        assertEquals(BitmapHeader.TYPE_PACKED, header.getType());
+        assertEquals(2, header.getEntries().size());
+        assertEquals("b.txt", header.getEntries().get(1).getName());
+        assertEquals(5, header.getEntries().get(1).getOffset());
+        assertEquals(7, header.getEntries().get(1).getSize());
+    }
+
+    @Test
+    public void rejectsAHugeEntryCount() {
+        ByteBuffer bitmap = createPackedBitmap();
+        bitmap.putInt(ENTRY_COUNT_OFFSET, Integer.MAX_VALUE);
+        assertCorrupt(bitmap);
+    }
+
+    @Test
+    public void rejectsANegativeEntryCount() {
+        ByteBuffer bitmap = createPackedBitmap();
+        bitmap.putInt(ENTRY_COUNT_OFFSET, -1);
+        assertCorrupt(bitmap);
+    }
+
+    @Test
+    public void rejectsAnEntryCountTooBigForTheExtension() {
+        ByteBuffer bitmap = createPackedBitmap();
+        bitmap.putInt(ENTRY_COUNT_OFFSET, 3);
+        assertCorrupt(bitmap);
+    }
+
+    @Test
+    public void rejectsATableCutShort() {
+        //the pixel offset ends the extension in the middle of the second entry
+        for (int cut = 4 + 18 + 5 + 1; cut < 4 + 18 + 5 + 18 + 5; cut += 4) {
+            ByteBuffer bitmap = createPackedBitmap();
+            bitmap.putInt(10, ENTRY_COUNT_OFFSET + cut);
+            assertCorrupt(bitmap);
+        }
+    }
+
+    @Test
+    public void rejectsAnEntryOutsideThePayload() {
+        ByteBuffer bitmap = createPackedBitmap();
+        //the size of the second entry
+        bitmap.putLong(ENTRY_COUNT_OFFSET + 4 + 18 + 5 + 8, Long.MAX_VALUE);
+        assertCorrupt(bitmap);
+    }
+}
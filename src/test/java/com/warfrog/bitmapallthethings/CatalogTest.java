@@ -0,0 +1,135 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Files that share a name are cataloged under the name they were encoded as, so a catalog keeps every
+ * one of them and finds each by its path.
+ */
+public class CatalogTest {
+
+    private static byte[] createHash(int seed) {
+        byte[] hash = new byte[32];
+        for (int i = 0; i < hash.length; i++) {
+            hash[i] = (byte) (seed * 31 + i);
+        }
+        return hash;
+    }
+
+    private static Catalog.Entry createEntry(String path, String name, int seed) {
+        return new Catalog.Entry(path, name, 100 + seed, createHash(seed), name + ".bmp");
+    }
+
+    @Test
+    public void keepsFilesThatShareAName() throws IOException {
+        Catalog catalog = new Catalog();
+        catalog.put(createEntry("x.txt", "x.txt", 1));
+        catalog.put(createEntry("s/x.txt", "s%2Fx.txt", 2));
+        assertEquals(2, catalog.size());
+
+        Catalog read = Catalog.read(catalog.toByteBuffer(), "test");
+        assertEquals(2, read.size());
+        assertEquals("x.txt", read.find("x.txt").getName());
+        Catalog.Entry entry = read.find("s/x.txt");
+        assertEquals("s%2Fx.txt", entry.getName());
+        assertEquals(102, entry.getSize());
+        assertArrayEquals(createHash(2), entry.getHash());
+        assertEquals("s%2Fx.txt.bmp", entry.getBitmap());
+        assertFalse(read.isModified());
+    }
+
+    @Test
+    public void replacesBothByNameAndByPath() {
+        Catalog catalog = new Catalog();
+        catalog.put(createEntry("s/x.txt", "x.txt", 1));
+        //another x.txt turned up, the file is encoded under its path from now on
+        catalog.put(createEntry("s/x.txt", "s%2Fx.txt", 2));
+        assertEquals(1, catalog.size());
+        assertEquals("s%2Fx.txt", catalog.find("s/x.txt").getName());
+
+        //the last file encoded as x.txt wins
+        catalog.put(createEntry("x.txt", "x.txt", 3));
+        catalog.put(createEntry("t/x.txt", "x.txt", 4));
+        assertEquals(2, catalog.size());
+        assertNull(catalog.find("x.txt"));
+        assertEquals(104, catalog.find("t/x.txt").getSize());
+
+        catalog.remove("s/x.txt");
+        catalog.remove("x.txt");
+        assertEquals(1, catalog.size());
+        assertNull(catalog.find("s/x.txt"));
+    }
+
+    @Test
+    public void mergeKeepsTheNewerEntries() {
+        Catalog older = new Catalog();
+        older.put(createEntry("s/x.txt", "x.txt", 1));
+        older.put(createEntry("y.txt", "y.txt", 2));
+        older.put(createEntry("t/z.txt", "z.txt", 3));
+        Catalog newer = new Catalog();
+        newer.put(createEntry("s/x.txt", "s%2Fx.txt", 4));
+        newer.put(createEntry("u/z.txt", "z.txt", 5));
+
+        newer.merge(older);
+        assertEquals(3, newer.size());
+        assertEquals("s%2Fx.txt", newer.find("s/x.txt").getName());
+        assertEquals(102, newer.find("y.txt").getSize());
+        assertNull(newer.find("t/z.txt"));
+        assertEquals(105, newer.find("u/z.txt").getSize());
+    }
+
+    @Test
+    public void readsTheFirstVersion() throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(data);
+        outputStream.writeInt(0x43544142);
+        outputStream.writeInt(1);
+        outputStream = new DataOutputStream(new DeflaterOutputStream(data));
+        outputStream.writeInt(1);
+        outputStream.writeUTF("docs/report.pdf");
+        outputStream.writeLong(7);
+        outputStream.write(createHash(1));
+        outputStream.writeUTF("report.pdf.bmp");
+        outputStream.close();
+
+        Catalog catalog = Catalog.read(ByteBuffer.wrap(data.toByteArray()), "test");
+        Catalog.Entry entry = catalog.find("docs/report.pdf");
+        assertEquals("report.pdf", entry.getName());
+        assertEquals("report.pdf.bmp", entry.getBitmap());
+        assertTrue(catalog.select("docs/*.pdf").contains(entry));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * The index is appended to by every run, a run that dies halfway through a record must not cost the
+ * chunks that were indexed before it.
+ */
+public class ChunkIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] createHash(int seed) {
+        byte[] hash = new byte[32];
+        for (int i = 0; i < hash.length; i++) {
+            hash[i] = (byte) (seed * 31 + i);
+        }
+        return hash;
+    }
+
+    private File createIndex(int records) throws IOException {
+        File file = new File(folder.getRoot(), ChunkIndex.FILENAME);
+        ChunkIndex index = ChunkIndex.load(file);
+        for (int i = 0; i < records; i++) {
+            index.add(createHash(i), new ChunkIndex.Location("chunks-" + i % 2, i * 1000L, 1000 + i));
+        }
+        index.save();
+        return file;
+    }
+
+    private static void append(File file, byte[] bytes) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file, true);
+        try {
+            outputStream.write(bytes);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    @Test
+    public void missingFileIsEmpty() throws IOException {
+        ChunkIndex index = ChunkIndex.load(new File(folder.getRoot(), ChunkIndex.FILENAME));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void savedRecordsLoadAgain() throws IOException {
+        File file = createIndex(3);
+        ChunkIndex index = ChunkIndex.load(file);
+        assertEquals(3, index.size());
+        ChunkIndex.Location location = index.find(createHash(2));
+        assertNotNull(location);
+        assertEquals("chunks-0", location.getStore());
+        assertEquals(2000L, location.getOffset());
+        assertEquals(1002, location.getLength());
+        assertNull(index.find(createHash(3)));
+    }
+
+    @Test
+    public void saveOnlyAppendsTheNewRecords() throws IOException {
+        File file = createIndex(2);
+        ChunkIndex index = ChunkIndex.load(file);
+        index.add(createHash(9), new ChunkIndex.Location("chunks-9", 0, 10));
+        index.save();
+        index.save();
+        assertEquals(3, ChunkIndex.load(file).size());
+    }
+
+    @Test
+    public void loadDropsAPartialLastRecord() throws IOException {
+        File file = createIndex(2);
+        long length = file.length();
+        //a run that died after writing the hash and half of the store name of its first record
+        append(file, createHash(5));
+        append(file, new byte[]{0, 8, 'c', 'h'});
+
+        ChunkIndex index = ChunkIndex.load(file);
+        assertEquals(2, index.size());
+        assertNull(index.find(createHash(5)));
+        assertEquals(length, file.length());
+
+        //later runs append behind the last complete record
+        index.add(createHash(6), new ChunkIndex.Location("chunks-6", 0, 10));
+        index.save();
+        ChunkIndex reloaded = ChunkIndex.load(file);
+        assertEquals(3, reloaded.size());
+        assertEquals("chunks-6", reloaded.find(createHash(6)).getStore());
+    }
+
+    @Test
+    public void loadDropsAPartialHash() throws IOException {
+        File file = createIndex(1);
+        long length = file.length();
+        append(file, new byte[]{1, 2, 3});
+        assertEquals(1, ChunkIndex.load(file).size());
+        assertEquals(length, file.length());
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        File file = new File(folder.getRoot(), ChunkIndex.FILENAME);
+        FileUtils.writeStringToFile(file, "not an index at all");
+        try {
+            ChunkIndex.load(file);
+            fail("a file without the magic number is not an index");
+        } catch (IOException ex) {
+            //expected
+        }
+    }
+
+    @Test
+    public void rejectsATruncatedHeader() throws IOException {
+        File file = createIndex(1);
+        RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        try {
+            truncated.setLength(6);
+        } finally {
+            truncated.close();
+        }
+        try {
+            ChunkIndex.load(file);
+            fail("a truncated header is not an index");
+        } catch (IOException ex) {
+            //expected
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The chunk boundaries decide which chunks earlier runs stored, they have to stay where they are.
+ */
+public class ContentChunkerTest {
+
+    private static final int MEGABYTE = 1024 * 1024;
+
+    private static byte[] createData(long seed, int size) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static List<Integer> chunkLengths(byte[] data) throws IOException {
+        ContentChunker chunker = new ContentChunker(new ByteArrayInputStream(data));
+        List<Integer> lengths = new ArrayList<Integer>();
+        ByteBuffer chunk;
+        while ((chunk = chunker.next()) != null) {
+            lengths.add(chunk.remaining());
+        }
+        return lengths;
+    }
+
+    private static List<ByteBuffer> chunkHashes(byte[] data) throws IOException {
+        ContentChunker chunker = new ContentChunker(new ByteArrayInputStream(data));
+        List<ByteBuffer> hashes = new ArrayList<ByteBuffer>();
+        MessageDigest digest = ChunkIndex.createDigest();
+        ByteBuffer chunk;
+        while ((chunk = chunker.next()) != null) {
+            digest.update(chunk);
+            hashes.add(ByteBuffer.wrap(digest.digest()));
+        }
+        return hashes;
+    }
+
+    @Test
+    public void gearTableIsStable() {
+        assertEquals(256, ContentChunker.GEAR.length);
+        assertEquals(-7425733609799054910L, ContentChunker.GEAR[0]);
+        assertEquals(-4915077793772834500L, ContentChunker.GEAR[1]);
+        assertEquals(-8312187132284531058L, ContentChunker.GEAR[255]);
+    }
+
+    @Test
+    public void boundariesAreStable() throws IOException {
+        List<Integer> lengths = chunkLengths(createData(21, 12 * MEGABYTE));
+        assertEquals("[2279708, 1432666, 266727, 2307515, 699695, 369485, 2689957, 2537159]", lengths.toString());
+    }
+
+    @Test
+    public void chunksStayWithinTheirLimits() throws IOException {
+        //all zeros never hits a boundary, every chunk is cut at the maximum
+        List<Integer> lengths = chunkLengths(new byte[10 * MEGABYTE + 3]);
+        assertEquals(3, lengths.size());
+        assertEquals(ContentChunker.MAX_SIZE, (int) lengths.get(0));
+        assertEquals(ContentChunker.MAX_SIZE, (int) lengths.get(1));
+        assertEquals(2 * MEGABYTE + 3, (int) lengths.get(2));
+
+        long total = 0;
+        List<Integer> randomLengths = chunkLengths(createData(3, 20 * MEGABYTE + 11));
+        for (int i = 0; i < randomLengths.size(); i++) {
+            int length = randomLengths.get(i);
+            assertTrue(length <= ContentChunker.MAX_SIZE);
+            assertTrue(i == randomLengths.size() - 1 || length >= ContentChunker.MIN_SIZE);
+            total += length;
+        }
+        assertEquals(20 * MEGABYTE + 11, total);
+    }
+
+    @Test
+    public void emptyInputHasNoChunks() throws IOException {
+        assertTrue(chunkLengths(new byte[0]).isEmpty());
+    }
+
+    @Test
+    public void chunksReassembleTheInput() throws IOException {
+        byte[] data = createData(5, 9 * MEGABYTE + 17);
+        ContentChunker chunker = new ContentChunker(new ByteArrayInputStream(data));
+        ByteBuffer copy = ByteBuffer.allocate(data.length);
+        ByteBuffer chunk;
+        while ((chunk = chunker.next()) != null) {
+            copy.put(chunk);
+        }
+        assertArrayEquals(data, copy.array());
+    }
+
+    @Test
+    public void insertOnlyChangesTheChunksAroundIt() throws IOException {
+        byte[] original = createData(7, 24 * MEGABYTE);
+        int insertAt = 11 * MEGABYTE + 12345;
+        byte[] inserted = createData(8, 100);
+        byte[] edited = new byte[original.length + inserted.length];
+        System.arraycopy(original, 0, edited, 0, insertAt);
+        System.arraycopy(inserted, 0, edited, insertAt, inserted.length);
+        System.arraycopy(original, insertAt, edited, insertAt + inserted.length, original.length - insertAt);
+
+        List<ByteBuffer> before = chunkHashes(original);
+        List<ByteBuffer> after = chunkHashes(edited);
+        Set<ByteBuffer> known = new HashSet<ByteBuffer>(before);
+        int changed = 0;
+        for (ByteBuffer hash : after) {
+            if (!known.contains(hash)) {
+                changed++;
+            }
+        }
+        //the chunk with the insert, and at most the one after it until the boundaries line up again
+        assertTrue("changed " + changed + " of " + after.size() + " chunks", changed >= 1 && changed <= 2);
+        assertTrue(before.size() > 8);
+        assertTrue(Math.abs(before.size() - after.size()) <= 1);
+    }
+}
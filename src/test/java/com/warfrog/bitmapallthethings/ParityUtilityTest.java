@@ -0,0 +1,188 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes a parity group over files whose sizes end in odd stripe tails, damages it and rebuilds it.
+ */
+public class ParityUtilityTest {
+
+    private static final int MEGABYTE = 1024 * 1024;
+    //across several stripes, just short of one, a few bytes and just over one
+    private static final long[] SIZES = new long[]{2L * MEGABYTE + 17, MEGABYTE - 1, 5, MEGABYTE + 1};
+    private static final int PARITY_SHARDS = 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<File> dataFiles = new ArrayList<File>();
+    private final Map<File, byte[]> contents = new HashMap<File, byte[]>();
+    private List<File> parityFiles;
+
+    @Before
+    public void writeGroup() throws Exception {
+        Random random = new Random(8);
+        File directory = folder.newFolder("bitmaps");
+        for (int i = 0; i < SIZES.length; i++) {
+            byte[] content = new byte[(int) SIZES[i]];
+            random.nextBytes(content);
+            File file = new File(directory, "data" + i + ".bmp");
+            FileUtils.writeByteArrayToFile(file, content);
+            dataFiles.add(file);
+            contents.put(file, content);
+        }
+        parityFiles = ParityUtility.writeParityGroup(dataFiles, 0, PARITY_SHARDS, new File(directory, "test").getPath(),
+                new GeometryPlanner(4000, 4000, 32, 0), 2);
+    }
+
+    private Map<String, File> repair(List<File> dataCandidates, List<File> parityCandidates) throws Exception {
+        Map<File, BitmapHeader> headers = new HashMap<File, BitmapHeader>();
+        for (File parityFile : parityCandidates) {
+            headers.put(parityFile, BitmapHeader.read(parityFile));
+        }
+        Map<String, File> candidates = new HashMap<String, File>();
+        for (File file : dataCandidates) {
+            candidates.put(file.getName(), file);
+        }
+        File repairDirectory = folder.newFolder();
+        return ParityUtility.repairGroup(parityCandidates, headers, candidates, Collections.<String>emptySet(),
+                repairDirectory.getPath(), 2);
+    }
+
+    private void corrupt(File file, long position) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.seek(position);
+            output.write(~contents.get(file)[(int) position]);
+        } finally {
+            output.close();
+        }
+    }
+
+    private void assertRebuilt(Map<String, File> rebuilt, File original) throws IOException {
+        assertTrue(original.getName() + " was not rebuilt", rebuilt.containsKey(original.getName()));
+        assertArrayEquals(original.getName(), contents.get(original), FileUtils.readFileToByteArray(rebuilt.get(original.getName())));
+    }
+
+    @Test
+    public void leavesAnIntactGroupAlone() throws Exception {
+        assertEquals(PARITY_SHARDS, parityFiles.size());
+        assertTrue(repair(dataFiles, parityFiles).isEmpty());
+    }
+
+    @Test
+    public void rebuildsAnyTwoLostOrCorruptBitmaps() throws Exception {
+        for (int first = 0; first < dataFiles.size(); first++) {
+            for (int second = first + 1; second < dataFiles.size(); second++) {
+                //one is gone, the other has a flipped byte in its last stripe
+                File missing = dataFiles.get(first);
+                File damaged = dataFiles.get(second);
+                byte[] damagedContent = contents.get(damaged);
+                corrupt(damaged, damagedContent.length - 1);
+                List<File> candidates = new ArrayList<File>(dataFiles);
+                candidates.remove(missing);
+
+                Map<String, File> rebuilt = repair(candidates, parityFiles);
+                assertEquals(2, rebuilt.size());
+                assertRebuilt(rebuilt, missing);
+                assertRebuilt(rebuilt, damaged);
+                FileUtils.writeByteArrayToFile(damaged, damagedContent);
+            }
+        }
+    }
+
+    @Test
+    public void rebuildsWithAParityBitmapMissing() throws Exception {
+        File missing = dataFiles.get(0);
+        List<File> candidates = new ArrayList<File>(dataFiles);
+        candidates.remove(missing);
+
+        Map<String, File> rebuilt = repair(candidates, parityFiles.subList(1, 2));
+        assertEquals(1, rebuilt.size());
+        assertRebuilt(rebuilt, missing);
+    }
+
+    @Test
+    public void rebuildsABitmapWithADamagedTableOfContents() throws Exception {
+        //a packed bitmap in the group this time, its entry count is overwritten
+        BitmapHeader header = new BitmapHeader();
+        header.setType(BitmapHeader.TYPE_PACKED);
+        header.addEntry("a.txt", 5);
+        header.addEntry("b.txt", 7);
+        int fillerBytes = header.layout(new GeometryPlanner(100, 100, 32, 0).plan(12), 12);
+        byte[] content = new byte[header.calculateHeaderSize() + 12 + fillerBytes];
+        header.write(ByteBuffer.wrap(content));
+        File packed = dataFiles.get(1);
+        FileUtils.writeByteArrayToFile(packed, content);
+        contents.put(packed, content);
+        List<File> packedParityFiles = ParityUtility.writeParityGroup(dataFiles, 0, PARITY_SHARDS,
+                new File(packed.getParentFile(), "packed").getPath(), new GeometryPlanner(4000, 4000, 32, 0), 2);
+
+        RandomAccessFile output = new RandomAccessFile(packed, "rw");
+        try {
+            output.seek(BitmapHeader.BITMAP_HEADER_SIZE + 34);
+            output.write(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F});
+        } finally {
+            output.close();
+        }
+        try {
+            BitmapHeader.read(packed);
+            fail("The damaged table of contents was read.");
+        } catch (IOException ex) {
+            assertEquals(packed.getPath() + " has a corrupt table of contents.", ex.getMessage());
+        }
+
+        Map<String, File> rebuilt = repair(dataFiles, packedParityFiles);
+        assertEquals(1, rebuilt.size());
+        assertRebuilt(rebuilt, packed);
+        assertEquals(2, BitmapHeader.read(rebuilt.get(packed.getName())).getEntries().size());
+    }
+
+    @Test(expected = IOException.class)
+    public void failsWhenTooMuchIsLost() throws Exception {
+        List<File> candidates = new ArrayList<File>(dataFiles.subList(PARITY_SHARDS + 1, dataFiles.size()));
+        repair(candidates, parityFiles);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+*
+* BitTwiddler - BMP transcoder
+* Copyright (C) 2015  Tyler Pitchford
+*
+* This file is part of BitTwiddler.
+*
+* This program is free software; you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program; see the file COPYING.  If not, write to
+* the Free Software Foundation, 675 Mass Ave, Cambridge, MA 02139, USA.
+*
+*/
+
+package com.warfrog.bitmapallthethings;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * The parity rows are part of the on-disk format, a parity bitmap is only worth anything if a later
+ * build computes exactly the same bytes and can invert any combination of them.
+ */
+public class ReedSolomonTest {
+
+    //carry-less multiplication modulo x^8 + x^4 + x^3 + x^2 + 1, slow but obviously right
+    private static int referenceMultiply(int a, int b) {
+        int result = 0;
+        while (b != 0) {
+            if ((b & 1) != 0) {
+                result ^= a;
+            }
+            a <<= 1;
+            if ((a & 0x100) != 0) {
+                a ^= 0x11D;
+            }
+            b >>= 1;
+        }
+        return result;
+    }
+
+    private static int referenceInverse(int a) {
+        for (int candidate = 1; candidate < 256; candidate++) {
+            if (referenceMultiply(a, candidate) == 1) {
+                return candidate;
+            }
+        }
+        throw new IllegalArgumentException("0 has no inverse");
+    }
+
+    private static byte[][] createShards(Random random, int dataShards, int parityShards, int length) {
+        byte[][] shards = new byte[dataShards + parityShards][length];
+        for (int i = 0; i < dataShards; i++) {
+            random.nextBytes(shards[i]);
+        }
+        return shards;
+    }
+
+    private static byte[][] copy(byte[][] shards) {
+        byte[][] returnValue = new byte[shards.length][];
+        for (int i = 0; i < shards.length; i++) {
+            returnValue[i] = shards[i].clone();
+        }
+        return returnValue;
+    }
+
+    @Test
+    public void parityMatchesTheCauchyMatrix() {
+        Random random = new Random(1);
+        int dataShards = 5;
+        int parityShards = 3;
+        byte[][] shards = createShards(random, dataShards, parityShards, 257);
+        new ReedSolomon(dataShards, parityShards).encodeParity(shards, 257);
+
+        for (int i = 0; i < parityShards; i++) {
+            for (int position = 0; position < 257; position++) {
+                int expected = 0;
+                for (int j = 0; j < dataShards; j++) {
+                    expected ^= referenceMultiply(referenceInverse((dataShards + i) ^ j), shards[j][position] & 0xFF);
+                }
+                assertEquals("parity " + i + " at " + position, expected, shards[dataShards + i][position] & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    public void parityIsStable() {
+        byte[][] shards = new byte[][]{
+                {0x01, (byte) 0x80, (byte) 0xFF, 0x00, 0x53},
+                {0x02, 0x40, 0x0F, 0x11, (byte) 0xCA},
+                {0x03, 0x20, (byte) 0xF0, 0x22, 0x7E},
+                new byte[5],
+                new byte[5]};
+        new ReedSolomon(3, 2).encodeParity(shards, 5);
+        assertArrayEquals(new byte[]{(byte) 0xF6, (byte) 0x8B, 0x2C, (byte) 0xA4, 0x2A}, shards[3]);
+        assertArrayEquals(new byte[]{(byte) 0x9A, 0x69, (byte) 0xDD, 0x0A, 0x01}, shards[4]);
+    }
+
+    private static void assertReconstructsEveryErasure(int dataShards, int parityShards, int capacity, int length) throws IOException {
+        Random random = new Random(dataShards * 31 + parityShards);
+        ReedSolomon codec = new ReedSolomon(dataShards, parityShards);
+        byte[][] original = createShards(random, dataShards, parityShards, capacity);
+        codec.encodeParity(original, length);
+
+        int total = dataShards + parityShards;
+        //every set of parityShards erased shards, as a bit mask
+        for (int mask = 0; mask < 1 << total; mask++) {
+            if (Integer.bitCount(mask) != parityShards) {
+                continue;
+            }
+            byte[][] shards = copy(original);
+            boolean[] present = new boolean[total];
+            for (int i = 0; i < total; i++) {
+                present[i] = (mask & (1 << i)) == 0;
+                if (!present[i]) {
+                    random.nextBytes(shards[i]);
+                }
+            }
+            codec.reconstruct(shards, present, length);
+            for (int i = 0; i < dataShards; i++) {
+                assertArrayEquals("shard " + i + " with erasures " + Integer.toBinaryString(mask),
+                        Arrays.copyOf(original[i], length), Arrays.copyOf(shards[i], length));
+            }
+        }
+    }
+
+    @Test
+    public void reconstructsAnyErasures() throws IOException {
+        assertReconstructsEveryErasure(1, 1, 64, 64);
+        assertReconstructsEveryErasure(4, 2, 1024, 1024);
+        assertReconstructsEveryErasure(10, 4, 512, 512);
+        assertReconstructsEveryErasure(6, 6, 128, 128);
+    }
+
+    @Test
+    public void reconstructsOddStripeTails() throws IOException {
+        //the last stripe of a group is shorter than the shard buffers
+        assertReconstructsEveryErasure(4, 2, 1024, 1);
+        assertReconstructsEveryErasure(5, 3, 1024, 333);
+        assertReconstructsEveryErasure(7, 2, 1000, 999);
+    }
+
+    @Test
+    public void failsWithTooFewShards() {
+        ReedSolomon codec = new ReedSolomon(4, 2);
+        byte[][] shards = new byte[6][16];
+        boolean[] present = new boolean[]{true, false, false, false, true, true};
+        try {
+            codec.reconstruct(shards, present, 16);
+            fail("three erasures can't be rebuilt from two parity shards");
+        } catch (IOException ex) {
+            //expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooManyShards() {
+        new ReedSolomon(200, 57);
+    }
+}